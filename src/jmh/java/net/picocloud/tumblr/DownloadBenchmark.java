@@ -0,0 +1,101 @@
+package net.picocloud.tumblr;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * End to end benchmark of {@link MediaLoader#getMedia(String, Set)} against a local http server.
+ * The server answers every request after a fixed latency with a file of the configured size.
+ * Every invocation downloads all files into a new empty directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownloadBenchmark {
+
+    @Param({"100"})
+    int files;
+
+    @Param({"16", "1024"})
+    int sizeKb;
+
+    @Param({"0", "50"})
+    int latencyMillis;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private Set<String> urls;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        byte[] content = new byte[sizeKb * 1024];
+        new Random(42).nextBytes(content);
+        executor = Executors.newFixedThreadPool(64, r -> {
+            Thread thread = new Thread(r, "benchmark-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            try {
+                if (latencyMillis > 0)
+                    Thread.sleep(latencyMillis);
+                exchange.sendResponseHeaders(200, content.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(content);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        urls = new LinkedHashSet<>();
+        for (int i = 0; i < files; i++)
+            urls.add("http://127.0.0.1:" + server.getAddress().getPort() + "/media/tumblr_" + i + ".jpg");
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        DownloadService.shared().close();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Setup(Level.Invocation)
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("download-benchmark");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteDir() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void getMedia() {
+        MediaLoader.getMedia(dir.toString(), urls);
+    }
+}
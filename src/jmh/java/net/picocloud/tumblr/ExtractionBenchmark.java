@@ -0,0 +1,131 @@
+package net.picocloud.tumblr;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.tumblr.jumblr.responses.PostDeserializer;
+import com.tumblr.jumblr.types.Post;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the url extraction from post bodies, api posts and saved like pages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// gson of jumblr reflects on the File fields of the post types
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.io=ALL-UNNAMED")
+public class ExtractionBenchmark {
+
+    /**
+     * number of images in a post body, of posts in a post set and on a like page
+     */
+    @Param({"10", "100", "1000"})
+    int count;
+
+    private String body;
+    private Set<Post> posts;
+    private Path page;
+
+    @Setup
+    public void setUp() throws IOException {
+        body = body(count);
+        posts = posts(count);
+        page = Files.createTempFile("likes", ".html");
+        Files.writeString(page, likePage(count), StandardCharsets.UTF_8);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(page);
+    }
+
+    @Benchmark
+    public Set<String> extractUrls() {
+        Set<String> set = new HashSet<>();
+        MediaUrlExtractor.extract(body, set::add);
+        return set;
+    }
+
+    @Benchmark
+    public Set<String> getMediaUrlsFromPosts() {
+        return TumblrApiCalls.getMediaUrlsFromPosts(posts);
+    }
+
+    @Benchmark
+    public Set<String> getFollowableBlognames() {
+        return TumblrApiCalls.getFollowableBlognames(page);
+    }
+
+    static String mediaUrl(int i, String extension) {
+        return "https://64.media.tumblr.com/" + Integer.toHexString(i * 7919) + "/tumblr_" + i + "_1280." + extension;
+    }
+
+    /**
+     * @return a text post body with the given number of images between paragraphs of text
+     */
+    static String body(int images) {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < images; i++) {
+            body.append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ")
+                    .append("ut labore et dolore magna aliqua.</p>\n")
+                    .append("<figure class=\"tmblr-full\" data-orig-width=\"1280\"><img src=\"")
+                    .append(mediaUrl(i, "jpg"))
+                    .append("\" data-orig-width=\"1280\" data-orig-height=\"1920\"/></figure>\n");
+        }
+        return body.toString();
+    }
+
+    /**
+     * @return a mix of photo, text and video posts as the tumblr api delivers them
+     */
+    static Set<Post> posts(int count) {
+        Gson gson = new GsonBuilder()
+                .registerTypeAdapter(Post.class, new PostDeserializer())
+                .create();
+        Set<Post> posts = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            String json;
+            switch (i % 3) {
+                case 0:
+                    json = "{\"id\":" + i + ",\"type\":\"photo\",\"photos\":[{\"original_size\":{\"url\":\""
+                            + mediaUrl(i, "jpg") + "\",\"width\":1280,\"height\":1920}}]}";
+                    break;
+                case 1:
+                    json = "{\"id\":" + i + ",\"type\":\"text\",\"body\":" + gson.toJson(body(3)) + "}";
+                    break;
+                default:
+                    json = "{\"id\":" + i + ",\"type\":\"video\",\"player\":[{\"width\":500,\"embed_code\":"
+                            + gson.toJson("<video controls><source src=\"" + mediaUrl(i, "mp4") + "\" type=\"video/mp4\"></video>")
+                            + "}]}";
+            }
+            posts.add(gson.fromJson(json, Post.class));
+        }
+        return posts;
+    }
+
+    /**
+     * @return a saved like page with the given number of posts, each with a follow button
+     */
+    static String likePage(int posts) {
+        StringBuilder page = new StringBuilder("<!DOCTYPE html><html><head><title>Likes</title></head><body><ol id=\"posts\">\n");
+        for (int i = 0; i < posts; i++) {
+            page.append("<li class=\"post_container\"><div class=\"post\"><div class=\"post_header\">")
+                    .append("<a class=\"post_info_link\" href=\"https://blog").append(i).append(".tumblr.com\">blog").append(i).append("</a>")
+                    .append("<button class=\"reblog_follow_button\" data-tumblelog-name=\"blog").append(i % 50).append("\">Follow</button>")
+                    .append("</div><div class=\"post_content\"><img class=\"post_media_photo\" src=\"").append(mediaUrl(i, "jpg"))
+                    .append("\"/></div><a class=\"post_permalink\" href=\"https://blog").append(i).append(".tumblr.com/post/").append(i)
+                    .append("\"></a></div></li>\n");
+        }
+        return page.append("</ol></body></html>").toString();
+    }
+}
@@ -0,0 +1,70 @@
+package net.picocloud.tumblr;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link MediaUrlExtractor} on multi-MB post bodies, compared to the former
+ * {@code pickUrls} that copied the rest of the body after every match.
+ * Multiply the operations per second with {@code sizeMb} for MB per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MediaUrlExtractorBenchmark {
+
+    @Param({"1", "4"})
+    int sizeMb;
+
+    private String body;
+
+    @Setup
+    public void setUp() {
+        StringBuilder text = new StringBuilder(sizeMb << 20);
+        for (int i = 0; text.length() < sizeMb << 20; i++) {
+            text.append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor.</p>\n");
+            switch (i % 4) {
+                case 0:
+                    text.append("<figure><img src=\"").append(ExtractionBenchmark.mediaUrl(i, "jpg")).append("\" alt=\"\"/></figure>\n");
+                    break;
+                case 1:
+                    text.append("<img srcset=\"").append(ExtractionBenchmark.mediaUrl(i, "jpg")).append(" 500w, ")
+                            .append(ExtractionBenchmark.mediaUrl(i + 1, "jpg")).append(" 1280w\" data-src='")
+                            .append(ExtractionBenchmark.mediaUrl(i + 2, "jpg")).append("'>\n");
+                    break;
+                case 2:
+                    text.append("<video poster=\"").append(ExtractionBenchmark.mediaUrl(i, "jpg"))
+                            .append("\"><source src=\"").append(ExtractionBenchmark.mediaUrl(i, "mp4"))
+                            .append("\" type=\"video/mp4\"></video>\n");
+                    break;
+                default:
+                    text.append("<a href=\"https://www.tumblr.com/\">link</a>\n");
+            }
+        }
+        body = text.toString();
+    }
+
+    @Benchmark
+    public void extract(Blackhole blackhole) {
+        MediaUrlExtractor.extract(body, blackhole::consume);
+    }
+
+    @Benchmark
+    public void substringScan(Blackhole blackhole) {
+        final String token = " src=\"";
+        String rest = body;
+        int start = rest.indexOf(token);
+        while (start != -1) {
+            start += token.length();
+            int end = rest.indexOf("\"", start);
+            blackhole.consume(rest.substring(start, end));
+            rest = rest.substring(end);
+            start = rest.indexOf(token);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package net.picocloud.tumblr;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Concurrency limit for the requests to one host, adapted by AIMD (additive increase, multiplicative decrease).
+ * <p>
+ * Every successful request raises the limit by {@code 1/limit}, so a fully used limit grows by one per round trip
+ * while the host keeps up. A timeout or an overload answer (429, 503) halves the limit. Further drops within
+ * {@link #BACKOFF_MILLIS} belong to the same congestion event and don't halve it again.
+ * <p>
+ * A request can wait for the limit in the calling thread with {@link #acquire()}, or without blocking with
+ * {@link #acquireOrPark(Runnable)}: the waiter is parked and handed the next request released.
+ */
+public class AdaptiveLimiter {
+
+    static final int INITIAL_LIMIT = 8;
+    static final int MIN_LIMIT = 1;
+    static final int MAX_LIMIT = 64;
+
+    /**
+     * time after a decrease in which further drops are ignored
+     */
+    static final long BACKOFF_MILLIS = 1000;
+
+    private final String host;
+    private double limit = INITIAL_LIMIT;
+    private int inFlight = 0;
+    private long lastDecrease = 0;
+    private final Deque<Runnable> parked = new ArrayDeque<>();
+
+    public AdaptiveLimiter(String host) {
+        this.host = host;
+    }
+
+    /**
+     * waits until a request to the host is allowed
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= getLimit()) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * takes a request if the limit allows it, otherwise parks the waiter. When a request is released, it is
+     * taken for the first parked waiter and the waiter is run. That happens in the releasing thread while it holds
+     * the limiter, so the waiter must not block.
+     *
+     * @param waiter called when the request was taken for it later
+     * @return true if the request was taken at once, false if the waiter is parked
+     */
+    public synchronized boolean acquireOrPark(Runnable waiter) {
+        if (parked.isEmpty() && inFlight < getLimit()) {
+            inFlight++;
+            return true;
+        }
+        parked.add(waiter);
+        return false;
+    }
+
+    /**
+     * releases a request that was answered normally and raises the limit
+     */
+    public synchronized void onSuccess() {
+        // only grow if the limit is really used, an idle host says nothing about its capacity
+        if (inFlight * 2 >= getLimit())
+            limit = Math.min(MAX_LIMIT, limit + 1 / limit);
+        release();
+    }
+
+    /**
+     * releases a request that timed out or was rejected because of overload and lowers the limit
+     */
+    public synchronized void onDropped() {
+        long now = System.currentTimeMillis();
+        if (now - lastDecrease >= BACKOFF_MILLIS) {
+            limit = Math.max(MIN_LIMIT, limit / 2);
+            lastDecrease = now;
+        }
+        release();
+    }
+
+    /**
+     * releases a request whose outcome says nothing about the load of the host
+     */
+    public synchronized void onIgnored() {
+        release();
+    }
+
+    private void release() {
+        inFlight--;
+        while (!parked.isEmpty() && inFlight < getLimit()) {
+            inFlight++;
+            parked.poll().run();
+        }
+        notifyAll();
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return the current number of parallel requests allowed
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return the current number of running requests
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the number of parked waiters
+     */
+    public synchronized int getParked() {
+        return parked.size();
+    }
+
+    @Override
+    public String toString() {
+        return host + " : " + getInFlight() + "/" + getLimit();
+    }
+}
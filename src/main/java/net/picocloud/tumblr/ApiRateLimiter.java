@@ -0,0 +1,185 @@
+package net.picocloud.tumblr;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Token buckets for the requests to the tumblr api, shared by all callers of the process.
+ * <p>
+ * One bucket holds the hourly, one the daily quota of the api, both filled continuously at {@link #SAFETY} of
+ * the quota rate. Every request takes a token of both. A request that finds a bucket empty reserves the next token
+ * anyway and sleeps until it is refilled, so waiting callers are served in order without polling.
+ * <p>
+ * A 429 answer empties both buckets, pauses all requests for {@link #PAUSE_MILLIS} (doubled for every further 429
+ * up to an hour) and lowers the hourly rate by a quarter. Successful requests raise it again step by step up to
+ * the calibrated rate, so the limiter settles just under the real limit.
+ */
+public class ApiRateLimiter {
+
+    private static final Logger logger = Logger.getLogger(ApiRateLimiter.class.getName());
+
+    /**
+     * requests per hour and per day allowed by tumblr for an api key
+     */
+    static final int HOURLY_QUOTA = 1000;
+    static final int DAILY_QUOTA = 5000;
+
+    /**
+     * share of the quotas used, to stay clear of the limit
+     */
+    static final double SAFETY = 0.9;
+
+    /**
+     * share of the hourly quota that may be sent at once after a quiet time
+     */
+    static final double BURST = 0.1;
+
+    static final long PAUSE_MILLIS = 60_000;
+    private static final long MAX_PAUSE_MILLIS = 3600_000;
+    private static final double MIN_RATE_FACTOR = 0.1;
+
+    private static final Metrics.Counter RATE_LIMITED = Metrics.shared()
+            .counter("tulido_api_rate_limited_total", "Tumblr api requests answered with 429");
+    private static final Metrics.Counter WAIT = Metrics.shared()
+            .counter("tulido_api_rate_limit_wait_milliseconds_total", "Time requests waited for the tumblr api rate limiter");
+
+    private static ApiRateLimiter shared = null;
+
+    private final LongSupplier clock;
+    private final Bucket hourly;
+    private final Bucket daily;
+    private final double hourlyRate;
+
+    /**
+     * no request starts before this time in nanos of the clock
+     */
+    private long pausedUntil;
+    private long pauseMillis = PAUSE_MILLIS;
+
+    /**
+     * @return the limiter for all tumblr api calls of the process
+     */
+    public static synchronized ApiRateLimiter shared() {
+        if (shared == null)
+            shared = new ApiRateLimiter(HOURLY_QUOTA, DAILY_QUOTA);
+        return shared;
+    }
+
+    /**
+     * @param hourlyQuota requests allowed per hour
+     * @param dailyQuota  requests allowed per day
+     */
+    public ApiRateLimiter(int hourlyQuota, int dailyQuota) {
+        this(hourlyQuota, dailyQuota, System::nanoTime);
+    }
+
+    ApiRateLimiter(int hourlyQuota, int dailyQuota, LongSupplier clock) {
+        this.clock = clock;
+        long now = clock.getAsLong();
+        hourlyRate = SAFETY * hourlyQuota / TimeUnit.HOURS.toNanos(1);
+        hourly = new Bucket(Math.max(1, Math.floor(BURST * hourlyQuota)), hourlyRate, now);
+        daily = new Bucket(SAFETY * dailyQuota, SAFETY * dailyQuota / TimeUnit.DAYS.toNanos(1), now);
+        pausedUntil = now;
+    }
+
+    /**
+     * waits until the next request may be sent
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        long wait = reserve();
+        if (wait > 0) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(wait);
+            logger.fine(() -> "waiting " + millis + " msec for the api rate limit");
+            WAIT.add(millis);
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * takes a token of both buckets, they may go into debt
+     *
+     * @return the nanos to wait until the token is available
+     */
+    synchronized long reserve() {
+        long now = clock.getAsLong();
+        long wait = Math.max(0, pausedUntil - now);
+        wait = Math.max(wait, hourly.take(now));
+        wait = Math.max(wait, daily.take(now));
+        return wait;
+    }
+
+    /**
+     * called after a successful request, restores the rate lowered by 429 answers step by step
+     */
+    public synchronized void onSuccess() {
+        pauseMillis = PAUSE_MILLIS;
+        if (hourly.rate < hourlyRate)
+            hourly.rate = Math.min(hourlyRate, hourly.rate + hourlyRate / 100);
+    }
+
+    /**
+     * called after a 429 answer, pauses all requests and lowers the rate. Answers to requests sent before
+     * the running pause don't count again.
+     */
+    public synchronized void onRateLimited() {
+        RATE_LIMITED.inc();
+        long now = clock.getAsLong();
+        if (now < pausedUntil)
+            return;
+        hourly.empty(now);
+        daily.empty(now);
+        hourly.rate = Math.max(hourlyRate * MIN_RATE_FACTOR, hourly.rate * 0.75);
+        long pause = pauseMillis;
+        pausedUntil = Math.max(pausedUntil, now + TimeUnit.MILLISECONDS.toNanos(pause));
+        pauseMillis = Math.min(MAX_PAUSE_MILLIS, pauseMillis * 2);
+        logger.info(() -> "Rate Limit reached. Pausing api requests for " + pause / 1000 + " seconds.");
+    }
+
+    /**
+     * @return the current hourly rate in requests per hour
+     */
+    public synchronized double getHourlyRate() {
+        return hourly.rate * TimeUnit.HOURS.toNanos(1);
+    }
+
+    private static class Bucket {
+        final double capacity;
+        /**
+         * tokens per nano
+         */
+        double rate;
+        double tokens;
+        long last;
+
+        Bucket(double capacity, double rate, long now) {
+            this.capacity = capacity;
+            this.rate = rate;
+            this.tokens = capacity;
+            this.last = now;
+        }
+
+        void refill(long now) {
+            if (now > last) {
+                tokens = Math.min(capacity, tokens + (now - last) * rate);
+                last = now;
+            }
+        }
+
+        /**
+         * @return the nanos until the token taken is covered
+         */
+        long take(long now) {
+            refill(now);
+            tokens--;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / rate);
+        }
+
+        void empty(long now) {
+            refill(now);
+            tokens = Math.min(tokens, 0);
+        }
+    }
+}
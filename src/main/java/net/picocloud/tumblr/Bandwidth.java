@@ -0,0 +1,187 @@
+package net.picocloud.tumblr;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Byte rate limits and priorities of the downloads by traffic class.
+ * <p>
+ * A download is a video if its url looks like one and a photo otherwise, see {@link #classify(String)}. A body
+ * larger than {@link #LARGE_BYTES} is large in addition, so a few huge videos can be held to a rate of their own
+ * while the small files pass.
+ * <p>
+ * Of the queued downloads the {@link DownloadService} starts those of the class earliest in the priority order.
+ * If the order names {@link TrafficClass#LARGE}, the size of a video is asked for with a HEAD request before it is
+ * queued for the download, and a large one takes the place of the large class, see {@link #needsSize(String)}.
+ * Photos are not asked, they are far below the size and a HEAD request each would double their requests.
+ * <p>
+ * The bytes of a download are charged to the bucket of its class, to the large bucket if it is large and to the
+ * total bucket, the one in debt longest decides when the client reads on. Without a limit a class is not throttled.
+ */
+public class Bandwidth {
+
+    /**
+     * size from which a download counts as large
+     */
+    public static final long LARGE_BYTES = 32L << 20;
+
+    public enum TrafficClass {
+        PICS, VIDS, LARGE
+    }
+
+    /**
+     * no limits, photos before videos
+     */
+    public static final Bandwidth DEFAULT = new Bandwidth(null, new EnumMap<>(TrafficClass.class),
+            List.of(TrafficClass.PICS, TrafficClass.VIDS));
+
+    private final ByteRateLimiter total;
+    private final Map<TrafficClass, ByteRateLimiter> limits;
+    private final List<TrafficClass> priorities;
+
+    private Bandwidth(ByteRateLimiter total, Map<TrafficClass, ByteRateLimiter> limits, List<TrafficClass> priorities) {
+        this.total = total;
+        this.limits = limits;
+        this.priorities = priorities;
+    }
+
+    /**
+     * parses the command line options
+     *
+     * @param rates      the total rate, e.g. {@code 2M}, and the rates of the classes, e.g.
+     *                   {@code 2M,vids=1M,large=256k}, null for no limits. Units are k and M, bytes per second.
+     * @param priorities the classes in the order their downloads start, e.g. {@code vids,pics} or
+     *                   {@code pics,vids,large}, null for the default
+     * @return the bandwidth settings
+     * @throws IllegalArgumentException if a value cannot be parsed
+     */
+    public static Bandwidth parse(String rates, String priorities) {
+        ByteRateLimiter total = null;
+        Map<TrafficClass, ByteRateLimiter> limits = new EnumMap<>(TrafficClass.class);
+        if (rates != null) {
+            for (String rate : rates.split(",")) {
+                int eq = rate.indexOf('=');
+                if (eq < 0 || rate.substring(0, eq).trim().equalsIgnoreCase("total"))
+                    total = new ByteRateLimiter(parseRate(rate.substring(eq + 1)));
+                else
+                    limits.put(trafficClass(rate.substring(0, eq)), new ByteRateLimiter(parseRate(rate.substring(eq + 1))));
+            }
+        }
+        List<TrafficClass> order = new ArrayList<>();
+        if (priorities != null) {
+            for (String name : priorities.split(",")) {
+                TrafficClass c = trafficClass(name);
+                if (!order.contains(c))
+                    order.add(c);
+            }
+        }
+        for (TrafficClass c : DEFAULT.priorities) {
+            if (!order.contains(c))
+                order.add(c);
+        }
+        return new Bandwidth(total, limits, List.copyOf(order));
+    }
+
+    /**
+     * @param value bytes per second with an optional unit k or M
+     */
+    static long parseRate(String value) {
+        String v = value.trim();
+        long factor = 1;
+        if (v.endsWith("k") || v.endsWith("K")) {
+            factor = 1024;
+            v = v.substring(0, v.length() - 1);
+        } else if (v.endsWith("m") || v.endsWith("M")) {
+            factor = 1024 * 1024;
+            v = v.substring(0, v.length() - 1);
+        }
+        long rate = Long.parseLong(v.trim()) * factor;
+        if (rate <= 0)
+            throw new IllegalArgumentException("A rate must be positive: " + value);
+        return rate;
+    }
+
+    private static TrafficClass trafficClass(String name) {
+        try {
+            return TrafficClass.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown traffic class " + name.trim() + ", use pics, vids or large");
+        }
+    }
+
+    /**
+     * @return {@link TrafficClass#VIDS} for urls of the video host or with a video extension, otherwise
+     * {@link TrafficClass#PICS}
+     */
+    public static TrafficClass classify(String url) {
+        String lower = url.toLowerCase(Locale.ROOT);
+        int query = lower.indexOf('?');
+        String path = query < 0 ? lower : lower.substring(0, query);
+        if (lower.startsWith("https://va.media.tumblr.com/") || lower.startsWith("https://vt.media.tumblr.com/")
+                || path.endsWith(".mp4") || path.endsWith(".mov") || path.endsWith(".webm") || path.endsWith(".m4v"))
+            return TrafficClass.VIDS;
+        return TrafficClass.PICS;
+    }
+
+    /**
+     * @param contentLength the length of the body, -1 if unknown
+     * @return true if the body counts as {@link TrafficClass#LARGE}
+     */
+    public static boolean isLarge(long contentLength) {
+        return contentLength > LARGE_BYTES;
+    }
+
+    /**
+     * @return the position of the class of the url in the priority order, lower starts first
+     */
+    public int priority(String url) {
+        return priority(url, -1);
+    }
+
+    /**
+     * @param contentLength the length of the body, -1 if unknown
+     * @return the position in the priority order, that of the large class for a large body if the order names it
+     */
+    public int priority(String url, long contentLength) {
+        if (isLarge(contentLength) && priorities.contains(TrafficClass.LARGE))
+            return priorities.indexOf(TrafficClass.LARGE);
+        return priorities.indexOf(classify(url));
+    }
+
+    /**
+     * @return true if the size of the download decides its place in the priority order, so it has to be known
+     * before the download starts
+     */
+    public boolean needsSize(String url) {
+        return priorities.contains(TrafficClass.LARGE) && classify(url) == TrafficClass.VIDS;
+    }
+
+    /**
+     * @param contentLength the length of the body, -1 if unknown
+     * @return the buckets the bytes of the download are charged to, empty if not throttled
+     */
+    public ByteRateLimiter[] limiters(String url, long contentLength) {
+        List<ByteRateLimiter> buckets = new ArrayList<>(3);
+        ByteRateLimiter own = limits.get(classify(url));
+        if (own != null)
+            buckets.add(own);
+        ByteRateLimiter large = isLarge(contentLength) ? limits.get(TrafficClass.LARGE) : null;
+        if (large != null)
+            buckets.add(large);
+        if (total != null)
+            buckets.add(total);
+        return buckets.toArray(new ByteRateLimiter[0]);
+    }
+
+    public List<TrafficClass> getPriorities() {
+        return priorities;
+    }
+
+    @Override
+    public String toString() {
+        return "total " + (total != null ? total : "unlimited") + ", " + limits + ", priorities " + priorities;
+    }
+}
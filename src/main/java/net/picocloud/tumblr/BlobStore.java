@@ -0,0 +1,163 @@
+package net.picocloud.tumblr;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed storage for downloaded files.
+ * <p>
+ * Every distinct content is stored once as a blob named by its SHA-256 digest ({@code <root>/ab/abcd...}).
+ * The user-facing file names are hard links to the blobs. If the file system does not support hard links,
+ * found by the first link failing, the blobs are copied from then on. A link failing later is replaced by a copy
+ * of that one blob. An existing file of the name is replaced. Every name is also recorded in {@code <root>/index.txt} as
+ * {@code digest TAB size TAB path TAB url}, so the names can be restored from the blobs.
+ */
+public class BlobStore {
+
+    private static final Logger logger = Logger.getLogger(BlobStore.class.getName());
+
+    static final String ALGORITHM = "SHA-256";
+    static final String INDEX = "index.txt";
+
+    private final Path root;
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+    private final AtomicLong temps = new AtomicLong();
+    private volatile boolean linksSupported = true;
+    private volatile boolean linked = false;
+
+    /**
+     * @param root the directory of the blobs. Must be on the same file system as the target files to allow hard links.
+     * @throws IOException if the directory cannot be created
+     */
+    public BlobStore(Path root) throws IOException {
+        this.root = root;
+        Files.createDirectories(root);
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * @return a new digest for the content of a download
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * stores a completely downloaded file under its digest and makes it available as target.
+     * If a blob with the same digest exists, the file is deleted.
+     *
+     * @param file   the downloaded file, it is moved or deleted
+     * @param digest the digest of the content of the file
+     * @param target the user-facing name of the file
+     * @param url    the url the file was downloaded from
+     * @return the path of the blob
+     * @throws IOException if the blob or the link cannot be written
+     */
+    public Path store(Path file, byte[] digest, Path target, String url) throws IOException {
+        String hex = toHex(digest);
+        Path blob = root.resolve(hex.substring(0, 2)).resolve(hex);
+        long size = Files.size(file);
+        if (Files.exists(blob)) {
+            Files.delete(file);
+            duplicates.incrementAndGet();
+            savedBytes.addAndGet(size);
+            logger.fine(() -> "duplicate of " + hex + " : " + url);
+        } else {
+            Files.createDirectories(blob.getParent());
+            try {
+                Files.move(file, blob, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(file, blob, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        link(blob, target);
+        appendIndex(hex + "\t" + size + "\t" + target + "\t" + url + "\n");
+        return blob;
+    }
+
+    /**
+     * @return the number of downloads whose content was already stored
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return the number of bytes not stored twice because of duplicates
+     */
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    /**
+     * links or copies the blob under a temporary name and moves that over the target, which replaces a file of
+     * another url with the same name
+     */
+    private void link(Path blob, Path target) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + "." + temps.incrementAndGet() + ".link");
+        try {
+            linkOrCopy(blob, temp);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            // a rename onto a link of the same blob leaves the temporary name
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void linkOrCopy(Path blob, Path target) throws IOException {
+        if (linksSupported) {
+            try {
+                Files.createLink(target, blob);
+                linked = true;
+                return;
+            } catch (UnsupportedOperationException e) {
+                linksSupported = false;
+                logger.warning(() -> "Hard links are not supported in " + target.getParent() + ", copying blobs instead: " + e);
+            } catch (FileSystemException e) {
+                if (linked) {
+                    logger.warning(() -> "Could not link " + target + ", copying the blob: " + e);
+                } else {
+                    linksSupported = false;
+                    logger.warning(() -> "Hard links are not supported in " + target.getParent() + ", copying blobs instead: " + e);
+                }
+            } catch (IOException e) {
+                logger.warning(() -> "Could not link " + target + ", copying the blob: " + e);
+            }
+        }
+        Files.copy(blob, target);
+    }
+
+    private synchronized void appendIndex(String line) throws IOException {
+        Files.writeString(root.resolve(INDEX), line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
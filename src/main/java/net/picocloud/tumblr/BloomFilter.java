@@ -0,0 +1,55 @@
+package net.picocloud.tumblr;
+
+/**
+ * Bloom filter for 64 bit fingerprints.
+ * <p>
+ * Uses 10 bits per expected key and 7 probes derived from the two halves of the fingerprint, which gives
+ * about 1% false positives at the expected number of keys. Not thread safe.
+ */
+public class BloomFilter {
+
+    static final int BITS_PER_KEY = 10;
+    static final int PROBES = 7;
+
+    private final long[] bits;
+    private final long numBits;
+
+    /**
+     * @param expected the expected number of keys
+     */
+    public BloomFilter(long expected) {
+        long n = Math.max(64, Math.min(expected * BITS_PER_KEY, (long) Integer.MAX_VALUE * Long.SIZE));
+        bits = new long[(int) ((n + Long.SIZE - 1) / Long.SIZE)];
+        numBits = (long) bits.length * Long.SIZE;
+    }
+
+    /**
+     * @return false if the key was never put, true if it probably was
+     */
+    public boolean mightContain(long fingerprint) {
+        long h1 = fingerprint;
+        long h2 = fingerprint >>> 32 | 1;
+        for (int i = 0; i < PROBES; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    public void put(long fingerprint) {
+        long h1 = fingerprint;
+        long h2 = fingerprint >>> 32 | 1;
+        for (int i = 0; i < PROBES; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return the number of bytes used by the filter
+     */
+    public long bytes() {
+        return (long) bits.length * Long.BYTES;
+    }
+}
@@ -0,0 +1,58 @@
+package net.picocloud.tumblr;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket for a byte rate.
+ * <p>
+ * The bucket fills with the rate up to a burst of one second, or {@link FileEntityConsumer#BUFFER_SIZE} if the rate
+ * is lower. {@link #reserve(long)} never blocks: it takes the bytes at once, the bucket may go into debt, and
+ * returns how long the caller has to wait until the debt is paid. So the reactor thread of the http client can
+ * charge the bytes it received and let another thread hand out the capacity for the next ones later.
+ * Thread safe.
+ */
+public class ByteRateLimiter {
+
+    private final long rate;
+    private final double burst;
+    private double tokens;
+    private long last;
+
+    /**
+     * @param rate bytes per second
+     */
+    public ByteRateLimiter(long rate) {
+        if (rate <= 0)
+            throw new IllegalArgumentException("The rate must be positive: " + rate);
+        this.rate = rate;
+        this.burst = Math.max(rate, FileEntityConsumer.BUFFER_SIZE);
+        this.tokens = burst;
+        this.last = System.nanoTime();
+    }
+
+    /**
+     * @return the rate in bytes per second
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * takes the bytes out of the bucket
+     *
+     * @param bytes the number of bytes transferred or about to be
+     * @return the nanoseconds to wait until the bucket is out of debt, 0 if it is not in debt
+     */
+    public synchronized long reserve(long bytes) {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - last) * (double) rate / TimeUnit.SECONDS.toNanos(1));
+        last = now;
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+
+    @Override
+    public String toString() {
+        return rate + " bytes/s";
+    }
+}
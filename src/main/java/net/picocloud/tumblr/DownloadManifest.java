@@ -0,0 +1,278 @@
+package net.picocloud.tumblr;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Persistent record of the downloads into one directory.
+ * <p>
+ * Every finished or failed download is appended as one line to {@code .manifest.log}:
+ * {@code status TAB size TAB digest TAB timestamp TAB key}. The key is the url, or {@code file:<name>} for files
+ * found by a directory scan. A {@link MappedLongIndex} in {@code .manifest.idx} maps the fingerprint of every key
+ * to its status and the position of its latest line, so looking up a url neither reads the log nor touches the
+ * files of the directory.
+ * <p>
+ * The index remembers how much of the log it covers. Lines appended after that, e.g. by a killed run, are indexed
+ * again when the manifest is opened. A missing or damaged index is rebuilt from the log, and a new manifest for a
+ * directory with files is filled by {@link #rebuildFromDirectory()}.
+ */
+public class DownloadManifest implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(DownloadManifest.class.getName());
+
+    static final String LOG = ".manifest.log";
+    static final String INDEX = ".manifest.idx";
+    static final String FILE_KEY = "file:";
+
+    public enum Status {
+        COMPLETE, FAILED
+    }
+
+    /**
+     * one line of the log
+     */
+    public static class Entry {
+        private final Status status;
+        private final long size;
+        private final String digest;
+        private final long timestamp;
+        private final String key;
+
+        Entry(Status status, long size, String digest, long timestamp, String key) {
+            this.status = status;
+            this.size = size;
+            this.digest = digest;
+            this.timestamp = timestamp;
+            this.key = key;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the size of the file in bytes or the http status code for a failed download
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the hex digest of the content or "-" if unknown
+         */
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * @return the time of the download in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        String toLine() {
+            return status + "\t" + size + "\t" + digest + "\t" + timestamp + "\t" + key + "\n";
+        }
+
+        static Entry parse(String line) {
+            String[] fields = line.split("\t", 5);
+            if (fields.length < 5)
+                return null;
+            try {
+                return new Entry(Status.valueOf(fields[0]), Long.parseLong(fields[1]), fields[2],
+                        Long.parseLong(fields[3]), fields[4]);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return toLine().trim();
+        }
+    }
+
+    private static final int STATUS_SHIFT = 56;
+    private static final long OFFSET_MASK = (1L << STATUS_SHIFT) - 1;
+
+    private final Path dir;
+    private final FileChannel log;
+    private final MappedLongIndex index;
+
+    /**
+     * opens the manifest of a directory. The manifest of a directory without one is built by a directory scan.
+     *
+     * @param dir the download directory
+     * @return the manifest
+     * @throws IOException if the manifest cannot be read or created
+     */
+    public static DownloadManifest open(Path dir) throws IOException {
+        boolean exists = Files.exists(dir.resolve(LOG));
+        DownloadManifest manifest = new DownloadManifest(dir);
+        if (!exists)
+            manifest.rebuildFromDirectory();
+        return manifest;
+    }
+
+    private DownloadManifest(Path dir) throws IOException {
+        this.dir = dir;
+        log = FileChannel.open(dir.resolve(LOG), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = new MappedLongIndex(dir.resolve(INDEX));
+        if (index.getWatermark() > log.size())
+            index.clear(); // the index belongs to another log
+        if (index.getWatermark() < log.size())
+            replay(index.getWatermark());
+    }
+
+    /**
+     * @param url      the url of the download
+     * @param fileName the name of the downloaded file
+     * @return true if the url or, found by a directory scan, the file is downloaded completely
+     */
+    public synchronized boolean isComplete(String url, String fileName) {
+        return status(url) == Status.COMPLETE || status(FILE_KEY + fileName) == Status.COMPLETE;
+    }
+
+    /**
+     * @param key the url or {@code file:<name>}
+     * @return the latest status of the key or null if it is unknown
+     */
+    public synchronized Status status(String key) {
+        long value = index.get(Fingerprint.of(key));
+        return value < 0 ? null : Status.values()[(int) (value >>> STATUS_SHIFT)];
+    }
+
+    /**
+     * reads the latest entry of a key from the log
+     *
+     * @param key the url or {@code file:<name>}
+     * @return the entry or null if the key is unknown
+     * @throws IOException if the log cannot be read
+     */
+    public synchronized Entry get(String key) throws IOException {
+        long value = index.get(Fingerprint.of(key));
+        if (value < 0)
+            return null;
+        Entry entry = readLine(value & OFFSET_MASK);
+        return entry != null && entry.key.equals(key) ? entry : null;
+    }
+
+    /**
+     * appends an entry for a download
+     *
+     * @param url    the url of the download
+     * @param status the outcome of the download
+     * @param size   the size of the file or the http status code of a failed download
+     * @param digest the hex digest of the content or null
+     * @throws IOException if the log or the index cannot be written
+     */
+    public synchronized void record(String url, Status status, long size, String digest) throws IOException {
+        append(new Entry(status, size, digest == null ? "-" : digest, System.currentTimeMillis(), url));
+    }
+
+    /**
+     * forgets everything and records every file of the directory as complete under its file name
+     *
+     * @throws IOException if the directory cannot be listed or the manifest cannot be written
+     */
+    public synchronized void rebuildFromDirectory() throws IOException {
+        log.truncate(0);
+        index.clear();
+        int count = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(".") || name.endsWith(ResumableDownload.PART_SUFFIX)
+                        || name.endsWith(ResumableDownload.META_SUFFIX) || !Files.isRegularFile(file))
+                    continue;
+                append(new Entry(Status.COMPLETE, Files.size(file), "-", Files.getLastModifiedTime(file).toMillis(), FILE_KEY + name));
+                count++;
+            }
+        }
+        index.force();
+        int found = count;
+        logger.info(() -> "Manifest of " + dir + " rebuilt with " + found + " files");
+    }
+
+    /**
+     * @return the number of urls and files in the manifest
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.force(false);
+        index.close();
+        log.close();
+    }
+
+    private void append(Entry entry) throws IOException {
+        long offset = log.size();
+        ByteBuffer buffer = ByteBuffer.wrap(entry.toLine().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining())
+            log.write(buffer, offset + buffer.position());
+        index.put(Fingerprint.of(entry.key), ((long) entry.status.ordinal() << STATUS_SHIFT) | offset);
+        index.setWatermark(offset + buffer.limit());
+    }
+
+    /**
+     * indexes the log from the given position on
+     */
+    private void replay(long from) throws IOException {
+        long offset = from;
+        int count = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(log.position(from)), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            long length = line.getBytes(StandardCharsets.UTF_8).length + 1L;
+            Entry entry = Entry.parse(line);
+            if (entry != null && offset + length <= log.size()) {
+                index.put(Fingerprint.of(entry.key), ((long) entry.status.ordinal() << STATUS_SHIFT) | offset);
+                count++;
+            }
+            offset += length;
+        }
+        if (offset > log.size()) // the last line was cut off, end it so the next entry starts on a new line
+            log.write(ByteBuffer.wrap(new byte[]{'\n'}), log.size());
+        index.setWatermark(log.size());
+        int replayed = count;
+        logger.fine(() -> "Manifest of " + dir + " : " + replayed + " entries indexed from the log");
+    }
+
+    private Entry readLine(long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long pos = offset;
+        while (log.read(buffer, pos) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n')
+                    return Entry.parse(line.toString(StandardCharsets.UTF_8));
+                line.write(b);
+            }
+            pos += buffer.limit();
+            buffer.clear();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,152 @@
+package net.picocloud.tumblr;
+
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.nio.AsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.http.nio.CapacityChannel;
+import org.apache.hc.core5.http.nio.entity.AbstractBinAsyncEntityConsumer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Response consumer for a {@link ResumableDownload}.
+ * <p>
+ * Looks at the response head first and then streams the body with a {@link FileEntityConsumer} into the
+ * part file, either from the beginning or behind the bytes already there. Bodies of error responses are
+ * discarded. The result holds the response head and the number of bytes written. A {@link Throttle} can wrap
+ * the consumer of the body once its length is known.
+ */
+public class DownloadResponseConsumer implements AsyncResponseConsumer<Message<HttpResponse, Long>> {
+
+    /**
+     * limits the rate of a body
+     */
+    public interface Throttle {
+        /**
+         * @param consumer      the consumer of the body
+         * @param contentLength the length of the body, -1 if unknown
+         * @return the consumer to use instead
+         */
+        AsyncEntityConsumer<Long> wrap(AsyncEntityConsumer<Long> consumer, long contentLength);
+    }
+
+    private final ResumableDownload download;
+    private final Throttle throttle;
+    private volatile AsyncEntityConsumer<Long> entityConsumer;
+
+    public DownloadResponseConsumer(ResumableDownload download) {
+        this(download, null);
+    }
+
+    /**
+     * @param throttle wraps the consumer of the body, null to read at full speed
+     */
+    public DownloadResponseConsumer(ResumableDownload download, Throttle throttle) {
+        this.download = download;
+        this.throttle = throttle;
+    }
+
+    @Override
+    public void consumeResponse(HttpResponse response, EntityDetails entityDetails, HttpContext context,
+                                FutureCallback<Message<HttpResponse, Long>> resultCallback) throws HttpException, IOException {
+        long position = download.accept(response);
+        if (entityDetails == null) {
+            resultCallback.completed(new Message<>(response, 0L));
+            return;
+        }
+        AsyncEntityConsumer<Long> consumer = position < 0 ? new DiscardingConsumer()
+                : new FileEntityConsumer(download.getPart(), position, download.getDigest());
+        entityConsumer = throttle != null ? throttle.wrap(consumer, entityDetails.getContentLength()) : consumer;
+        entityConsumer.streamStart(entityDetails, new FutureCallback<>() {
+            @Override
+            public void completed(Long written) {
+                resultCallback.completed(new Message<>(response, position < 0 ? 0L : written));
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                resultCallback.failed(ex);
+            }
+
+            @Override
+            public void cancelled() {
+                resultCallback.cancelled();
+            }
+        });
+    }
+
+    @Override
+    public void informationResponse(HttpResponse response, HttpContext context) {
+        // nothing to do for 1xx responses
+    }
+
+    @Override
+    public void updateCapacity(CapacityChannel capacityChannel) throws IOException {
+        entityConsumer.updateCapacity(capacityChannel);
+    }
+
+    @Override
+    public void consume(ByteBuffer src) throws IOException {
+        entityConsumer.consume(src);
+    }
+
+    @Override
+    public void streamEnd(List<? extends Header> trailers) throws HttpException, IOException {
+        entityConsumer.streamEnd(trailers);
+    }
+
+    @Override
+    public void failed(Exception cause) {
+        if (entityConsumer != null)
+            entityConsumer.failed(cause);
+        releaseResources();
+    }
+
+    @Override
+    public void releaseResources() {
+        if (entityConsumer != null) {
+            entityConsumer.releaseResources();
+            entityConsumer = null;
+        }
+    }
+
+    /**
+     * reads the body of an error response without keeping it
+     */
+    private static class DiscardingConsumer extends AbstractBinAsyncEntityConsumer<Long> {
+
+        @Override
+        protected void streamStart(ContentType contentType) {
+            // nothing to open
+        }
+
+        @Override
+        protected Long generateContent() {
+            return 0L;
+        }
+
+        @Override
+        protected int capacityIncrement() {
+            return FileEntityConsumer.BUFFER_SIZE;
+        }
+
+        @Override
+        protected void data(ByteBuffer src, boolean endOfStream) {
+            src.position(src.limit());
+        }
+
+        @Override
+        public void releaseResources() {
+            // nothing to release
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package net.picocloud.tumblr;
+
+import java.nio.file.Path;
+
+/**
+ * Outcome of one download submitted to the {@link DownloadService}
+ */
+public class DownloadResult {
+
+    public enum Status {
+        /**
+         * the file was downloaded completely
+         */
+        DOWNLOADED,
+        /**
+         * the file existed already, nothing was requested
+         */
+        SKIPPED,
+        /**
+         * the file was revalidated, the server confirmed it as unchanged
+         */
+        NOT_MODIFIED,
+        /**
+         * the url was submitted to the directory before, nothing was requested
+         */
+        DUPLICATE,
+        /**
+         * the download failed or is incomplete
+         */
+        FAILED
+    }
+
+    private final String url;
+    private final Path target;
+    private final Status status;
+    private final int code;
+    private final long bytes;
+
+    DownloadResult(String url, Path target, Status status, int code, long bytes) {
+        this.url = url;
+        this.target = target;
+        this.status = status;
+        this.code = code;
+        this.bytes = bytes;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the http status code of the response or 0 if there was no response
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return the number of bytes received by this download
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return status + " " + code + " " + bytes + " bytes : " + url;
+    }
+}
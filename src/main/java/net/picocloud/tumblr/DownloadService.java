@@ -0,0 +1,783 @@
+package net.picocloud.tumblr;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.async.methods.SimpleRequestProducer;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.util.Timeout;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Long-lived download service with one async http client and one connection pool for all downloads.
+ * <p>
+ * Downloads are submitted into a bounded queue. {@link #submit(String, String)} blocks while the queue is full,
+ * so producers can't run away from the network. A single dispatcher thread takes the downloads from the queue,
+ * those of the traffic class earliest in the priority order of the {@link Bandwidth} first,
+ * and starts them as soon as the {@link AdaptiveLimiter} of the host allows it. If the order depends on the size,
+ * the dispatcher first sends a HEAD request and queues the download again at the place its size gives it. A download whose host is at its
+ * limit is parked at the limiter and queued again when a request to the host finishes, so the dispatcher never
+ * waits for a single host while the downloads from the others could start. Failed downloads are queued again
+ * after a backoff as far as the {@link RetryPolicy} allows, the others are written to the {@link FailureJournal}
+ * of their directory.
+ * <p>
+ * The validators of every download are kept in the {@link ValidatorCache} of its directory. With
+ * {@link #setRevalidateAfter(long)} a complete file checked longer ago is not skipped but revalidated with a
+ * conditional GET, a 304 costs no more than the response head.
+ * <p>
+ * The bodies are read no faster than the byte rate limits of the {@link Bandwidth} allow, see
+ * {@link #setBandwidth(Bandwidth)}.
+ * <p>
+ * {@link #submitOnce(String, String)} drops urls submitted to the same directory before in this process, no matter
+ * if they came from the crawl, a url file or an earlier call. The urls are kept as 64 bit fingerprints in an
+ * {@link UrlFilter} per directory, a few bytes per url instead of a string each.
+ * <p>
+ * The service shared by the whole process is returned by {@link #shared()} and must be closed at the end of
+ * the program, otherwise the threads of the http client keep the JVM alive.
+ */
+public class DownloadService implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(DownloadService.class.getName());
+
+    /**
+     * max number of downloads waiting for the dispatcher
+     */
+    static final int QUEUE_CAPACITY = 1000;
+
+    private static final IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+            .setSoTimeout(Timeout.ofSeconds(30))
+            .build();
+
+    private static DownloadService shared = null;
+
+    private static final Metrics.Counter COMPLETED = Metrics.shared()
+            .counter("tulido_downloads_completed_total", "Downloads finished successfully");
+    private static final Metrics.Counter FAILED = Metrics.shared()
+            .counter("tulido_downloads_failed_total", "Downloads failed for good");
+    private static final Metrics.Counter SKIPPED = Metrics.shared()
+            .counter("tulido_downloads_skipped_total", "Downloads skipped because the file is complete");
+    private static final Metrics.Counter NOT_MODIFIED = Metrics.shared()
+            .counter("tulido_downloads_not_modified_total", "Revalidated files the server confirmed as unchanged");
+    private static final Metrics.Counter DUPLICATES = Metrics.shared()
+            .counter("tulido_downloads_duplicate_total", "Downloads dropped because the url was submitted before");
+    private static final Metrics.Counter RETRIES = Metrics.shared()
+            .counter("tulido_download_retries_total", "Download attempts scheduled again after a failure");
+    private static final Metrics.Counter BYTES = Metrics.shared()
+            .counter("tulido_download_bytes_total", "Bytes received by downloads");
+    private static final Metrics.Histogram LATENCY = Metrics.shared()
+            .histogram("tulido_download_seconds", "Duration of successful download requests", Metrics.LATENCY_BUCKETS);
+    private static final Metrics.Histogram SIZE = Metrics.shared()
+            .histogram("tulido_download_size_bytes", "Size of the downloaded files", Metrics.SIZE_BUCKETS);
+
+    /**
+     * marks the end of the queue
+     */
+    private static final Task POISON = new Task(null, null, null, null, null, null, Integer.MAX_VALUE);
+
+    private final CloseableHttpAsyncClient client;
+    private final HostLimiters limiters = new HostLimiters();
+    private final BlockingQueue<Task> queue;
+    /**
+     * free places in the queue, retries don't take one
+     */
+    private final Semaphore slots;
+    private final Thread dispatcher;
+
+    /**
+     * downloads queued or running by target file, so a file is never written by two downloads at once
+     */
+    private final ConcurrentMap<Path, Task> running = new ConcurrentHashMap<>();
+
+    /**
+     * manifests of the download directories by absolute path
+     */
+    private final ConcurrentMap<Path, DownloadManifest> manifests = new ConcurrentHashMap<>();
+
+    /**
+     * failure journals of the download directories by absolute path
+     */
+    private final ConcurrentMap<Path, FailureJournal> journals = new ConcurrentHashMap<>();
+
+    /**
+     * validator caches of the download directories by absolute path
+     */
+    private final ConcurrentMap<Path, ValidatorCache> validators = new ConcurrentHashMap<>();
+
+    /**
+     * urls submitted with {@link #submitOnce(String, String)} by absolute path of the download directory
+     */
+    private final ConcurrentMap<Path, UrlFilter> submitted = new ConcurrentHashMap<>();
+
+    private final RetryPolicy retryPolicy = new RetryPolicy();
+
+    /**
+     * gives throttled downloads the capacity for their next bytes
+     */
+    private final ScheduledExecutorService throttler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "download-throttle");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * starts the retries of failed downloads after their backoff
+     */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "download-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Object lock = new Object();
+
+    /**
+     * number of submitted downloads not finished yet, guarded by lock
+     */
+    private int pending = 0;
+
+    private volatile boolean closed = false;
+
+    /**
+     * content-addressed store for the downloads or null to store the files directly
+     */
+    private volatile BlobStore blobStore = null;
+
+    /**
+     * milliseconds after which a complete file is revalidated, -1 to skip complete files
+     */
+    private volatile long revalidateAfter = -1;
+
+    private volatile Bandwidth bandwidth = Bandwidth.DEFAULT;
+
+    /**
+     * @return the download service of the process. A new one is created if there is none or it was closed.
+     */
+    public static synchronized DownloadService shared() {
+        if (shared == null || shared.closed)
+            shared = new DownloadService(QUEUE_CAPACITY);
+        return shared;
+    }
+
+    /**
+     * creates and starts a download service
+     *
+     * @param queueCapacity max number of downloads waiting to be started
+     */
+    public DownloadService(int queueCapacity) {
+        client = HttpAsyncClients.custom()
+                .setIOReactorConfig(ioReactorConfig)
+                .setConnectionManager(PoolingAsyncClientConnectionManagerBuilder.create()
+                        .setMaxConnPerRoute(AdaptiveLimiter.MAX_LIMIT)
+                        .setMaxConnTotal(4 * AdaptiveLimiter.MAX_LIMIT)
+                        .build())
+                .build();
+        client.start();
+        queue = new PriorityBlockingQueue<>(queueCapacity, Comparator.<Task>comparingInt(task -> task.priority)
+                .thenComparingLong(task -> task.sequence));
+        slots = new Semaphore(queueCapacity);
+        dispatcher = new Thread(this::dispatch, "download-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        Metrics.shared().gauge("tulido_downloads_pending", "Submitted downloads not finished yet", this::getPending);
+        Metrics.shared().gauge("tulido_downloads_queued", "Downloads waiting for the dispatcher", queue::size);
+    }
+
+    /**
+     * the file name of a download is the last path segment of the url
+     *
+     * @return the path of the file the url is stored to
+     */
+    public static Path targetFile(String targetDir, String url) {
+        return Path.of(targetDir + File.separator + url.substring(url.lastIndexOf("/") + 1));
+    }
+
+    /**
+     * queues the download of the url into the target directory. Urls the manifest of the directory knows as
+     * complete are not downloaded again. Blocks while the queue is full.
+     * <p>
+     * WARNING: targetDir must exist and must be writable.
+     *
+     * @param url       the url to download
+     * @param targetDir the directory to store the file in
+     * @return the future result of the download. The future is never completed exceptionally.
+     */
+    public CompletableFuture<DownloadResult> submit(String url, String targetDir) {
+        if (closed)
+            throw new IllegalStateException("DownloadService is closed");
+        final Path target = targetFile(targetDir, url);
+        final DownloadManifest manifest = manifest(targetDir);
+        final ValidatorCache cache = validators(targetDir);
+        ValidatorCache.Validator validator = null;
+        // don't redownload finished files, unfinished downloads are kept as .part files
+        if (manifest != null ? manifest.isComplete(url, target.getFileName().toString()) : Files.exists(target)) {
+            long maxAge = revalidateAfter;
+            validator = maxAge >= 0 && cache != null && Files.exists(target) ? cache.get(url) : null;
+            if (validator == null || !validator.isStale(maxAge)) {
+                SKIPPED.inc();
+                return CompletableFuture.completedFuture(new DownloadResult(url, target, DownloadResult.Status.SKIPPED, 0, 0));
+            }
+        }
+
+        Task task = new Task(url, target, manifest, journal(targetDir), cache, validator, bandwidth.priority(url));
+        Task other = running.putIfAbsent(target, task);
+        if (other != null)
+            return other.future;
+        synchronized (lock) {
+            pending++;
+        }
+        task.future.whenComplete((r, e) -> {
+            running.remove(target, task);
+            finished();
+        });
+        try {
+            slots.acquire();
+            task.slot = true;
+            queue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.fail(0);
+        }
+        return task.future;
+    }
+
+    /**
+     * queues the download of the url like {@link #submit(String, String)}, unless the url was submitted to the
+     * directory with this method before. Blocks while the queue is full. Once the {@link UrlFilter} of the directory
+     * is full, new urls go to {@link #submit(String, String)} unfiltered and the manifest skips those already downloaded.
+     *
+     * @return the future result of the download, with status {@link DownloadResult.Status#DUPLICATE} for a url
+     * submitted before
+     */
+    public CompletableFuture<DownloadResult> submitOnce(String url, String targetDir) {
+        if (!submitted(targetDir).add(url)) {
+            DUPLICATES.inc();
+            return CompletableFuture.completedFuture(new DownloadResult(url, targetFile(targetDir, url),
+                    DownloadResult.Status.DUPLICATE, 0, 0));
+        }
+        return submit(url, targetDir);
+    }
+
+    /**
+     * @param targetDir the download directory
+     * @return the filter of the urls submitted once to the directory
+     */
+    public UrlFilter submitted(String targetDir) {
+        return submitted.computeIfAbsent(Path.of(targetDir).toAbsolutePath().normalize(), dir -> new UrlFilter(1 << 16));
+    }
+
+    /**
+     * sends a HEAD request for the url with the client and the host limit of the downloads.
+     * Blocks while the limit of the host is reached.
+     *
+     * @param url the url to probe
+     * @return the future http status code, 0 if there was no response
+     * @throws InterruptedException if interrupted while waiting for the host limit
+     */
+    public CompletableFuture<Integer> probe(String url) throws InterruptedException {
+        if (closed)
+            throw new IllegalStateException("DownloadService is closed");
+        AdaptiveLimiter limiter = limiters.forUrl(url);
+        limiter.acquire();
+        return head(url, limiter).thenApply(response -> response != null ? response.getCode() : 0);
+    }
+
+    /**
+     * sends a HEAD request with a request of the host limit already taken and releases it at the end
+     *
+     * @return the future response, null if there was none
+     */
+    private CompletableFuture<SimpleHttpResponse> head(String url, AdaptiveLimiter limiter) {
+        retryPolicy.onRequest(limiter.getHost());
+        CompletableFuture<SimpleHttpResponse> result = new CompletableFuture<>();
+        client.execute(SimpleRequestBuilder.head(url).build(), new FutureCallback<>() {
+            @Override
+            public void completed(SimpleHttpResponse response) {
+                int code = response.getCode();
+                if (code == HttpStatus.SC_TOO_MANY_REQUESTS || code == HttpStatus.SC_SERVICE_UNAVAILABLE)
+                    limiter.onDropped();
+                else
+                    limiter.onSuccess();
+                result.complete(response);
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                if (isOverload(ex))
+                    limiter.onDropped();
+                else
+                    limiter.onIgnored();
+                logger.fine(() -> "HEAD failed : " + url + " : " + ex);
+                result.complete(null);
+            }
+
+            @Override
+            public void cancelled() {
+                limiter.onIgnored();
+                result.complete(null);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * waits until all submitted downloads are finished
+     */
+    public void awaitQuiescence() throws InterruptedException {
+        synchronized (lock) {
+            while (pending > 0)
+                lock.wait();
+        }
+    }
+
+    /**
+     * waits until all submitted downloads are finished or the timeout is reached
+     *
+     * @return true if all downloads are finished
+     */
+    public boolean awaitQuiescence(long timeout, TimeUnit unit) throws InterruptedException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lock) {
+            while (pending > 0) {
+                long wait = TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime());
+                if (wait <= 0)
+                    return false;
+                lock.wait(wait);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of submitted downloads not finished yet
+     */
+    public int getPending() {
+        synchronized (lock) {
+            return pending;
+        }
+    }
+
+    /**
+     * switches the content-addressed storage on or off for the downloads started from now on
+     *
+     * @param blobStore the store for the content of the downloads or null to store the files directly
+     */
+    public void setBlobStore(BlobStore blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * sets the byte rate limits and priorities for the downloads submitted from now on
+     *
+     * @param bandwidth the limits and priorities, {@link Bandwidth#DEFAULT} for none
+     */
+    public void setBandwidth(Bandwidth bandwidth) {
+        this.bandwidth = bandwidth;
+        logger.info(() -> "Bandwidth: " + bandwidth);
+    }
+
+    public Bandwidth getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * switches the revalidation of complete files on or off for the downloads submitted from now on
+     *
+     * @param maxAge milliseconds after the last check a complete file is revalidated with a conditional GET,
+     *               0 to revalidate every complete file, -1 to skip them
+     */
+    public void setRevalidateAfter(long maxAge) {
+        this.revalidateAfter = maxAge;
+    }
+
+    public long getRevalidateAfter() {
+        return revalidateAfter;
+    }
+
+    /**
+     * returns the validator cache of a download directory, it is opened on first use and closed with the service
+     *
+     * @param targetDir the download directory
+     * @return the cache or null if it cannot be opened
+     */
+    public ValidatorCache validators(String targetDir) {
+        return validators.computeIfAbsent(Path.of(targetDir).toAbsolutePath().normalize(), dir -> {
+            try {
+                return ValidatorCache.open(dir);
+            } catch (IOException e) {
+                logger.warning(() -> "Could not open the validators of " + dir + " : " + e);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * returns the manifest of a download directory, it is opened on first use and closed with the service
+     *
+     * @param targetDir the download directory
+     * @return the manifest or null if it cannot be opened
+     */
+    public DownloadManifest manifest(String targetDir) {
+        return manifests.computeIfAbsent(Path.of(targetDir).toAbsolutePath().normalize(), dir -> {
+            try {
+                return DownloadManifest.open(dir);
+            } catch (IOException e) {
+                logger.warning(() -> "Could not open the manifest of " + dir + ", checking files instead : " + e);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param targetDir the download directory
+     * @return the journal of the downloads into the directory that failed for good
+     */
+    public FailureJournal journal(String targetDir) {
+        return journals.computeIfAbsent(Path.of(targetDir).toAbsolutePath().normalize(), FailureJournal::new);
+    }
+
+    /**
+     * @return the current number of parallel requests allowed per host
+     */
+    public Map<String, Integer> getHostLimits() {
+        return limiters.getLimits();
+    }
+
+    /**
+     * stops accepting downloads, waits for the submitted ones and shuts down the http client
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            awaitQuiescence();
+            scheduler.shutdown();
+            queue.put(POISON);
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        client.close(CloseMode.GRACEFUL);
+        throttler.shutdownNow();
+        for (DownloadManifest manifest : manifests.values()) {
+            try {
+                manifest.close();
+            } catch (IOException e) {
+                logger.warning(() -> "Could not close manifest : " + e);
+            }
+        }
+        for (ValidatorCache cache : validators.values()) {
+            try {
+                if (cache != null)
+                    cache.close();
+            } catch (IOException e) {
+                logger.warning(() -> "Could not close validators : " + e);
+            }
+        }
+        logger.info(() -> "Download service closed. Host limits: " + getHostLimits());
+    }
+
+    private void finished() {
+        synchronized (lock) {
+            pending--;
+            if (pending == 0)
+                lock.notifyAll();
+        }
+    }
+
+    private void dispatch() {
+        try {
+            while (true) {
+                Task task = queue.take();
+                if (task == POISON)
+                    return;
+                if (task.slot) {
+                    task.slot = false;
+                    slots.release();
+                }
+                AdaptiveLimiter limiter = limiters.forUrl(task.url);
+                if (task.permit || limiter.acquireOrPark(() -> handOver(task))) {
+                    task.permit = false;
+                    Bandwidth current = bandwidth;
+                    if (task.size == Task.UNKNOWN && task.validator == null && current.needsSize(task.url))
+                        measure(task, limiter, current);
+                    else
+                        execute(task, limiter);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queue.forEach(task -> task.fail(0));
+        }
+    }
+
+    /**
+     * asks for the size of a download with a HEAD request and queues it again at its place in the priority order.
+     * If the size stays unknown the download keeps the place of its class.
+     */
+    private void measure(Task task, AdaptiveLimiter limiter, Bandwidth bandwidth) {
+        task.size = -1;
+        head(task.url, limiter).thenAccept(response -> {
+            Header length = response != null && response.getCode() == HttpStatus.SC_OK
+                    ? response.getFirstHeader(HttpHeaders.CONTENT_LENGTH) : null;
+            try {
+                if (length != null)
+                    task.size = Long.parseLong(length.getValue().trim());
+            } catch (NumberFormatException e) {
+                // keep -1
+            }
+            task.priority = bandwidth.priority(task.url, task.size);
+            logger.fine(() -> "size " + task.size + ", priority " + task.priority + " : " + task.url);
+            queue.add(task);
+        });
+    }
+
+    private void execute(Task task, AdaptiveLimiter limiter) {
+        final String url = task.url;
+        final ResumableDownload download = new ResumableDownload(url, task.target, blobStore).conditional(task.validator);
+        final SimpleHttpRequest request;
+        try {
+            request = download.createRequest();
+        } catch (IOException e) {
+            logger.warning(() -> url + "->" + e);
+            limiter.onIgnored();
+            task.fail(0);
+            return;
+        }
+
+        final long t = System.nanoTime();
+        task.attempts++;
+        retryPolicy.onRequest(limiter.getHost());
+        logger.fine(() -> "downloading start     : " + url);
+        client.execute(
+                SimpleRequestProducer.create(request),
+                new DownloadResponseConsumer(download, throttle(url, bandwidth)),
+                new FutureCallback<>() {
+                    @Override
+                    public void completed(final Message<HttpResponse, Long> message) {
+                        int code = message.getHead().getCode();
+                        if (code == HttpStatus.SC_TOO_MANY_REQUESTS || code == HttpStatus.SC_SERVICE_UNAVAILABLE)
+                            limiter.onDropped();
+                        else
+                            limiter.onSuccess();
+                        BYTES.add(message.getBody());
+                        try {
+                            if (download.complete(message)) {
+                                if (code == HttpStatus.SC_NOT_MODIFIED) {
+                                    logger.fine(() -> "not modified : " + url);
+                                    task.notModified();
+                                    return;
+                                }
+                                long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t);
+                                logger.fine(() -> "downloading success: " + time + "msec : " + message.getBody() + " bytes : " + url);
+                                LATENCY.observeSince(t);
+                                task.succeed(code, message.getBody(), download.getContentDigest(),
+                                        download.getEtag(), download.getLastModified());
+                                return;
+                            }
+                            retryOrFail(task, RetryPolicy.classify(code), code,
+                                    RetryPolicy.retryAfterMillis(message.getHead()), "http status " + code);
+                        } catch (IOException e) {
+                            retryOrFail(task, RetryPolicy.Kind.IO, code, 0, e.toString());
+                        }
+                    }
+
+                    @Override
+                    public void failed(final Exception ex) {
+                        if (isOverload(ex))
+                            limiter.onDropped();
+                        else
+                            limiter.onIgnored();
+                        retryOrFail(task, RetryPolicy.classify(ex), 0, 0, ex.toString());
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        limiter.onIgnored();
+                        retryOrFail(task, RetryPolicy.Kind.CANCELLED, 0, 0, "cancelled");
+                    }
+
+                });
+    }
+
+    /**
+     * schedules another attempt of a failed download if the retry policy allows it, otherwise the download
+     * fails for good and is written to the failure journal of its directory
+     */
+    private void retryOrFail(Task task, RetryPolicy.Kind kind, int code, long retryAfterMillis, String reason) {
+        String host = HostLimiters.authority(task.url);
+        if (!scheduler.isShutdown() && retryPolicy.shouldRetry(kind, task.attempts, host)) {
+            long delay = retryPolicy.backoffMillis(task.attempts, retryAfterMillis);
+            logger.fine(() -> kind + " (" + reason + "), attempt " + task.attempts + ", retrying in " + delay + " msec : " + task.url);
+            RETRIES.inc();
+            scheduler.schedule(() -> requeue(task), delay, TimeUnit.MILLISECONDS);
+            return;
+        }
+        logger.warning(() -> kind + " (" + reason + ") after " + task.attempts + " attempts : " + task.url);
+        try {
+            if (task.journal != null)
+                task.journal.record(task.url, kind, code, task.attempts, reason);
+        } catch (IOException e) {
+            logger.warning(() -> "Could not journal " + task.url + " : " + e);
+        }
+        task.fail(code);
+    }
+
+    private void requeue(Task task) {
+        queue.add(task);
+    }
+
+    /**
+     * queues a parked download again with the request the limiter of its host took for it
+     */
+    private void handOver(Task task) {
+        task.permit = true;
+        queue.add(task);
+    }
+
+    /**
+     * @return the throttle for the body of a download, null if its class has no limit
+     */
+    private DownloadResponseConsumer.Throttle throttle(String url, Bandwidth bandwidth) {
+        return (consumer, contentLength) -> {
+            ByteRateLimiter[] limiters = bandwidth.limiters(url, contentLength);
+            return limiters.length == 0 ? consumer : new ThrottledEntityConsumer<>(consumer, limiters, throttler);
+        };
+    }
+
+    /**
+     * @return true if the exception shows that the host does not keep up with the requests
+     */
+    private static boolean isOverload(Exception ex) {
+        return ex instanceof SocketTimeoutException || ex instanceof TimeoutException
+                || ex instanceof ConnectException;
+    }
+
+    private static class Task {
+        /**
+         * keeps the order of submission within a priority
+         */
+        private static final AtomicLong SEQUENCE = new AtomicLong();
+
+        final String url;
+        final Path target;
+        final DownloadManifest manifest;
+        final FailureJournal journal;
+        final ValidatorCache validators;
+        /**
+         * the validators of the existing file for a revalidation, otherwise null
+         */
+        final ValidatorCache.Validator validator;
+        final CompletableFuture<DownloadResult> future = new CompletableFuture<>();
+        static final long UNKNOWN = -2;
+
+        /**
+         * the position of the traffic class in the priority order, lower is dispatched first.
+         * Only changed while the task is out of the queue.
+         */
+        volatile int priority;
+        /**
+         * the Content-Length from a HEAD request, -1 if the server didn't tell, {@link #UNKNOWN} if not asked
+         */
+        volatile long size = UNKNOWN;
+        final long sequence = SEQUENCE.getAndIncrement();
+        /**
+         * does the task hold a place in the queue?
+         */
+        volatile boolean slot = false;
+        /**
+         * did the limiter of the host take a request for the parked task?
+         */
+        volatile boolean permit = false;
+
+        /**
+         * number of requests made, changed by one thread at a time as the task moves through queue and client
+         */
+        volatile int attempts = 0;
+
+        Task(String url, Path target, DownloadManifest manifest, FailureJournal journal,
+             ValidatorCache validators, ValidatorCache.Validator validator, int priority) {
+            this.url = url;
+            this.target = target;
+            this.manifest = manifest;
+            this.journal = journal;
+            this.validators = validators;
+            this.validator = validator;
+            this.priority = priority;
+        }
+
+        void succeed(int code, long bytes, String digest, String etag, String lastModified) {
+            COMPLETED.inc();
+            try {
+                long size = Files.size(target);
+                SIZE.observe(size);
+                if (manifest != null)
+                    manifest.record(url, DownloadManifest.Status.COMPLETE, size, digest);
+                if (validators != null)
+                    validators.record(url, etag, lastModified);
+            } catch (IOException e) {
+                logger.warning(() -> "Could not record " + url + " : " + e);
+            }
+            future.complete(new DownloadResult(url, target, DownloadResult.Status.DOWNLOADED, code, bytes));
+        }
+
+        void notModified() {
+            NOT_MODIFIED.inc();
+            try {
+                if (validators != null)
+                    validators.confirm(url);
+            } catch (IOException e) {
+                logger.warning(() -> "Could not record " + url + " : " + e);
+            }
+            future.complete(new DownloadResult(url, target, DownloadResult.Status.NOT_MODIFIED, HttpStatus.SC_NOT_MODIFIED, 0));
+        }
+
+        void fail(int code) {
+            FAILED.inc();
+            try {
+                // a failed revalidation leaves the complete file as it is
+                if (manifest != null && validator == null)
+                    manifest.record(url, DownloadManifest.Status.FAILED, code, null);
+            } catch (IOException e) {
+                logger.warning(() -> "Could not record " + url + " : " + e);
+            }
+            future.complete(new DownloadResult(url, target, DownloadResult.Status.FAILED, code, 0));
+        }
+    }
+}
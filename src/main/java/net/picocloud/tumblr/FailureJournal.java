@@ -0,0 +1,70 @@
+package net.picocloud.tumblr;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Append-only journal of the downloads into one directory that failed for good.
+ * <p>
+ * Every line is {@code timestamp TAB kind TAB code TAB attempts TAB url TAB message}. A later run reads the urls
+ * with {@link #drain()} and tries them again.
+ */
+public class FailureJournal {
+
+    static final String JOURNAL = ".failures.journal";
+
+    private final Path file;
+
+    /**
+     * @param dir the download directory
+     */
+    public FailureJournal(Path dir) {
+        this.file = dir.resolve(JOURNAL);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * appends a failed download
+     *
+     * @throws IOException if the journal cannot be written
+     */
+    public synchronized void record(String url, RetryPolicy.Kind kind, int code, int attempts, String message) throws IOException {
+        String line = System.currentTimeMillis() + "\t" + kind + "\t" + code + "\t" + attempts + "\t" + url + "\t"
+                + (message == null ? "" : message.replace('\t', ' ').replace('\n', ' ')) + "\n";
+        Files.writeString(file, line, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * takes all urls out of the journal. The journal is renamed to {@code .failures.journal.<timestamp>} first, so
+     * failures of the next attempts go to a fresh journal.
+     *
+     * @return the distinct urls of the journal in the order of their failure
+     * @throws IOException if the journal cannot be read or renamed
+     */
+    public synchronized Set<String> drain() throws IOException {
+        Set<String> urls = new LinkedHashSet<>();
+        if (!Files.exists(file))
+            return urls;
+        Path old = file.resolveSibling(JOURNAL + "." + System.currentTimeMillis());
+        Files.move(file, old, StandardCopyOption.ATOMIC_MOVE);
+        try (BufferedReader reader = Files.newBufferedReader(old, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 6);
+                if (fields.length >= 5 && !fields[4].isEmpty())
+                    urls.add(fields[4]);
+            }
+        }
+        return urls;
+    }
+}
@@ -0,0 +1,102 @@
+package net.picocloud.tumblr;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.nio.entity.AbstractBinAsyncEntityConsumer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams the body of a http response directly into a file.
+ * <p>
+ * Every chunk is written to a {@link FileChannel} as soon as it arrives, so the memory used
+ * per transfer is bounded by {@link #BUFFER_SIZE} whatever the size of the file.
+ * Writing can start at a position behind the beginning of the file to continue a partial download.
+ * If a {@link MessageDigest} is given, it is updated with every chunk written.
+ * The result of the consumer is the number of bytes written.
+ */
+public class FileEntityConsumer extends AbstractBinAsyncEntityConsumer<Long> {
+
+    private static final Logger logger = Logger.getLogger(FileEntityConsumer.class.getName());
+
+    /**
+     * max number of bytes buffered by the http client for one transfer
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path target;
+    private final long position;
+    private final MessageDigest digest;
+    private FileChannel channel;
+    private long written = 0;
+
+    /**
+     * @param target the file to write to. An existing file gets overwritten.
+     */
+    public FileEntityConsumer(Path target) {
+        this(target, 0);
+    }
+
+    /**
+     * @param target   the file to write to
+     * @param position the position to start writing at. Everything behind this position gets cut off.
+     */
+    public FileEntityConsumer(Path target, long position) {
+        this(target, position, null);
+    }
+
+    /**
+     * @param target   the file to write to
+     * @param position the position to start writing at. Everything behind this position gets cut off.
+     * @param digest   the digest to update with the written bytes or null
+     */
+    public FileEntityConsumer(Path target, long position, MessageDigest digest) {
+        this.target = target;
+        this.position = position;
+        this.digest = digest;
+    }
+
+    @Override
+    protected void streamStart(ContentType contentType) throws IOException {
+        channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(position);
+        channel.position(position);
+    }
+
+    @Override
+    protected int capacityIncrement() {
+        return BUFFER_SIZE;
+    }
+
+    @Override
+    protected void data(ByteBuffer src, boolean endOfStream) throws IOException {
+        if (digest != null)
+            digest.update(src.duplicate());
+        while (src.hasRemaining()) {
+            written += channel.write(src);
+        }
+    }
+
+    @Override
+    protected Long generateContent() {
+        return written;
+    }
+
+    @Override
+    public void releaseResources() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not close " + target, e);
+        }
+        channel = null;
+    }
+}
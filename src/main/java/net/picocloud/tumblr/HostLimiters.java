@@ -0,0 +1,45 @@
+package net.picocloud.tumblr;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * One {@link AdaptiveLimiter} per host, keyed by the authority of the url (e.g. 64.media.tumblr.com).
+ */
+public class HostLimiters {
+
+    private final ConcurrentMap<String, AdaptiveLimiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * @param url the url to request
+     * @return the limiter of the host of the url
+     */
+    public AdaptiveLimiter forUrl(String url) {
+        return forHost(authority(url));
+    }
+
+    public AdaptiveLimiter forHost(String host) {
+        return limiters.computeIfAbsent(host, AdaptiveLimiter::new);
+    }
+
+    /**
+     * @return the current concurrency limit of every host seen so far, sorted by host
+     */
+    public Map<String, Integer> getLimits() {
+        Map<String, Integer> map = new TreeMap<>();
+        limiters.forEach((host, limiter) -> map.put(host, limiter.getLimit()));
+        return map;
+    }
+
+    static String authority(String url) {
+        try {
+            String authority = URI.create(url).getAuthority();
+            return authority == null ? "" : authority;
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package net.picocloud.tumblr;
+
+import java.nio.ByteBuffer;
+import java.util.function.LongConsumer;
+
+/**
+ * Set of longs, e.g. url fingerprints, in one primitive array.
+ * <p>
+ * Open addressing with linear probing, 8 bytes per slot. The table doubles when it is half full, so a key costs
+ * 16 bytes on average instead of the hundreds a {@code HashSet<String>} of urls needs. The table can be kept
+ * off-heap in a direct buffer to keep large sets out of the garbage collected heap. 0 can't be stored, use
+ * {@link Fingerprint} which never returns 0. Not thread safe.
+ */
+public class LongHashSet {
+
+    static final int MIN_CAPACITY = 1 << 10;
+
+    /**
+     * a buffer holds at most 2^31 - 1 bytes, so the largest table is 2^27 slots of 8 bytes, 1 GB
+     */
+    static final int MAX_CAPACITY = 1 << 27;
+
+    private final boolean offHeap;
+    private final int maxCapacity;
+    private ByteBuffer table;
+    private int capacity;
+    private int size = 0;
+
+    /**
+     * @param expected the expected number of keys
+     * @param offHeap  true to keep the table in a direct buffer outside of the heap
+     */
+    public LongHashSet(long expected, boolean offHeap) {
+        this(expected, offHeap, MAX_CAPACITY);
+    }
+
+    /**
+     * @param maxCapacity the largest table in slots, a power of 2 of at least {@link #MIN_CAPACITY}
+     */
+    LongHashSet(long expected, boolean offHeap, int maxCapacity) {
+        this.offHeap = offHeap;
+        this.maxCapacity = maxCapacity;
+        this.capacity = Math.min(capacityFor(expected), maxCapacity);
+        this.table = allocate(capacity);
+    }
+
+    /**
+     * @param key the key, not 0
+     * @return true if the key was not in the set
+     * @throws IllegalStateException if the key is new and the set {@link #isFull()}
+     */
+    public boolean add(long key) {
+        if (key == 0)
+            throw new IllegalArgumentException("key 0 is reserved");
+        int slot = find(key);
+        if (table.getLong(slot * Long.BYTES) == key)
+            return false;
+        if ((size + 1) * 2L > capacity) {
+            grow();
+            slot = find(key);
+        }
+        table.putLong(slot * Long.BYTES, key);
+        size++;
+        return true;
+    }
+
+    public boolean contains(long key) {
+        return key != 0 && table.getLong(find(key) * Long.BYTES) == key;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the table is at its largest size and can't take another key
+     */
+    public boolean isFull() {
+        return capacity >= maxCapacity && (size + 1) * 2L > capacity;
+    }
+
+    /**
+     * passes every key of the set to the action, in no particular order
+     */
+    public void forEach(LongConsumer action) {
+        for (int i = 0; i < capacity; i++) {
+            long k = table.getLong(i * Long.BYTES);
+            if (k != 0)
+                action.accept(k);
+        }
+    }
+
+    /**
+     * @return the number of bytes used by the table
+     */
+    public long bytes() {
+        return (long) capacity * Long.BYTES;
+    }
+
+    private int find(long key) {
+        int mask = capacity - 1;
+        int slot = (int) Fingerprint.mix(key) & mask;
+        while (true) {
+            long k = table.getLong(slot * Long.BYTES);
+            if (k == 0 || k == key)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void grow() {
+        if (capacity >= maxCapacity)
+            throw new IllegalStateException("set is full: " + size + " keys");
+        ByteBuffer old = table;
+        int oldCapacity = capacity;
+        capacity *= 2;
+        table = allocate(capacity);
+        for (int i = 0; i < oldCapacity; i++) {
+            long k = old.getLong(i * Long.BYTES);
+            if (k != 0)
+                table.putLong(find(k) * Long.BYTES, k);
+        }
+    }
+
+    private ByteBuffer allocate(int slots) {
+        return offHeap ? ByteBuffer.allocateDirect(slots * Long.BYTES) : ByteBuffer.allocate(slots * Long.BYTES);
+    }
+
+    static int capacityFor(long expected) {
+        long capacity = MIN_CAPACITY;
+        while (capacity < expected * 2 && capacity < MAX_CAPACITY)
+            capacity *= 2;
+        return (int) capacity;
+    }
+}
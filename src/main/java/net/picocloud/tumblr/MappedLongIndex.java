@@ -0,0 +1,174 @@
+package net.picocloud.tumblr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Hash map from long to long in a memory-mapped file.
+ * <p>
+ * Open addressing with linear probing. A slot is 16 bytes: the key and the value. The key 0 marks an empty slot
+ * and can't be stored. The table doubles when it is half full. Besides the table the header holds a watermark,
+ * a long the owner can use to remember up to where its data is indexed.
+ * <p>
+ * The mapping of one file is limited to 2 GB, so the index holds at most {@link #MAX_CAPACITY} / 2 keys.
+ * Not thread safe.
+ */
+public class MappedLongIndex implements Closeable {
+
+    private static final long MAGIC = 0x544c44494458_0001L;
+    static final int MIN_CAPACITY = 1 << 10;
+    static final int MAX_CAPACITY = 1 << 26;
+
+    /**
+     * magic, capacity, size, watermark
+     */
+    private static final int HEADER = 4 * Long.BYTES;
+    private static final int SLOT = 2 * Long.BYTES;
+
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int size;
+
+    /**
+     * opens an existing index or creates a new one
+     *
+     * @param file the file of the index
+     * @throws IOException if the file cannot be mapped
+     */
+    public MappedLongIndex(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() >= HEADER) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+            long cap = buffer.getLong(8);
+            if (buffer.getLong(0) == MAGIC && cap >= MIN_CAPACITY && cap <= MAX_CAPACITY && Long.bitCount(cap) == 1
+                    && channel.size() >= HEADER + cap * SLOT) {
+                capacity = (int) cap;
+                map();
+                size = (int) buffer.getLong(16);
+                return;
+            }
+        }
+        capacity = MIN_CAPACITY;
+        map();
+        clear();
+    }
+
+    /**
+     * @return the value of the key or -1 if the key is not in the index
+     */
+    public long get(long key) {
+        int slot = find(key);
+        return buffer.getLong(offset(slot)) == 0 ? -1 : buffer.getLong(offset(slot) + Long.BYTES);
+    }
+
+    /**
+     * stores the value for the key, an old value is replaced
+     *
+     * @param key   the key, not 0
+     * @param value the value
+     * @throws IOException if the index cannot be enlarged
+     */
+    public void put(long key, long value) throws IOException {
+        if (key == 0)
+            throw new IllegalArgumentException("key 0 is reserved");
+        int slot = find(key);
+        int pos = offset(slot);
+        if (buffer.getLong(pos) == 0) {
+            if ((size + 1) * 2L > capacity) {
+                grow();
+                put(key, value);
+                return;
+            }
+            buffer.putLong(pos, key);
+            size++;
+            buffer.putLong(16, size);
+        }
+        buffer.putLong(pos + Long.BYTES, value);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getWatermark() {
+        return buffer.getLong(24);
+    }
+
+    public void setWatermark(long watermark) {
+        buffer.putLong(24, watermark);
+    }
+
+    /**
+     * removes all keys and resets the watermark
+     */
+    public void clear() {
+        for (int i = 0; i < capacity; i++) {
+            buffer.putLong(offset(i), 0);
+            buffer.putLong(offset(i) + Long.BYTES, 0);
+        }
+        size = 0;
+        buffer.putLong(0, MAGIC);
+        buffer.putLong(8, capacity);
+        buffer.putLong(16, 0);
+        buffer.putLong(24, 0);
+    }
+
+    /**
+     * writes the changes to the storage device
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private int find(long key) {
+        int mask = capacity - 1;
+        int slot = (int) Fingerprint.mix(key) & mask;
+        while (true) {
+            long k = buffer.getLong(offset(slot));
+            if (k == 0 || k == key)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static int offset(int slot) {
+        return HEADER + slot * SLOT;
+    }
+
+    private void map() throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity * SLOT);
+    }
+
+    private void grow() throws IOException {
+        if (capacity >= MAX_CAPACITY)
+            throw new IOException("index is full: " + size + " keys");
+        long[] keys = new long[size];
+        long[] values = new long[size];
+        int n = 0;
+        for (int i = 0; i < capacity; i++) {
+            long k = buffer.getLong(offset(i));
+            if (k != 0) {
+                keys[n] = k;
+                values[n++] = buffer.getLong(offset(i) + Long.BYTES);
+            }
+        }
+        long watermark = getWatermark();
+        capacity *= 2;
+        map();
+        clear();
+        setWatermark(watermark);
+        for (int i = 0; i < n; i++)
+            put(keys[i], values[i]);
+    }
+}
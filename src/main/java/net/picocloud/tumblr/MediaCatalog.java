@@ -0,0 +1,370 @@
+package net.picocloud.tumblr;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Catalog of the media found by a crawl: one record per media item with the post it belongs to, its type, the
+ * like page and the time of the crawl.
+ * <p>
+ * The records are written as NDJSON, one json object per line, or in a compact binary format. They are encoded
+ * into a buffer and written with a single channel in group commits: a commit writes all buffered records and
+ * forces them to the disk, it happens when {@link #GROUP_BYTES} are buffered, {@link #GROUP_MILLIS} after the last
+ * commit, and on {@link #close()}. The time is checked on every add and by a timer, so records don't wait in the
+ * buffer when the crawl stalls. An existing catalog is appended to, after a record cut off by a crash is dropped.
+ * <p>
+ * The binary file starts with the magic {@code TMC1}, a record is: type byte, crawl time as long, page as int,
+ * post url and media url as varint length + UTF-8. The post url of a record is written as length 0 if it is the
+ * post of the record before, otherwise with length + 1.
+ */
+public class MediaCatalog implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(MediaCatalog.class.getName());
+
+    public static final String NDJSON_FILE = "media.ndjson";
+    public static final String BINARY_FILE = "media.bin";
+
+    static final int GROUP_BYTES = 64 * 1024;
+    static final long GROUP_MILLIS = 1000;
+
+    private static final byte[] MAGIC = {'T', 'M', 'C', '1'};
+
+    private static final Metrics.Counter RECORDS = Metrics.shared()
+            .counter("tulido_catalog_records_total", "Media records written to the catalog");
+    private static final Metrics.Counter COMMITS = Metrics.shared()
+            .counter("tulido_catalog_commits_total", "Group commits of the media catalog");
+
+    public enum Format {
+        NDJSON(NDJSON_FILE), BINARY(BINARY_FILE);
+
+        private final String fileName;
+
+        Format(String fileName) {
+            this.fileName = fileName;
+        }
+
+        /**
+         * @return the name of the catalog file in the target directory
+         */
+        public String getFileName() {
+            return fileName;
+        }
+    }
+
+    public enum Type {
+        PHOTO, VIDEO
+    }
+
+    /**
+     * a media item of the catalog
+     */
+    public static class Entry {
+        private final String post;
+        private final String media;
+        private final Type type;
+        private final int page;
+        private final long crawledAt;
+
+        /**
+         * @param post      the url of the post with the media, null if unknown
+         * @param media     the url of the media
+         * @param type      photo or video
+         * @param page      the number of the like page
+         * @param crawledAt the time the page was crawled in epoch millis
+         */
+        public Entry(String post, String media, Type type, int page, long crawledAt) {
+            this.post = post;
+            this.media = media;
+            this.type = type;
+            this.page = page;
+            this.crawledAt = crawledAt;
+        }
+
+        public String getPost() {
+            return post;
+        }
+
+        public String getMedia() {
+            return media;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public int getPage() {
+            return page;
+        }
+
+        public long getCrawledAt() {
+            return crawledAt;
+        }
+    }
+
+    private final FileChannel channel;
+    private final Format format;
+    private ByteBuffer buffer = ByteBuffer.allocate(2 * GROUP_BYTES);
+    private String lastPost = null;
+    private long lastCommit = System.currentTimeMillis();
+    private long records = 0;
+
+    /**
+     * commits the records buffered longer than {@link #GROUP_MILLIS} when no add follows
+     */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "catalog-commit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * opens a catalog for appending, a new one is created if the file does not exist
+     *
+     * @param file   the catalog file
+     * @param format the format of the catalog
+     * @return the catalog
+     * @throws IOException if the file cannot be opened
+     */
+    public static MediaCatalog open(Path file, Format format) throws IOException {
+        return new MediaCatalog(file, format);
+    }
+
+    private MediaCatalog(Path file, Format format) throws IOException {
+        this.format = format;
+        if (Files.exists(file)) {
+            if (format == Format.NDJSON)
+                PageArchive.dropPartialLine(file);
+            else
+                dropIncompleteRecord(file);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (format == Format.BINARY && channel.size() == 0)
+            buffer.put(MAGIC);
+        timer.scheduleWithFixedDelay(this::commitIfDue, GROUP_MILLIS, GROUP_MILLIS / 4, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * adds a record, commits if the group is complete
+     *
+     * @throws IOException if a commit fails
+     */
+    public synchronized void add(Entry entry) throws IOException {
+        if (format == Format.NDJSON)
+            encodeJson(entry);
+        else
+            encodeBinary(entry);
+        records++;
+        RECORDS.inc();
+        if (buffer.position() >= GROUP_BYTES || System.currentTimeMillis() - lastCommit >= GROUP_MILLIS)
+            commit();
+    }
+
+    private synchronized void commitIfDue() {
+        if (!channel.isOpen() || System.currentTimeMillis() - lastCommit < GROUP_MILLIS)
+            return;
+        try {
+            commit();
+        } catch (IOException e) {
+            logger.warning(() -> "Commit of the catalog failed: " + e);
+        }
+    }
+
+    /**
+     * writes the buffered records and forces them to the disk
+     *
+     * @throws IOException if the records cannot be written
+     */
+    public synchronized void commit() throws IOException {
+        lastCommit = System.currentTimeMillis();
+        if (buffer.position() == 0)
+            return;
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+        channel.force(false);
+        COMMITS.inc();
+    }
+
+    /**
+     * @return the number of records added
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        timer.shutdown();
+        try {
+            commit();
+        } finally {
+            channel.close();
+        }
+        logger.fine(() -> records + " records written to the catalog");
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    private void encodeBinary(Entry entry) {
+        byte[] media = entry.media.getBytes(StandardCharsets.UTF_8);
+        boolean samePost = entry.post != null && entry.post.equals(lastPost);
+        byte[] post = samePost || entry.post == null ? new byte[0] : entry.post.getBytes(StandardCharsets.UTF_8);
+        ensure(1 + 8 + 4 + 5 + post.length + 5 + media.length);
+        buffer.put((byte) entry.type.ordinal()).putLong(entry.crawledAt).putInt(entry.page);
+        putVarint(samePost ? 0 : post.length + 1);
+        buffer.put(post);
+        putVarint(media.length);
+        buffer.put(media);
+        lastPost = entry.post;
+    }
+
+    private void putVarint(int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private void encodeJson(Entry entry) {
+        StringBuilder json = new StringBuilder(64 + entry.media.length() + (entry.post != null ? entry.post.length() : 0));
+        json.append("{\"post\":");
+        appendJson(json, entry.post);
+        json.append(",\"media\":");
+        appendJson(json, entry.media);
+        json.append(",\"type\":\"").append(entry.type.name().toLowerCase())
+                .append("\",\"page\":").append(entry.page)
+                .append(",\"crawledAt\":").append(entry.crawledAt)
+                .append("}\n");
+        byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        ensure(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static void appendJson(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        json.append('"');
+    }
+
+    /**
+     * reads a binary catalog
+     *
+     * @param file     the catalog file
+     * @param consumer receives the records in the order they were written
+     * @throws IOException if the file cannot be read or is no binary catalog
+     */
+    public static void readBinary(Path file, Consumer<Entry> consumer) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        checkMagic(data, file);
+        if (readRecords(data, consumer) < data.limit())
+            throw new EOFException("Incomplete record at the end of " + file);
+    }
+
+    /**
+     * truncates a binary catalog after its last complete record, the records appended would be read as part of it
+     */
+    private static void dropIncompleteRecord(Path file) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        int end;
+        if (data.limit() < MAGIC.length && Arrays.equals(data.array(), Arrays.copyOf(MAGIC, data.limit()))) {
+            end = 0;
+        } else {
+            checkMagic(data, file);
+            end = readRecords(data, entry -> {
+            });
+        }
+        if (end < data.limit()) {
+            logger.warning("Dropping an incomplete record at the end of " + file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+        }
+    }
+
+    private static void checkMagic(ByteBuffer data, Path file) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        if (data.remaining() < magic.length)
+            throw new IOException("Not a media catalog: " + file);
+        data.get(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new IOException("Not a media catalog: " + file);
+    }
+
+    /**
+     * reads the records up to the end of the data or the first incomplete one
+     *
+     * @return the position after the last complete record
+     */
+    private static int readRecords(ByteBuffer data, Consumer<Entry> consumer) {
+        String post = null;
+        Type[] types = Type.values();
+        int end = data.position();
+        try {
+            while (data.hasRemaining()) {
+                Type type = types[data.get()];
+                long crawledAt = data.getLong();
+                int page = data.getInt();
+                int postLength = getVarint(data);
+                if (postLength > 0)
+                    post = postLength == 1 ? null : string(data, postLength - 1);
+                String media = string(data, getVarint(data));
+                consumer.accept(new Entry(post, media, type, page, crawledAt));
+                end = data.position();
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            // cut off
+        }
+        return end;
+    }
+
+    private static String string(ByteBuffer data, int length) {
+        String value = new String(data.array(), data.position(), length, StandardCharsets.UTF_8);
+        data.position(data.position() + length);
+        return value;
+    }
+
+    private static int getVarint(ByteBuffer data) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+}
@@ -1,21 +1,14 @@
 package net.picocloud.tumblr;
 
 import net.picocloud.tumblr.web.Config;
-import org.apache.hc.client5.http.async.methods.*;
-import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
-import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
-import org.apache.hc.core5.concurrent.FutureCallback;
-import org.apache.hc.core5.io.CloseMode;
-import org.apache.hc.core5.reactor.IOReactorConfig;
-import org.apache.hc.core5.util.Timeout;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
@@ -27,14 +20,19 @@ public class MediaLoader {
 
     private static final Logger logger = Logger.getLogger(MediaLoader.class.getName());
 
-    private static final IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
-            .setSoTimeout(Timeout.ofSeconds(30))
-            .build();
-
+    /**
+     * average length of a line in an url file, used to size the duplicate filter
+     */
+    public static final int AVG_URL_LENGTH = 100;
 
     /**
      * downloads all urls in file and stores these files in targetDir
      * <p>
+     * The file is read line by line while the downloads run. Urls already submitted to the directory, from this
+     * file or by the crawl, are dropped by {@link DownloadService#submitOnce(String, String)}, and reading pauses
+     * while the queue of the {@link DownloadService} is full, so the memory used does not grow with the size of
+     * the file.
+     * <p>
      * WARNING: all files in the target directory can get overwritten
      *
      * @param file      the path to the file with all the urls (one url per line)
@@ -43,28 +41,80 @@ public class MediaLoader {
      */
     public static void loadMediaFromFile(String file, String targetDir) throws IOException {
         Config.createTargetDir(targetDir);
-        logger.info("Reading input file...");
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            Set<String> set = new HashSet<>();
+        logger.info(() -> "Downloading urls from " + file + " to " + targetDir);
+        DownloadService service = DownloadService.shared();
+        UrlFilter seen = service.submitted(targetDir);
+        Progress progress = new Progress();
+        long duplicates = 0;
+        try (BufferedReader reader = Files.newBufferedReader(Path.of(file), StandardCharsets.UTF_8)) {
             String line;
             while ((line = reader.readLine()) != null) {
-                set.add(line);
+                String url = line.trim();
+                if (url.isEmpty())
+                    continue;
+                if (seen.contains(url)) {
+                    duplicates++;
+                    continue;
+                }
+                progress.submitted();
+                service.submitOnce(url, targetDir).whenComplete((result, ex) -> progress.finished());
             }
-            logger.info("Starting download ...");
-            getMedia(targetDir, set);
         }
+        long dups = duplicates;
+        logger.info(() -> "Read " + progress.getSubmitted() + " urls, skipped " + dups + " duplicates. Filter size: "
+                + seen.bytes() / 1024 + " KB");
+        waitForAllDownloads(progress);
         logger.info("Ready");
     }
 
 
     /**
-     * max number of parallel http requests
+     * downloads the urls of the failure journal of a directory again. The journal is emptied first,
+     * urls which fail again are written to a new one.
+     *
+     * @param targetDir the directory of the failed downloads
+     * @throws IOException if the journal cannot be read
      */
-    private static final Semaphore semaphore = new Semaphore(20);
+    public static void retryFailed(String targetDir) throws IOException {
+        DownloadService service = DownloadService.shared();
+        Set<String> urls = service.journal(targetDir).drain();
+        logger.info(() -> "Retrying " + urls.size() + " failed downloads in " + targetDir);
+        getMedia(targetDir, urls);
+    }
+
+    /**
+     * revalidates the downloads of a directory checked longer than maxAge ago with conditional GETs.
+     * Unchanged files cost a 304 response, changed ones are downloaded again.
+     *
+     * @param targetDir the download directory
+     * @param maxAge    milliseconds a check is valid, 0 to revalidate all files with validators
+     */
+    public static void revalidate(String targetDir, long maxAge) {
+        DownloadService service = DownloadService.shared();
+        ValidatorCache cache = service.validators(targetDir);
+        if (cache == null)
+            return;
+        long before = service.getRevalidateAfter();
+        service.setRevalidateAfter(maxAge);
+        try {
+            Set<String> urls = new LinkedHashSet<>(cache.stale(maxAge));
+            logger.info(() -> "Revalidating " + urls.size() + " of " + cache.size() + " files in " + targetDir);
+            getMedia(targetDir, urls);
+        } finally {
+            service.setRevalidateAfter(before);
+        }
+    }
+
+    /**
+     * @return the current number of parallel requests allowed per host
+     */
+    public static Map<String, Integer> getHostLimits() {
+        return DownloadService.shared().getHostLimits();
+    }
 
     /**
      * downloads all urls and stores the result in targetDir.
-     * The download uses an async http client and can use a lot of bandwidth.
+     * The downloads are passed to the shared {@link DownloadService}, this method waits until all are finished.
      * <p>
      * WARNING: targetDir must exist and must be writable.
      *
@@ -79,37 +129,32 @@ public class MediaLoader {
         int size = urls.size();
         logger.info(() -> "Downloading " + size + " files to " + targetDir);
 
-        final CloseableHttpAsyncClient client = HttpAsyncClients.custom()
-                .setIOReactorConfig(ioReactorConfig)
-
-                .build();
-        client.start();
-
-        CountDownLatch latch = new CountDownLatch(size);
+        DownloadService service = DownloadService.shared();
+        Progress progress = new Progress();
 
         // create async download tasks
         for (var url : urls) {
-            createDownloadTask(targetDir, url, latch, client);
+            progress.submitted();
+            service.submit(url, targetDir).whenComplete((result, ex) -> progress.finished());
         }
 
         // wait for downloads to finish
-        waitForAllDownloads(latch);
-        client.close(CloseMode.GRACEFUL);
-        logger.info(() -> "Downloading " + size + " files finished.");
+        waitForAllDownloads(progress);
+        logger.info(() -> "Downloading " + size + " files finished. Host limits: " + getHostLimits());
 
     }
 
-    private static void waitForAllDownloads(CountDownLatch latch) {
-        long oldCount = latch.getCount();
+    private static void waitForAllDownloads(Progress progress) {
+        long oldCount = progress.getRemaining();
         long tc = System.currentTimeMillis();
-        while (latch.getCount() > 0) {
+        while (progress.getRemaining() > 0) {
             try {
-                if (!latch.await(10, TimeUnit.SECONDS)) {
-                    long count = latch.getCount();
+                if (!progress.await(10, TimeUnit.SECONDS)) {
+                    long count = progress.getRemaining();
                     float fps = ((float) (oldCount - count)) / (System.currentTimeMillis() - tc) * 1000;
                     oldCount = count;
                     tc = System.currentTimeMillis();
-                    logger.info(() -> latch.getCount() + " files to process. " + fps + " files per second. ETA: " + count / fps + " seconds.");
+                    logger.info(() -> count + " files to process. " + fps + " files per second. ETA: " + count / fps + " seconds.");
                 }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -117,57 +162,43 @@ public class MediaLoader {
         }
     }
 
-    protected static void createDownloadTask(String targetDir, String url, CountDownLatch latch, CloseableHttpAsyncClient client) {
-        final String filename = targetDir + File.separator + url.substring(url.lastIndexOf("/") + 1);
-        // don't redownload existing files
-        if (Files.exists(Path.of(filename))) {
-            latch.countDown();
-            return;
+    /**
+     * counts submitted and finished downloads without knowing the total number in advance
+     */
+    private static class Progress {
+        private long submitted = 0;
+        private long finished = 0;
+
+        synchronized void submitted() {
+            submitted++;
         }
-        final SimpleHttpRequest request = SimpleRequestBuilder.get().setUri(url).build();
 
-        try {
-            semaphore.acquire();
-            final long t = System.currentTimeMillis();
-            logger.fine(() -> "downloading start     : " + url);
-            client.execute(
-                    SimpleRequestProducer.create(request),
-                    SimpleResponseConsumer.create(),
-                    new FutureCallback<>() {
-                        @Override
-                        public void completed(final SimpleHttpResponse response) {
-                            try (FileOutputStream fos = new FileOutputStream(filename)) {
-                                fos.write(response.getBodyBytes());
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                            long time = System.currentTimeMillis() - t;
-
-                            logger.fine(() -> "downloading success: " + time + "msec : " + url);
-                            latch.countDown();
-                            semaphore.release();
-
-                        }
-
-                        @Override
-                        public void failed(final Exception ex) {
-                            logger.warning(request + "->" + ex);
-                            ex.printStackTrace();
-                            latch.countDown();
-                            semaphore.release();
-                        }
-
-                        @Override
-                        public void cancelled() {
-                            logger.warning(request + " cancelled");
-                            latch.countDown();
-                            semaphore.release();
-                        }
-
-                    });
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            semaphore.release();
+        synchronized void finished() {
+            finished++;
+            if (finished == submitted)
+                notifyAll();
+        }
+
+        synchronized long getSubmitted() {
+            return submitted;
+        }
+
+        synchronized long getRemaining() {
+            return submitted - finished;
+        }
+
+        /**
+         * @return true if all submitted downloads are finished
+         */
+        synchronized boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            long end = System.currentTimeMillis() + unit.toMillis(timeout);
+            while (finished < submitted) {
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0)
+                    return false;
+                wait(wait);
+            }
+            return true;
         }
     }
 
@@ -182,5 +213,6 @@ public class MediaLoader {
         }
         MediaLoader.loadMediaFromFile("sabinedl/videos.txt", "sabinedl/vids");
         MediaLoader.loadMediaFromFile("sabinedl/pics.txt", "sabinedl/pics");
+        DownloadService.shared().close();
     }
 }
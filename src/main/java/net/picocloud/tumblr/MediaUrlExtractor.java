@@ -0,0 +1,153 @@
+package net.picocloud.tumblr;
+
+import java.util.function.Consumer;
+
+/**
+ * Finds the media urls in html, e.g. the body of a text post or the embed code of a video.
+ * <p>
+ * The text is scanned once from start to end without copying it. Inside of tags the attributes
+ * {@code src}, {@code data-src}, {@code poster}, {@code srcset} and {@code data-srcset} are recognised,
+ * with double, single or no quotes, so {@code <img>}, {@code <video>} and {@code <source>} are covered.
+ * Every candidate of a srcset is emitted. Inline {@code data:} urls are ignored.
+ * Only the found urls are allocated as strings.
+ */
+public final class MediaUrlExtractor {
+
+    private MediaUrlExtractor() {
+    }
+
+    /**
+     * @param text the html to scan, null is treated as empty
+     * @param sink receives every url in the order found, duplicates included
+     */
+    public static void extract(CharSequence text, Consumer<? super String> sink) {
+        if (text == null)
+            return;
+        final int n = text.length();
+        boolean inTag = false;
+        int i = 0;
+        while (i < n) {
+            char c = text.charAt(i);
+            if (!inTag) {
+                if (c == '<')
+                    inTag = true;
+                i++;
+            } else if (c == '>') {
+                inTag = false;
+                i++;
+            } else if (c == '"' || c == '\'') { // stray quoted text
+                i = end(text, i + 1, c) + 1;
+            } else if (isNameChar(c)) {
+                int nameStart = i;
+                while (i < n && isNameChar(text.charAt(i)))
+                    i++;
+                int nameEnd = i;
+                i = skipSpaces(text, i);
+                if (i >= n || text.charAt(i) != '=')
+                    continue;
+                i = skipSpaces(text, i + 1);
+                if (i >= n)
+                    break;
+                int valueStart;
+                int valueEnd;
+                char quote = text.charAt(i);
+                if (quote == '"' || quote == '\'') {
+                    valueStart = i + 1;
+                    valueEnd = end(text, valueStart, quote);
+                    i = valueEnd + 1;
+                } else {
+                    valueStart = i;
+                    while (i < n && !Character.isWhitespace(text.charAt(i)) && text.charAt(i) != '>')
+                        i++;
+                    valueEnd = i;
+                }
+                switch (attribute(text, nameStart, nameEnd)) {
+                    case URL:
+                        emit(text, valueStart, valueEnd, sink);
+                        break;
+                    case SRCSET:
+                        emitSrcset(text, valueStart, valueEnd, sink);
+                        break;
+                    default:
+                }
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private enum Attribute {
+        URL, SRCSET, OTHER
+    }
+
+    private static Attribute attribute(CharSequence text, int start, int end) {
+        if (matches(text, start, end, "src") || matches(text, start, end, "data-src") || matches(text, start, end, "poster"))
+            return Attribute.URL;
+        if (matches(text, start, end, "srcset") || matches(text, start, end, "data-srcset"))
+            return Attribute.SRCSET;
+        return Attribute.OTHER;
+    }
+
+    /**
+     * emits the urls of "url [descriptor], url [descriptor], ..."
+     */
+    private static void emitSrcset(CharSequence text, int start, int end, Consumer<? super String> sink) {
+        int i = start;
+        while (i < end) {
+            while (i < end && (Character.isWhitespace(text.charAt(i)) || text.charAt(i) == ','))
+                i++;
+            int urlStart = i;
+            while (i < end && !Character.isWhitespace(text.charAt(i)))
+                i++;
+            int urlEnd = i;
+            if (urlEnd > urlStart && text.charAt(urlEnd - 1) == ',') // candidate without descriptor
+                urlEnd--;
+            emit(text, urlStart, urlEnd, sink);
+            while (i < end && text.charAt(i) != ',') // skip the descriptor
+                i++;
+        }
+    }
+
+    private static void emit(CharSequence text, int start, int end, Consumer<? super String> sink) {
+        while (start < end && Character.isWhitespace(text.charAt(start)))
+            start++;
+        while (end > start && Character.isWhitespace(text.charAt(end - 1)))
+            end--;
+        if (start == end || matches(text, start, Math.min(end, start + 5), "data:"))
+            return;
+        String url = text.subSequence(start, end).toString();
+        sink.accept(url.indexOf('&') < 0 ? url : url.replace("&amp;", "&"));
+    }
+
+    /**
+     * @return the position of the closing quote or the end of the text
+     */
+    private static int end(CharSequence text, int from, char quote) {
+        int n = text.length();
+        int i = from;
+        while (i < n && text.charAt(i) != quote)
+            i++;
+        return i;
+    }
+
+    private static int skipSpaces(CharSequence text, int from) {
+        int i = from;
+        while (i < text.length() && Character.isWhitespace(text.charAt(i)))
+            i++;
+        return i;
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == ':';
+    }
+
+    private static boolean matches(CharSequence text, int start, int end, String name) {
+        if (end - start != name.length())
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase(text.charAt(start + i)) != name.charAt(i))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,181 @@
+package net.picocloud.tumblr;
+
+import org.apache.hc.core5.http.HttpStatus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the sized variants of a tumblr photo to one url per image, the largest one available.
+ * <p>
+ * The size of a photo is part of its url: a path segment like {@code s540x810} in the current urls, a suffix like
+ * {@code _500} of the file name in the older {@code tumblr_} urls. {@link #key(String)} replaces the size, so all
+ * variants of an image have the same key. Of the variants found the largest is taken by the rules of the scheme.
+ * If the scheme knows larger sizes, {@link #resolveNew(Collection)} probes them with HEAD requests, largest first,
+ * the probes of all images of a batch at the same time. Urls of other hosts and schemes are passed as they are.
+ */
+public class MediaVariants {
+
+    private static final Logger logger = Logger.getLogger(MediaVariants.class.getName());
+
+    /**
+     * host, path up to the size segment, width, height, file name
+     */
+    private static final Pattern SIZE_SEGMENT = Pattern.compile("^(https?://[^/]*media\\.tumblr\\.com/.*)/s(\\d+)x(\\d+)(/[^/]+)$");
+    /**
+     * host, path and name up to the size, size, extension
+     */
+    private static final Pattern SIZE_SUFFIX = Pattern.compile("^(https?://[^/]*media\\.tumblr\\.com/.*/tumblr_\\w+?)_(\\d+)(?:sq)?(\\.\\w+)$");
+
+    /**
+     * the larger size segments, largest first
+     */
+    static final String[] SEGMENT_SIZES = {"s2048x3072", "s1280x1920"};
+    static final int[] SEGMENT_WIDTHS = {2048, 1280};
+    /**
+     * the largest size suffix
+     */
+    static final int SUFFIX_MAX = 1280;
+
+    private static final Metrics.Counter PROBES = Metrics.shared()
+            .counter("tulido_variant_probes_total", "HEAD requests for larger variants of photos");
+    private static final Metrics.Counter UPGRADED = Metrics.shared()
+            .counter("tulido_variants_upgraded_total", "Photos replaced by a larger variant found by a probe");
+
+    /**
+     * sends a HEAD request
+     */
+    public interface Prober {
+        /**
+         * @return the future http status code, 0 if there was no response
+         */
+        CompletableFuture<Integer> probe(String url) throws InterruptedException;
+    }
+
+    private final Prober prober;
+    private final UrlFilter resolved = new UrlFilter(1 << 16);
+
+    /**
+     * @param service the download service whose client sends the probes
+     */
+    public MediaVariants(DownloadService service) {
+        this(service::probe);
+    }
+
+    public MediaVariants(Prober prober) {
+        this.prober = prober;
+    }
+
+    /**
+     * @return the url with the size replaced by {@code *}, the url itself if it has no known size
+     */
+    public static String key(String url) {
+        Matcher m = SIZE_SEGMENT.matcher(url);
+        if (m.matches())
+            return m.group(1) + "/*" + m.group(4);
+        m = SIZE_SUFFIX.matcher(url);
+        if (m.matches())
+            return m.group(1) + "_*" + m.group(3);
+        return url;
+    }
+
+    /**
+     * @return the width of the variant, 0 if the url has no known size
+     */
+    public static int width(String url) {
+        Matcher m = SIZE_SEGMENT.matcher(url);
+        if (m.matches())
+            return Integer.parseInt(m.group(2));
+        m = SIZE_SUFFIX.matcher(url);
+        if (m.matches())
+            return Integer.parseInt(m.group(2));
+        return 0;
+    }
+
+    /**
+     * @return the variants the scheme of the url knows as larger, largest first
+     */
+    static List<String> larger(String url) {
+        List<String> candidates = new ArrayList<>();
+        Matcher m = SIZE_SEGMENT.matcher(url);
+        if (m.matches()) {
+            int width = Integer.parseInt(m.group(2));
+            for (int i = 0; i < SEGMENT_SIZES.length; i++) {
+                if (SEGMENT_WIDTHS[i] > width)
+                    candidates.add(m.group(1) + "/" + SEGMENT_SIZES[i] + m.group(4));
+            }
+            return candidates;
+        }
+        m = SIZE_SUFFIX.matcher(url);
+        if (m.matches() && Integer.parseInt(m.group(2)) < SUFFIX_MAX)
+            candidates.add(m.group(1) + "_" + SUFFIX_MAX + m.group(3));
+        return candidates;
+    }
+
+    /**
+     * keeps the largest variant of every image by the rules alone, without requests
+     *
+     * @param urls the urls found, variants of the same image included
+     * @return one url per image in the order of the first variant found
+     */
+    public static Collection<String> largest(Collection<String> urls) {
+        Map<String, String> best = new LinkedHashMap<>();
+        for (String url : urls)
+            best.merge(key(url), url, (a, b) -> width(b) > width(a) ? b : a);
+        return best.values();
+    }
+
+    /**
+     * resolves the images not resolved before by this instance to their largest available variant
+     *
+     * @param urls the urls found, variants of the same image included
+     * @return one url per image, only images seen for the first time
+     */
+    public List<String> resolveNew(Collection<String> urls) {
+        List<String> images = new ArrayList<>();
+        for (String url : largest(urls)) {
+            if (resolved.add(key(url)))
+                images.add(url);
+        }
+        List<List<String>> candidates = new ArrayList<>(images.size());
+        for (String url : images)
+            candidates.add(larger(url));
+        try {
+            // one round per size, the probes of a round run at the same time
+            for (int round = 0; round < SEGMENT_SIZES.length; round++) {
+                Map<Integer, CompletableFuture<Integer>> probes = new LinkedHashMap<>();
+                for (int i = 0; i < images.size(); i++) {
+                    if (round < candidates.get(i).size()) {
+                        PROBES.inc();
+                        probes.put(i, prober.probe(candidates.get(i).get(round)));
+                    }
+                }
+                if (probes.isEmpty())
+                    break;
+                for (Map.Entry<Integer, CompletableFuture<Integer>> probe : probes.entrySet()) {
+                    int i = probe.getKey();
+                    if (probe.getValue().get() == HttpStatus.SC_OK) {
+                        String variant = candidates.get(i).get(round);
+                        logger.fine(() -> "larger variant " + variant + " of " + images.get(i));
+                        images.set(i, variant);
+                        candidates.set(i, List.of()); // found the largest
+                        UPGRADED.inc();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warning(() -> "Probing the variants failed : " + e.getCause());
+        }
+        return images;
+    }
+}
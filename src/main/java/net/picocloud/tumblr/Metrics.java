@@ -0,0 +1,361 @@
+package net.picocloud.tumblr;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanRegistrationException;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Registry of the counters, gauges and histograms of the process.
+ * <p>
+ * Metrics are created once, usually as static fields of the class they measure, and updated without locks.
+ * The registry shared by the process is registered as MBean {@value #OBJECT_NAME} with one attribute per value,
+ * and {@link #writePrometheus(Appendable)} renders all metrics in the Prometheus text format for the
+ * {@link MetricsServer}.
+ */
+public class Metrics implements DynamicMBean {
+
+    private static final Logger logger = Logger.getLogger(Metrics.class.getName());
+
+    static final String OBJECT_NAME = "net.picocloud.tumblr:type=Metrics";
+
+    /**
+     * bucket bounds in seconds for latencies from a fast http request to a slow download
+     */
+    public static final double[] LATENCY_BUCKETS = {0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300};
+
+    /**
+     * bucket bounds in bytes for file sizes from a thumbnail to a long video
+     */
+    public static final double[] SIZE_BUCKETS = {1e4, 1e5, 5e5, 1e6, 5e6, 1e7, 5e7, 1e8, 1e9};
+
+    private static Metrics shared = null;
+
+    private final ConcurrentMap<String, Metric> metrics = new ConcurrentHashMap<>();
+
+    /**
+     * @return the registry of the process, registered at the platform MBean server
+     */
+    public static synchronized Metrics shared() {
+        if (shared == null) {
+            shared = new Metrics();
+            shared.register();
+        }
+        return shared;
+    }
+
+    /**
+     * @param name the name of the counter, ending with {@code _total} by convention
+     * @param help the description of the counter
+     * @return the counter with the name, created if it does not exist
+     */
+    public Counter counter(String name, String help) {
+        return get(name, () -> new Counter(name, help), Counter.class);
+    }
+
+    /**
+     * registers a value read when the metrics are collected. An existing gauge with the name is replaced.
+     *
+     * @param name     the name of the gauge
+     * @param help     the description of the gauge
+     * @param supplier reads the current value
+     */
+    public void gauge(String name, String help, LongSupplier supplier) {
+        metrics.put(name, new Gauge(name, help, supplier));
+    }
+
+    /**
+     * @param name    the name of the histogram, ending with the unit by convention
+     * @param help    the description of the histogram
+     * @param buckets the ascending upper bounds of the buckets
+     * @return the histogram with the name, created if it does not exist
+     */
+    public Histogram histogram(String name, String help, double... buckets) {
+        return get(name, () -> new Histogram(name, help, buckets), Histogram.class);
+    }
+
+    /**
+     * @return the current values by name. Histograms contribute their count, sum and estimated quantiles.
+     */
+    public SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> values = new TreeMap<>();
+        for (Metric metric : metrics.values())
+            metric.collect(values);
+        return values;
+    }
+
+    /**
+     * writes all metrics in the Prometheus text exposition format
+     *
+     * @param out the destination
+     * @throws IOException if out cannot be written
+     */
+    public void writePrometheus(Appendable out) throws IOException {
+        for (Metric metric : new TreeMap<>(metrics).values()) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+            metric.writePrometheus(out);
+        }
+    }
+
+    private <M extends Metric> M get(String name, Supplier<M> factory, Class<M> type) {
+        Metric metric = metrics.computeIfAbsent(name, n -> factory.get());
+        if (!type.isInstance(metric))
+            throw new IllegalArgumentException(name + " is registered as " + metric.type());
+        return type.cast(metric);
+    }
+
+    private void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException | MBeanRegistrationException | NotCompliantMBeanException
+                | MalformedObjectNameException e) {
+            logger.warning(() -> "Could not register " + OBJECT_NAME + " : " + e);
+        }
+    }
+
+    // ***** DynamicMBean *****
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = snapshot().get(attribute);
+        if (value == null)
+            throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        SortedMap<String, Number> values = snapshot();
+        AttributeList list = new AttributeList();
+        for (String name : attributes) {
+            if (values.containsKey(name))
+                list.add(new Attribute(name, values.get(name)));
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        SortedMap<String, Number> values = snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (Map.Entry<String, Number> entry : values.entrySet())
+            attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                    entry.getKey(), true, false, false);
+        return new MBeanInfo(Metrics.class.getName(), "tulido metrics", attributes, null, null, null);
+    }
+
+    // ***** metric types *****
+
+    private abstract static class Metric {
+        final String name;
+        final String help;
+
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        abstract String type();
+
+        abstract void collect(Map<String, Number> values);
+
+        abstract void writePrometheus(Appendable out) throws IOException;
+    }
+
+    /**
+     * a value that only goes up
+     */
+    public static class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        Counter(String name, String help) {
+            super(name, help);
+        }
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void collect(Map<String, Number> values) {
+            values.put(name, get());
+        }
+
+        @Override
+        void writePrometheus(Appendable out) throws IOException {
+            out.append(name).append(' ').append(Long.toString(get())).append('\n');
+        }
+    }
+
+    private static class Gauge extends Metric {
+        private final LongSupplier supplier;
+
+        Gauge(String name, String help, LongSupplier supplier) {
+            super(name, help);
+            this.supplier = supplier;
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+
+        @Override
+        void collect(Map<String, Number> values) {
+            values.put(name, supplier.getAsLong());
+        }
+
+        @Override
+        void writePrometheus(Appendable out) throws IOException {
+            out.append(name).append(' ').append(Long.toString(supplier.getAsLong())).append('\n');
+        }
+    }
+
+    /**
+     * counts observations in buckets with fixed upper bounds. Quantiles are estimated by linear interpolation
+     * within the bucket that holds them.
+     */
+    public static class Histogram extends Metric {
+        private final double[] bounds;
+        private final LongAdder[] buckets;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(String name, String help, double... bounds) {
+            super(name, help);
+            this.bounds = bounds.clone();
+            buckets = new LongAdder[bounds.length + 1]; // the last one takes everything above the bounds
+            for (int i = 0; i < buckets.length; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        public void observe(double value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i])
+                i++;
+            buckets[i].increment();
+            sum.add(value);
+        }
+
+        /**
+         * observes the time since start in seconds
+         *
+         * @param startNanos the start time as returned by {@link System#nanoTime()}
+         */
+        public void observeSince(long startNanos) {
+            observe((System.nanoTime() - startNanos) / 1e9);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets)
+                count += bucket.sum();
+            return count;
+        }
+
+        public double getSum() {
+            return sum.sum();
+        }
+
+        /**
+         * @param q the quantile between 0 and 1
+         * @return the estimated value of the quantile, 0 without observations
+         */
+        public double quantile(double q) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0)
+                return 0;
+            double rank = q * total;
+            long below = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (below + counts[i] >= rank && counts[i] > 0) {
+                    if (i == bounds.length) // above the highest bound nothing better is known
+                        return bounds.length == 0 ? 0 : bounds[bounds.length - 1];
+                    double lower = i == 0 ? 0 : bounds[i - 1];
+                    return lower + (bounds[i] - lower) * (rank - below) / counts[i];
+                }
+                below += counts[i];
+            }
+            return bounds.length == 0 ? 0 : bounds[bounds.length - 1];
+        }
+
+        @Override
+        String type() {
+            return "histogram";
+        }
+
+        @Override
+        void collect(Map<String, Number> values) {
+            values.put(name + "_count", getCount());
+            values.put(name + "_sum", getSum());
+            values.put(name + "_p50", quantile(0.5));
+            values.put(name + "_p99", quantile(0.99));
+        }
+
+        @Override
+        void writePrometheus(Appendable out) throws IOException {
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < bounds.length ? Double.toString(bounds[i]) : "+Inf";
+                out.append(name).append("_bucket{le=\"").append(le).append("\"} ")
+                        .append(Long.toString(cumulative)).append('\n');
+            }
+            out.append(name).append("_sum ").append(Double.toString(getSum())).append('\n');
+            out.append(name).append("_count ").append(Long.toString(cumulative)).append('\n');
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package net.picocloud.tumblr;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only archive of the saved like pages: deflated records in rolling segment files plus an offset index.
+ * <p>
+ * A record holds the name of the page, e.g. page7.html, and its source in UTF-8, compressed on its own so every page
+ * can be read without the others. A segment is closed after {@link #SEGMENT_SIZE} bytes and the next one started.
+ * The index file lists segment, offset and name of every record. It is written buffered; records missing in the
+ * index after a crash are found again by {@link #open(Path)}, a record cut off at the end of a segment is dropped.
+ * A page archived again replaces the older record in the index, its position in the iteration stays.
+ */
+public class PageArchive implements Closeable, Iterable<PageArchive.Page> {
+
+    private static final Logger logger = Logger.getLogger(PageArchive.class.getName());
+
+    /**
+     * directory of the archive in the target directory
+     */
+    public static final String DIR = "pages.archive";
+    static final String INDEX = "pages.idx";
+    static final long SEGMENT_SIZE = 256L << 20;
+
+    private static final int MAGIC = 0x54504131; // TPA1
+    /**
+     * magic, name length
+     */
+    private static final int HEAD = 4 + 2;
+    /**
+     * raw length, compressed length, crc
+     */
+    private static final int TAIL = 4 + 4 + 4;
+
+    private final Path dir;
+    private final long segmentSize;
+    private final Map<String, Entry> index = new LinkedHashMap<>();
+    private final List<FileChannel> segments = new ArrayList<>();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private BufferedWriter indexWriter;
+
+    /**
+     * the position of a record
+     */
+    private static class Entry {
+        final int segment;
+        final long offset;
+
+        Entry(int segment, long offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * an archived page
+     */
+    public static class Page {
+        private final String name;
+        private final String body;
+
+        Page(String name, String body) {
+            this.name = name;
+            this.body = body;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * @param dir a directory
+     * @return true if the directory holds an archive
+     */
+    public static boolean isArchive(Path dir) {
+        return Files.isRegularFile(dir.resolve(INDEX));
+    }
+
+    /**
+     * opens an archive for reading and appending, a new one is created if the directory holds none
+     *
+     * @param dir the directory of the archive
+     * @return the archive
+     * @throws IOException if the archive cannot be read or created
+     */
+    public static PageArchive open(Path dir) throws IOException {
+        return open(dir, SEGMENT_SIZE);
+    }
+
+    static PageArchive open(Path dir, long segmentSize) throws IOException {
+        Files.createDirectories(dir);
+        PageArchive archive = new PageArchive(dir, segmentSize);
+        try {
+            archive.load();
+        } catch (IOException | RuntimeException e) {
+            archive.close();
+            throw e;
+        }
+        return archive;
+    }
+
+    private PageArchive(Path dir, long segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    private static String segmentName(int segment) {
+        return String.format("pages-%05d.seg", segment);
+    }
+
+    private void load() throws IOException {
+        Path indexFile = dir.resolve(INDEX);
+        Map<Integer, Long> lastIndexed = new LinkedHashMap<>();
+        if (Files.exists(indexFile)) {
+            dropPartialLine(indexFile);
+            try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 3);
+                    if (fields.length < 3)
+                        continue;
+                    Entry entry = new Entry(Integer.parseInt(fields[0]), Long.parseLong(fields[1]));
+                    index.put(fields[2], entry);
+                    lastIndexed.merge(entry.segment, entry.offset, Math::max);
+                }
+            }
+        }
+        for (int segment = 0; Files.exists(dir.resolve(segmentName(segment))); segment++)
+            segments.add(FileChannel.open(dir.resolve(segmentName(segment)), StandardOpenOption.READ, StandardOpenOption.WRITE));
+        indexWriter = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        // find the records written after the index was last flushed
+        for (int segment = 0; segment < segments.size(); segment++) {
+            Long indexed = lastIndexed.get(segment);
+            long position = indexed != null ? indexed : 0;
+            boolean skip = indexed != null;
+            FileChannel channel = segments.get(segment);
+            while (position < channel.size()) {
+                Record record;
+                try {
+                    record = readRecord(channel, position, false);
+                } catch (EOFException | IllegalStateException e) {
+                    String message = "Dropping an incomplete record at " + position + " of " + segmentName(segment);
+                    logger.warning(message);
+                    channel.truncate(position);
+                    break;
+                }
+                if (!skip) {
+                    logger.fine("Recovered " + record.name + " at " + position + " of " + segmentName(segment));
+                    addToIndex(record.name, new Entry(segment, position));
+                }
+                skip = false;
+                position = record.end;
+            }
+        }
+        indexWriter.flush();
+    }
+
+    /**
+     * truncates a line file after its last line break, a line cut off by a crash could hold a shortened value and
+     * the next line appended would be joined to it
+     */
+    static void dropPartialLine(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long end = channel.size();
+            ByteBuffer b = ByteBuffer.allocate(1);
+            while (end > 0) {
+                b.clear();
+                channel.read(b, end - 1);
+                if (b.get(0) == '\n')
+                    break;
+                end--;
+            }
+            if (end < channel.size()) {
+                logger.warning("Dropping an incomplete line at the end of " + file);
+                channel.truncate(end);
+            }
+        }
+    }
+
+    private void addToIndex(String name, Entry entry) throws IOException {
+        index.put(name, entry);
+        indexWriter.write(entry.segment + "\t" + entry.offset + "\t" + name + "\n");
+    }
+
+    /**
+     * adds a page to the archive
+     *
+     * @param name the name of the page, without tabs or line breaks
+     * @param body the source of the page
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized void append(String name, String body) throws IOException {
+        if (name.indexOf('\t') >= 0 || name.indexOf('\n') >= 0)
+            throw new IllegalArgumentException("Invalid page name: " + name);
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 0xffff)
+            throw new IllegalArgumentException("Page name too long: " + name);
+        byte[] raw = body.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(raw);
+
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4 + 64);
+        byte[] buffer = new byte[64 * 1024];
+        while (!deflater.finished())
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+
+        ByteBuffer record = ByteBuffer.allocate(HEAD + nameBytes.length + TAIL + compressed.size());
+        record.putInt(MAGIC).putShort((short) nameBytes.length).put(nameBytes)
+                .putInt(raw.length).putInt(compressed.size()).putInt((int) crc.getValue())
+                .put(compressed.toByteArray())
+                .flip();
+
+        FileChannel channel = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (channel == null || channel.size() > 0 && channel.size() + record.remaining() > segmentSize) {
+            channel = FileChannel.open(dir.resolve(segmentName(segments.size())),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.add(channel);
+        }
+        long offset = channel.size();
+        long position = offset;
+        while (record.hasRemaining())
+            position += channel.write(record, position);
+        addToIndex(name, new Entry(segments.size() - 1, offset));
+    }
+
+    /**
+     * @param name the name of a page
+     * @return the source of the page, null if it is not in the archive
+     * @throws IOException if the record cannot be read
+     */
+    public String read(String name) throws IOException {
+        Entry entry;
+        FileChannel channel;
+        synchronized (this) {
+            entry = index.get(name);
+            if (entry == null)
+                return null;
+            channel = segments.get(entry.segment);
+        }
+        return readRecord(channel, entry.offset, true).body;
+    }
+
+    /**
+     * @return the names of the pages in the order they were first archived
+     */
+    public synchronized Set<String> names() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(index.keySet()));
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return the pages in the order they were first archived, reads one page at a time
+     */
+    @Override
+    public Iterator<Page> iterator() {
+        Iterator<String> names = names().iterator();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return names.hasNext();
+            }
+
+            @Override
+            public Page next() {
+                if (!names.hasNext())
+                    throw new NoSuchElementException();
+                String name = names.next();
+                try {
+                    return new Page(name, read(name));
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not read " + name, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * writes the buffered part of the index
+     */
+    public synchronized void flush() throws IOException {
+        indexWriter.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        deflater.end();
+        IOException failure = null;
+        if (indexWriter != null) {
+            try {
+                indexWriter.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        for (FileChannel channel : segments) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    private static class Record {
+        String name;
+        String body;
+        long end;
+    }
+
+    /**
+     * @throws EOFException          if the record is cut off
+     * @throws IllegalStateException if there is no valid record at the position
+     */
+    private static Record readRecord(FileChannel channel, long position, boolean withBody) throws IOException {
+        ByteBuffer head = read(channel, position, HEAD);
+        if (head.getInt() != MAGIC)
+            throw new IllegalStateException("No page record at " + position);
+        int nameLength = Short.toUnsignedInt(head.getShort());
+        ByteBuffer meta = read(channel, position + HEAD, nameLength + TAIL);
+        byte[] nameBytes = new byte[nameLength];
+        meta.get(nameBytes);
+        int rawLength = meta.getInt();
+        int compressedLength = meta.getInt();
+        int crc = meta.getInt();
+        Record record = new Record();
+        record.name = new String(nameBytes, StandardCharsets.UTF_8);
+        long dataStart = position + HEAD + nameLength + TAIL;
+        record.end = dataStart + compressedLength;
+        if (record.end > channel.size())
+            throw new EOFException("Record cut off at " + position);
+        if (withBody)
+            record.body = inflate(read(channel, dataStart, compressedLength), rawLength, crc, record.name);
+        return record;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Record cut off at " + position);
+        }
+        return buffer.flip();
+    }
+
+    private static String inflate(ByteBuffer compressed, int rawLength, int crc, String name) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array(), 0, compressed.limit());
+            byte[] raw = new byte[rawLength];
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, length, rawLength - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                length += n;
+            }
+            CRC32 check = new CRC32();
+            check.update(raw, 0, length);
+            if (length != rawLength || (int) check.getValue() != crc)
+                throw new IOException("Corrupt record of " + name);
+            return new String(raw, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt record of " + name, e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package net.picocloud.tumblr;
+
+import com.tumblr.jumblr.exceptions.JumblrException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads a paged api resource with several page requests in flight.
+ * <p>
+ * The pages at offset 0, 20, 40, ... are requested in a window of up to {@code window} requests. Every request gets
+ * its own options map. The pages are handed to the consumer strictly in offset order. The window starts with the
+ * first page only and doubles with every page after which the consumer wants more, so a consumer that stops at the
+ * first page costs a single request. The first empty page, or the consumer, ends the paging; requests still in
+ * flight are cancelled and their pages dropped. A request answered with 429 is repeated after a pause, any other
+ * error aborts the paging.
+ *
+ * @param <E> the type of the resources
+ */
+public class PipelinedPager<E> {
+
+    private static final Logger logger = Logger.getLogger(PipelinedPager.class.getName());
+
+    static final int PAGE_SIZE = 20;
+    static final String OFFSET = "offset";
+
+    private final Function<Map<String, ?>, List<E>> function;
+    private final int window;
+    private final RateLimitHandler rateLimitHandler;
+
+    /**
+     * waits after an answer with 429 before the request is repeated
+     */
+    public interface RateLimitHandler {
+        void onRateLimited() throws InterruptedException;
+    }
+
+    /**
+     * @param function         fetches the page for the options
+     * @param window           max number of page requests in flight
+     * @param rateLimitHandler called before a request answered with 429 is repeated
+     */
+    public PipelinedPager(Function<Map<String, ?>, List<E>> function, int window, RateLimitHandler rateLimitHandler) {
+        if (window < 1)
+            throw new IllegalArgumentException("window must be at least 1 : " + window);
+        this.function = function;
+        this.window = window;
+        this.rateLimitHandler = rateLimitHandler;
+    }
+
+    /**
+     * requests all pages and hands the non-empty ones to the consumer in offset order
+     *
+     * @param consumer receives the pages, called by the calling thread only
+     * @return the number of pages consumed
+     */
+    public int forEachPage(Consumer<List<E>> consumer) {
+        AtomicInteger pages = new AtomicInteger();
+        forEachPageWhile(page -> {
+            pages.incrementAndGet();
+            consumer.accept(page);
+            return true;
+        });
+        return pages.get();
+    }
+
+    /**
+     * requests the pages and hands the non-empty ones to the consumer in offset order until it returns false
+     *
+     * @param consumer receives the pages and decides whether the next page is needed, called by the calling thread only
+     * @return true if the paging reached the end or the consumer ended it, false if a request failed
+     */
+    public boolean forEachPageWhile(Predicate<List<E>> consumer) {
+        ExecutorService executor = Executors.newFixedThreadPool(window, r -> {
+            Thread thread = new Thread(r, "api-pager");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Deque<CompletableFuture<List<E>>> inFlight = new ArrayDeque<>(window);
+        int next = 0;
+        int width = 1;
+        try {
+            inFlight.add(request(next++, executor));
+            while (!inFlight.isEmpty()) {
+                List<E> page;
+                try {
+                    page = inFlight.removeFirst().join();
+                } catch (CompletionException | CancellationException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    logger.log(Level.WARNING, cause.getMessage(), cause);
+                    return false;
+                }
+                if (page.isEmpty() || !consumer.test(page))
+                    break;
+                width = Math.min(window, width * 2);
+                while (inFlight.size() < width)
+                    inFlight.add(request(next++, executor));
+            }
+        } finally {
+            inFlight.forEach(f -> f.cancel(true));
+            executor.shutdownNow();
+        }
+        return true;
+    }
+
+    private CompletableFuture<List<E>> request(int page, ExecutorService executor) {
+        return CompletableFuture.supplyAsync(() -> fetch(page * PAGE_SIZE), executor);
+    }
+
+    private List<E> fetch(int offset) {
+        Map<String, Object> options = new HashMap<>();
+        if (offset > 0)
+            options.put(OFFSET, offset);
+        while (true) {
+            try {
+                return function.apply(options);
+            } catch (JumblrException je) {
+                if (je.getResponseCode() != 429)
+                    throw je;
+                try {
+                    rateLimitHandler.onRateLimited();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("interrupted while waiting for the rate limit");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package net.picocloud.tumblr;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * A download of one url into one file, which can be continued after a failure or a killed run.
+ * <p>
+ * The data is written to {@code <name>.part}. The validator of the server (ETag or Last-Modified)
+ * is stored next to it in {@code <name>.part.meta}. If both exist, the next attempt asks only for the
+ * missing bytes with a {@code Range} request. The part file gets renamed atomically to {@code <name>}
+ * when it is complete, so an existing target file is always a finished download.
+ * <p>
+ * With a {@link BlobStore} the content is hashed while it streams in and the complete file is stored
+ * under its digest instead, with the target as a link to it.
+ * <p>
+ * A download with the validators of an earlier one, see {@link #conditional(ValidatorCache.Validator)}, revalidates
+ * the existing target with {@code If-None-Match} and {@code If-Modified-Since}. A 304 leaves the target as it is,
+ * a 200 replaces it.
+ */
+public class ResumableDownload {
+
+    private static final Logger logger = Logger.getLogger(ResumableDownload.class.getName());
+
+    static final String PART_SUFFIX = ".part";
+    static final String META_SUFFIX = ".part.meta";
+
+    private static final String URL = "url";
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "last-modified";
+
+    private final String url;
+    private final Path target;
+    private final Path part;
+    private final Path meta;
+    private final BlobStore blobStore;
+    private final MessageDigest digest;
+    private String contentDigest = null;
+    private ValidatorCache.Validator validator = null;
+    private String etag = null;
+    private String lastModified = null;
+
+    /**
+     * offset the running request continues at, 0 for a full download
+     */
+    private long offset = 0;
+
+    public ResumableDownload(String url, Path target) {
+        this(url, target, null);
+    }
+
+    /**
+     * @param url       the url to download
+     * @param target    the file to store the download in
+     * @param blobStore the content-addressed store for the file or null to store it directly as target
+     */
+    public ResumableDownload(String url, Path target, BlobStore blobStore) {
+        this.url = url;
+        this.target = target;
+        this.part = target.resolveSibling(target.getFileName() + PART_SUFFIX);
+        this.meta = target.resolveSibling(target.getFileName() + META_SUFFIX);
+        this.blobStore = blobStore;
+        this.digest = blobStore == null ? null : BlobStore.newDigest();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    /**
+     * makes the download a revalidation of the existing target
+     *
+     * @param validator the validators of the earlier download
+     * @return this
+     */
+    public ResumableDownload conditional(ValidatorCache.Validator validator) {
+        this.validator = validator;
+        return this;
+    }
+
+    /**
+     * @return the ETag of the last 200 response, weak ones included, or null
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * @return the Last-Modified date of the last 200 response or null
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the offset the last created request continues at. 0 if the download starts from the beginning.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * creates the request for the download. If a partial download with a validator exists, only the missing
+     * bytes are requested. Otherwise leftovers of earlier attempts are removed.
+     *
+     * @return the GET request for the url
+     * @throws IOException if the leftovers cannot be read or deleted
+     */
+    public SimpleHttpRequest createRequest() throws IOException {
+        SimpleRequestBuilder builder = SimpleRequestBuilder.get().setUri(url);
+        offset = 0;
+        if (digest != null)
+            digest.reset();
+        if (validator != null) {
+            discard();
+            if (validator.getEtag() != null)
+                builder.addHeader(HttpHeaders.IF_NONE_MATCH, validator.getEtag());
+            if (validator.getLastModified() != null)
+                builder.addHeader(HttpHeaders.IF_MODIFIED_SINCE, validator.getLastModified());
+        } else if (Files.exists(part)) {
+            String validator = readValidator();
+            long size = Files.size(part);
+            if (validator != null && size > 0) {
+                offset = size;
+                if (digest != null)
+                    hashPart();
+                builder.addHeader(HttpHeaders.RANGE, "bytes=" + size + "-");
+                builder.addHeader(HttpHeaders.IF_RANGE, validator);
+                logger.fine(() -> "resuming at " + size + " bytes : " + url);
+            } else {
+                discard();
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * decides what to do with the body of a response. Called when the response head arrives.
+     *
+     * @param response the head of the response
+     * @return the position in the part file to write the body to or -1 if the body has to be discarded
+     * @throws IOException if the validator cannot be stored
+     */
+    long accept(HttpResponse response) throws IOException {
+        switch (response.getCode()) {
+            case HttpStatus.SC_OK:
+                etag = headerValue(response, HttpHeaders.ETAG);
+                lastModified = headerValue(response, HttpHeaders.LAST_MODIFIED);
+                writeValidator(response);
+                if (digest != null)
+                    digest.reset(); // the part file is written again from the start
+                return 0;
+            case HttpStatus.SC_PARTIAL_CONTENT:
+                long start = rangeStart(response);
+                if (start == offset)
+                    return offset;
+                logger.warning(() -> "unexpected range start " + start + " instead of " + offset + " : " + url);
+                return -1;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * finishes the download after the whole response is received. A complete part file is renamed to the target.
+     * An incomplete part file is kept for the next attempt unless the server rejected the request.
+     *
+     * @param message the response with the number of bytes written as body
+     * @return true if the target file is complete
+     * @throws IOException if the part file cannot be renamed or deleted
+     */
+    public boolean complete(Message<HttpResponse, Long> message) throws IOException {
+        HttpResponse response = message.getHead();
+        int code = response.getCode();
+        if (code == HttpStatus.SC_NOT_MODIFIED && validator != null)
+            return true; // the target is up to date
+        long expected;
+        switch (code) {
+            case HttpStatus.SC_OK:
+                expected = headerLong(response, HttpHeaders.CONTENT_LENGTH);
+                break;
+            case HttpStatus.SC_PARTIAL_CONTENT:
+                if (rangeStart(response) != offset) {
+                    discard();
+                    return false;
+                }
+                expected = rangeTotal(response);
+                break;
+            case HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE:
+                // the part file may already hold everything
+                expected = rangeTotal(response);
+                if (expected < 0 || expected != partSize()) {
+                    discard();
+                    return false;
+                }
+                break;
+            default:
+                if (code < HttpStatus.SC_SERVER_ERROR)
+                    discard(); // the server won't deliver this url, keep nothing
+                return false;
+        }
+        long size = partSize();
+        if (expected >= 0 && size != expected) {
+            logger.warning(() -> "incomplete download " + size + " of " + expected + " bytes, keeping " + part);
+            return false;
+        }
+        if (blobStore != null) {
+            if (!Files.exists(part)) // response without body
+                Files.createFile(part);
+            if (validator != null)
+                Files.deleteIfExists(target); // the link to the old content
+            byte[] bytes = digest.digest();
+            contentDigest = BlobStore.toHex(bytes);
+            blobStore.store(part, bytes, target, url);
+        } else {
+            moveToTarget();
+        }
+        Files.deleteIfExists(meta);
+        return true;
+    }
+
+    /**
+     * removes the part file and the validator
+     */
+    public void discard() throws IOException {
+        Files.deleteIfExists(part);
+        Files.deleteIfExists(meta);
+    }
+
+    /**
+     * @return the hex digest of the completed download or null if the content is not hashed
+     */
+    public String getContentDigest() {
+        return contentDigest;
+    }
+
+    /**
+     * @return the digest to update with the received bytes or null if the content is not hashed
+     */
+    MessageDigest getDigest() {
+        return digest;
+    }
+
+    /**
+     * adds the bytes received by earlier attempts to the digest
+     */
+    private void hashPart() throws IOException {
+        try (FileChannel channel = FileChannel.open(part)) {
+            ByteBuffer buffer = ByteBuffer.allocate(FileEntityConsumer.BUFFER_SIZE);
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    private long partSize() throws IOException {
+        return Files.exists(part) ? Files.size(part) : 0;
+    }
+
+    private void moveToTarget() throws IOException {
+        if (!Files.exists(part)) // response without body
+            Files.createFile(part);
+        try {
+            Files.move(part, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private String readValidator() throws IOException {
+        if (!Files.exists(meta))
+            return null;
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(meta)) {
+            properties.load(in);
+        }
+        if (!url.equals(properties.getProperty(URL)))
+            return null;
+        String etag = properties.getProperty(ETAG);
+        return etag != null ? etag : properties.getProperty(LAST_MODIFIED);
+    }
+
+    private void writeValidator(HttpResponse response) throws IOException {
+        Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+        Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+        // weak etags are not allowed in If-Range
+        if (etag != null && etag.getValue().startsWith("W/"))
+            etag = null;
+        if (etag == null && lastModified == null) {
+            Files.deleteIfExists(meta);
+            return;
+        }
+        Properties properties = new Properties();
+        properties.setProperty(URL, url);
+        if (etag != null)
+            properties.setProperty(ETAG, etag.getValue());
+        if (lastModified != null)
+            properties.setProperty(LAST_MODIFIED, lastModified.getValue());
+        try (OutputStream out = Files.newOutputStream(meta)) {
+            properties.store(out, null);
+        }
+    }
+
+    private static String headerValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    private static long headerLong(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        if (header == null)
+            return -1;
+        try {
+            return Long.parseLong(header.getValue().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the first byte position of a "Content-Range: bytes start-end/total" header or -1
+     */
+    private static long rangeStart(HttpResponse response) {
+        Header header = response.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+        if (header == null)
+            return -1;
+        String value = header.getValue().trim();
+        int space = value.indexOf(' ');
+        int dash = value.indexOf('-', space + 1);
+        if (space < 0 || dash < 0)
+            return -1;
+        try {
+            return Long.parseLong(value.substring(space + 1, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the total length of a "Content-Range: bytes start-end/total" header or -1 if unknown
+     */
+    private static long rangeTotal(HttpResponse response) {
+        Header header = response.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+        if (header == null)
+            return -1;
+        String value = header.getValue();
+        int slash = value.lastIndexOf('/');
+        if (slash < 0)
+            return -1;
+        try {
+            return Long.parseLong(value.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    Path getPart() {
+        return part;
+    }
+}
@@ -0,0 +1,185 @@
+package net.picocloud.tumblr;
+
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.ConnectionClosedException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Decides which failed downloads are tried again and when.
+ * <p>
+ * Failures are classified into {@link Kind}s. Retryable kinds are retried with exponential backoff and full jitter
+ * (a random delay between 0 and {@code base * 2^attempt}, capped), or after the time a {@code Retry-After} header
+ * asks for. Every host has a retry budget: it starts with {@link #INITIAL_BUDGET} retries and earns
+ * {@link #BUDGET_RATIO} of a retry per request, so a failing host can't multiply the load on it.
+ */
+public class RetryPolicy {
+
+    public enum Kind {
+        /**
+         * the connection could not be established
+         */
+        CONNECT(true),
+        /**
+         * no answer in time
+         */
+        TIMEOUT(true),
+        /**
+         * the connection broke or the file is incomplete
+         */
+        IO(true),
+        /**
+         * 5xx answer
+         */
+        SERVER_ERROR(true),
+        /**
+         * 429 answer
+         */
+        RATE_LIMITED(true),
+        /**
+         * 4xx answer, the url won't work
+         */
+        CLIENT_ERROR(false),
+        /**
+         * the download was cancelled
+         */
+        CANCELLED(false),
+        /**
+         * anything else
+         */
+        OTHER(false);
+
+        private final boolean retryable;
+
+        Kind(boolean retryable) {
+            this.retryable = retryable;
+        }
+
+        /**
+         * @return true if the failure is transient and worth another attempt
+         */
+        public boolean isRetryable() {
+            return retryable;
+        }
+    }
+
+    static final int MAX_ATTEMPTS = 5;
+    static final long BASE_DELAY_MILLIS = 500;
+    static final long MAX_DELAY_MILLIS = 60_000;
+    static final long MAX_RETRY_AFTER_MILLIS = 10 * 60_000;
+    static final double INITIAL_BUDGET = 10;
+    static final double BUDGET_RATIO = 0.2;
+
+    private final ConcurrentMap<String, Budget> budgets = new ConcurrentHashMap<>();
+
+    /**
+     * @param code the http status code of an answer that did not deliver the file
+     */
+    public static Kind classify(int code) {
+        if (code == HttpStatus.SC_TOO_MANY_REQUESTS)
+            return Kind.RATE_LIMITED;
+        if (code == HttpStatus.SC_REQUEST_TIMEOUT)
+            return Kind.TIMEOUT;
+        if (code >= HttpStatus.SC_SERVER_ERROR)
+            return Kind.SERVER_ERROR;
+        if (code >= HttpStatus.SC_CLIENT_ERROR)
+            return Kind.CLIENT_ERROR;
+        return Kind.IO; // the answer was fine but the file is incomplete
+    }
+
+    public static Kind classify(Exception ex) {
+        if (ex instanceof ConnectException || ex instanceof UnknownHostException || ex instanceof NoRouteToHostException)
+            return Kind.CONNECT;
+        if (ex instanceof SocketTimeoutException || ex instanceof TimeoutException)
+            return Kind.TIMEOUT;
+        if (ex instanceof ConnectionClosedException || ex instanceof IOException)
+            return Kind.IO;
+        return Kind.OTHER;
+    }
+
+    /**
+     * called for every request to a host, earns retry budget
+     */
+    public void onRequest(String host) {
+        budget(host).earn();
+    }
+
+    /**
+     * decides whether a failed download is tried again. A positive answer spends budget of the host.
+     *
+     * @param kind     the kind of the failure
+     * @param attempts the number of attempts made so far
+     * @param host     the host of the url
+     * @return true if the download should be tried again
+     */
+    public boolean shouldRetry(Kind kind, int attempts, String host) {
+        return kind.isRetryable() && attempts < MAX_ATTEMPTS && budget(host).spend();
+    }
+
+    /**
+     * @param attempts         the number of attempts made so far, at least 1
+     * @param retryAfterMillis the delay asked for by the server or 0
+     * @return the delay before the next attempt in milliseconds
+     */
+    public long backoffMillis(int attempts, long retryAfterMillis) {
+        long ceiling = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(attempts, 20));
+        long jitter = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        return Math.max(jitter, Math.min(retryAfterMillis, MAX_RETRY_AFTER_MILLIS));
+    }
+
+    /**
+     * reads the Retry-After header as seconds or as http date
+     *
+     * @return the delay asked for in milliseconds or 0 if there is none
+     */
+    public static long retryAfterMillis(HttpResponse response) {
+        Header header = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        if (header == null)
+            return 0;
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                Instant date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+                return Math.max(0, date.toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException dtpe) {
+                return 0;
+            }
+        }
+    }
+
+    private Budget budget(String host) {
+        return budgets.computeIfAbsent(host, h -> new Budget());
+    }
+
+    private static class Budget {
+        private double tokens = INITIAL_BUDGET;
+
+        synchronized void earn() {
+            tokens = Math.min(INITIAL_BUDGET * 10, tokens + BUDGET_RATIO);
+        }
+
+        synchronized boolean spend() {
+            if (tokens < 1)
+                return false;
+            tokens--;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package net.picocloud.tumblr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * What an incremental run has already seen, per blog, stored in {@code .checkpoints.properties} of the
+ * target directory.
+ * <p>
+ * For the likes of a blog the post urls of the newest like page are kept: a later crawl can stop at the first page
+ * with one of them, even if some of these posts were unliked in between. For the posts of a blog read with the api
+ * the highest post id is kept. The file is replaced atomically by {@link #save()}, so a killed run leaves the
+ * checkpoints of the last complete run.
+ */
+public class SyncCheckpoint {
+
+    static final String FILE = ".checkpoints.properties";
+
+    private static final String LIKES = "likes.";
+    private static final String POSTS = "posts.";
+
+    private final Path file;
+    private final Properties properties = new Properties();
+
+    /**
+     * reads the checkpoints of a directory
+     *
+     * @param dir the target directory
+     * @return the checkpoints, empty if there are none yet
+     * @throws IOException if the checkpoints cannot be read
+     */
+    public static SyncCheckpoint open(Path dir) throws IOException {
+        SyncCheckpoint checkpoint = new SyncCheckpoint(dir.resolve(FILE));
+        if (Files.exists(checkpoint.file)) {
+            try (InputStream in = Files.newInputStream(checkpoint.file)) {
+                checkpoint.properties.load(in);
+            }
+        }
+        return checkpoint;
+    }
+
+    private SyncCheckpoint(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @param blogname the blog the likes belong to
+     * @return the post urls of the newest like page of the last run, empty if unknown
+     */
+    public synchronized Set<String> getLikes(String blogname) {
+        String value = properties.getProperty(LIKES + blogname);
+        if (value == null || value.isBlank())
+            return new HashSet<>();
+        return Arrays.stream(value.split(" ")).filter(s -> !s.isEmpty()).collect(Collectors.toSet());
+    }
+
+    /**
+     * @param blogname the blog the likes belong to
+     * @param posts    the post urls of the newest like page
+     */
+    public synchronized void setLikes(String blogname, Collection<String> posts) {
+        if (!posts.isEmpty())
+            properties.setProperty(LIKES + blogname, String.join(" ", posts));
+    }
+
+    /**
+     * @param blogname the blog the posts belong to
+     * @return the highest post id of the last run, 0 if unknown
+     */
+    public synchronized long getNewestPostId(String blogname) {
+        return Long.parseLong(properties.getProperty(POSTS + blogname, "0"));
+    }
+
+    /**
+     * @param blogname the blog the posts belong to
+     * @param id       the highest post id read
+     */
+    public synchronized void setNewestPostId(String blogname, long id) {
+        if (id > getNewestPostId(blogname))
+            properties.setProperty(POSTS + blogname, Long.toString(id));
+    }
+
+    /**
+     * writes the checkpoints
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void save() throws IOException {
+        Path tmp = file.resolveSibling(FILE + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            properties.store(out, "tulido incremental sync");
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
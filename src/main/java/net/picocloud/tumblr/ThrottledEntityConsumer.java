@@ -0,0 +1,107 @@
+package net.picocloud.tumblr;
+
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.nio.AsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.CapacityChannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the body of a response to the rate of one or more {@link ByteRateLimiter}s.
+ * <p>
+ * The consumer gives the client capacity for {@link FileEntityConsumer#BUFFER_SIZE} bytes at the start. Every
+ * chunk received is charged to the buckets and its capacity is given back when they are out of debt, by a
+ * scheduler if that is later. Until then the client stops reading the connection and TCP slows the server down,
+ * nothing is buffered.
+ */
+class ThrottledEntityConsumer<T> implements AsyncEntityConsumer<T> {
+
+    private static final Metrics.Counter WAITS = Metrics.shared()
+            .counter("tulido_download_throttled_total", "Chunks of downloads delayed by the byte rate limits");
+
+    private final AsyncEntityConsumer<T> delegate;
+    private final ByteRateLimiter[] limiters;
+    private final ScheduledExecutorService scheduler;
+    private volatile CapacityChannel channel;
+
+    /**
+     * @param delegate  the consumer of the body
+     * @param limiters  the buckets the bytes are charged to
+     * @param scheduler gives the capacity back after a wait
+     */
+    ThrottledEntityConsumer(AsyncEntityConsumer<T> delegate, ByteRateLimiter[] limiters, ScheduledExecutorService scheduler) {
+        this.delegate = delegate;
+        this.limiters = limiters;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void streamStart(EntityDetails entityDetails, FutureCallback<T> resultCallback) throws HttpException, IOException {
+        delegate.streamStart(entityDetails, resultCallback);
+    }
+
+    @Override
+    public void updateCapacity(CapacityChannel capacityChannel) throws IOException {
+        // the capacity of the chunks consumed is given back by consume()
+        if (channel == null) {
+            channel = capacityChannel;
+            capacityChannel.update(FileEntityConsumer.BUFFER_SIZE);
+        }
+    }
+
+    @Override
+    public void consume(ByteBuffer src) throws IOException {
+        int bytes = src.remaining();
+        delegate.consume(src);
+        long wait = 0;
+        for (ByteRateLimiter limiter : limiters)
+            wait = Math.max(wait, limiter.reserve(bytes));
+        CapacityChannel capacityChannel = channel;
+        if (capacityChannel == null || bytes == 0)
+            return;
+        if (wait == 0) {
+            capacityChannel.update(bytes);
+            return;
+        }
+        WAITS.inc();
+        try {
+            scheduler.schedule(() -> {
+                try {
+                    capacityChannel.update(bytes);
+                } catch (IOException e) {
+                    // the exchange is over
+                }
+            }, wait, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            capacityChannel.update(bytes); // shutting down, don't stall the transfer
+        }
+    }
+
+    @Override
+    public void streamEnd(List<? extends Header> trailers) throws HttpException, IOException {
+        delegate.streamEnd(trailers);
+    }
+
+    @Override
+    public void failed(Exception cause) {
+        delegate.failed(cause);
+    }
+
+    @Override
+    public T getContent() {
+        return delegate.getContent();
+    }
+
+    @Override
+    public void releaseResources() {
+        delegate.releaseResources();
+    }
+}
@@ -8,11 +8,13 @@ import org.jsoup.nodes.Document;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.function.Function;
-import java.util.logging.Level;
+import java.util.function.Supplier;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -26,6 +28,17 @@ public class TumblrApiCalls {
         logger = Logger.getLogger(TumblrApiCalls.class.getName());
     }
 
+    // ***** metrics *****
+    private static final Metrics.Counter API_PAGES = Metrics.shared()
+            .counter("tulido_api_pages_total", "Pages of resources fetched from the tumblr api");
+    private static final Metrics.Histogram API_LATENCY = Metrics.shared()
+            .histogram("tulido_api_page_seconds", "Duration of tumblr api page requests", Metrics.LATENCY_BUCKETS);
+
+    /**
+     * max number of page requests in flight while reading a paged resource
+     */
+    private static volatile int pageWindow = 8;
+
     // *** get singleton JumblrClient
     private static class ClientFactory {
 
@@ -65,6 +78,15 @@ public class TumblrApiCalls {
         */
     }
 
+    /**
+     * @param window max number of page requests in flight while reading a paged resource, 1 reads page by page
+     */
+    public static void setPageWindow(int window) {
+        if (window < 1)
+            throw new IllegalArgumentException("window must be at least 1 : " + window);
+        pageWindow = window;
+    }
+
     /**
      * get all blognames the current user follows
      *
@@ -85,7 +107,7 @@ public class TumblrApiCalls {
 
     public static Set<String> getFollowedByUserNames(final String blogname) {
         JumblrClient client = ClientFactory.instance();
-        return user2UserName(getPagedResources(b -> client.blogFollowers(blogname)));
+        return user2UserName(getPagedResources(options -> client.blogFollowers(blogname, options)));
     }
 
 
@@ -95,7 +117,49 @@ public class TumblrApiCalls {
         return getMediaUrlsFromPosts(posts);
     }
 
-    private static Set<String> getMediaUrlsFromPosts(Set<Post> posts) {
+    /**
+     * reads only the posts newer than the checkpoint of the blog. The posts come newest first, so paging stops
+     * at the first page with a known post. The checkpoint is moved to the newest post, but not saved.
+     *
+     * @param blogname   the blog to read
+     * @param checkpoint the checkpoints of the last run
+     * @return the media urls of the new posts
+     */
+    public static Set<String> getMediaUrlsFromBlogPosts(String blogname, SyncCheckpoint checkpoint) {
+        JumblrClient client = ClientFactory.instance();
+        var pager = new PipelinedPager<Post>(options -> fetchPage(o -> client.blogPosts(blogname, o), options),
+                pageWindow, ApiRateLimiter.shared()::onRateLimited);
+        Set<Post> posts = getNewPosts(pager, blogname, checkpoint);
+        logger.info(() -> posts.size() + " new posts of " + blogname);
+        return getMediaUrlsFromPosts(posts);
+    }
+
+    /**
+     * reads the pages until the first known post. The checkpoint is only moved if the paging got there or to the
+     * end; after a failed page the posts behind it would never be read again.
+     */
+    static Set<Post> getNewPosts(PipelinedPager<Post> pager, String blogname, SyncCheckpoint checkpoint) {
+        long known = checkpoint.getNewestPostId(blogname);
+        Set<Post> posts = new HashSet<>();
+        boolean complete = pager.forEachPageWhile(page -> {
+            boolean reachedKnown = false;
+            for (Post post : page) {
+                if (post.getId() != null && post.getId() <= known)
+                    reachedKnown = true;
+                else
+                    posts.add(post);
+            }
+            return !reachedKnown;
+        });
+        if (complete)
+            posts.stream().map(Post::getId).filter(Objects::nonNull).max(Long::compare)
+                    .ifPresent(id -> checkpoint.setNewestPostId(blogname, id));
+        else
+            logger.warning(() -> "Posts of " + blogname + " read incompletely, checkpoint kept");
+        return posts;
+    }
+
+    static Set<String> getMediaUrlsFromPosts(Set<Post> posts) {
         Set<String> set = new HashSet<>();
         for (var post : posts) {
             switch (post.getType()) {
@@ -105,12 +169,11 @@ public class TumblrApiCalls {
                     }
                     break;
                 case TEXT:
-                    String body = ((TextPost) post).getBody();
-                    pickUrls(set, body);
+                    MediaUrlExtractor.extract(((TextPost) post).getBody(), set::add);
                     break;
                 case VIDEO:
                     for (var video : ((VideoPost) post).getVideos()) {
-                        pickUrls(set, video.getEmbedCode());
+                        MediaUrlExtractor.extract(video.getEmbedCode(), set::add);
                     }
                     break;
                 case ANSWER:
@@ -118,61 +181,77 @@ public class TumblrApiCalls {
                     logger.warning(() -> "Unknown post type : " + post.getType());
             }
         }
-        return set;
+        // the srcsets of the text posts list several sizes of a photo
+        return new HashSet<>(MediaVariants.largest(set));
     }
 
+    /**
+     * reads all pages of a resource with up to {@link #pageWindow} page requests in flight
+     */
     private static <E extends Resource> Set<E> getPagedResources(Function<Map<String, ?>, List<E>> function) {
         Set<E> set = new HashSet<>();
-        Map<String, Object> options = new HashMap<>();
-        Integer offset = 0;
-        var x = function.apply(options);
-        while (!x.isEmpty()) {
-            set.addAll(x);
+        var pager = new PipelinedPager<E>(options -> fetchPage(function, options), pageWindow, ApiRateLimiter.shared()::onRateLimited);
+        int pages = pager.forEachPage(set::addAll);
+        logger.fine(() -> pages + " pages with " + set.size() + " resources read");
+        return set;
+    }
 
-            offset += 20;
-            options.put("offset", offset);
+    /**
+     * fetches one page when the rate limiter allows it. A 429 is left to the pager.
+     */
+    private static <E extends Resource> List<E> fetchPage(Function<Map<String, ?>, List<E>> function, Map<String, ?> options) {
+        acquire();
+        long start = System.nanoTime();
+        var page = function.apply(options);
+        API_LATENCY.observeSince(start);
+        API_PAGES.inc();
+        ApiRateLimiter.shared().onSuccess();
+        return page;
+    }
 
+    /**
+     * sends a single api request through the rate limiter, repeating it after a 429
+     */
+    private static <T> T call(Supplier<T> request) {
+        while (true) {
+            acquire();
             try {
-                x = function.apply(options);
+                T result = request.get();
+                ApiRateLimiter.shared().onSuccess();
+                return result;
             } catch (JumblrException je) {
-                if (je.getResponseCode() == 429) {// limit exceed
-                    logger.info("Rate Limit reached. Waiting two minutes.");
-                    try {
-                        Thread.sleep(2 * 60000);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                } else {
-                    logger.log(Level.WARNING, je.getMessage(), je);
-                    break;
-                }
+                if (je.getResponseCode() != 429)
+                    throw je;
+                ApiRateLimiter.shared().onRateLimited();
             }
         }
-
-        return set;
     }
 
-
-    private static void pickUrls(Set<String> set, String body) {
-        final String token = " src=\"";
-        int start = body.indexOf(token);
-        int end;
-        while (start != -1) {
-            start += token.length();
-            end = body.indexOf("\"", start);
-            String url = body.substring(start, end);
-
-            set.add(url);
-            body = body.substring(end);
-            start = body.indexOf(token);
+    private static void acquire() {
+        try {
+            ApiRateLimiter.shared().acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted while waiting for the api rate limit");
         }
     }
 
 
     public static Set<String> getFollowableBlognames() {
+        var archiveDir = Path.of("sabinedl", PageArchive.DIR);
+        if (PageArchive.isArchive(archiveDir)) {
+            Set<String> set = new HashSet<>();
+            try (PageArchive archive = PageArchive.open(archiveDir)) {
+                for (PageArchive.Page page : archive)
+                    set.addAll(getFollowableBlognames(Jsoup.parse(page.getBody())));
+                return set;
+            } catch (IOException | UncheckedIOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
         var dir = Path.of("sabinedl", "pages");
 
-        Set<String> set = new HashSet<>();
         try {
             return Files.list(dir).map(p -> getFollowableBlognames(p)).flatMap(sets -> sets.stream()).collect(Collectors.toSet());
         } catch (IOException e) {
@@ -181,12 +260,11 @@ public class TumblrApiCalls {
         }
     }
 
-    private static Set<String> getFollowableBlognames(Path path) {
+    static Set<String> getFollowableBlognames(Path path) {
         try {
             if (!Files.isDirectory(path)) {
 
-                Document doc = Jsoup.parse(path.toFile(), null);
-                return doc.getElementsByClass("reblog_follow_button").stream().map(e -> e.attr("data-tumblelog-name")).collect(Collectors.toSet());
+                return getFollowableBlognames(Jsoup.parse(path.toFile(), null));
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -194,8 +272,12 @@ public class TumblrApiCalls {
         return new HashSet<>();
     }
 
+    static Set<String> getFollowableBlognames(Document doc) {
+        return doc.getElementsByClass("reblog_follow_button").stream().map(e -> e.attr("data-tumblelog-name")).collect(Collectors.toSet());
+    }
+
     public static Blog getInfo(String blogname) {
-        return ClientFactory.instance().blogInfo(blogname);
+        return call(() -> ClientFactory.instance().blogInfo(blogname));
     }
 
 }
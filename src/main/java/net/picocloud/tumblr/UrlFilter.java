@@ -0,0 +1,90 @@
+package net.picocloud.tumblr;
+
+import java.util.logging.Logger;
+
+/**
+ * Exact, memory-compact filter for urls seen before.
+ * <p>
+ * Urls are reduced to 64 bit {@link Fingerprint}s and kept in an exact {@link LongHashSet} off-heap.
+ * A {@link BloomFilter} on the heap answers {@link #contains(CharSequence)} for most unknown urls without
+ * touching the set. {@link #add(CharSequence)} always inserts into the set, which checks for the key on the way.
+ * <p>
+ * Both grow beyond the expected number of urls: the set doubles its table, the Bloom filter is rebuilt from the
+ * set with twice the size whenever it holds more keys than it was sized for, so its false positive rate stays
+ * at about 1%. The set stops at {@link LongHashSet#MAX_CAPACITY} slots; from then on the urls not in it are let
+ * through as new, and the caller has to fall back on another check, e.g. the download manifest.
+ * Thread safe.
+ */
+public class UrlFilter {
+
+    private static final Logger logger = Logger.getLogger(UrlFilter.class.getName());
+
+    private BloomFilter bloom;
+    private long bloomKeys;
+    private final LongHashSet set;
+    private boolean full = false;
+
+    /**
+     * @param expected the expected number of distinct urls, the filter grows beyond it
+     */
+    public UrlFilter(long expected) {
+        this(expected, LongHashSet.MAX_CAPACITY);
+    }
+
+    UrlFilter(long expected, int maxCapacity) {
+        bloomKeys = Math.max(expected, 64);
+        bloom = new BloomFilter(bloomKeys);
+        set = new LongHashSet(expected, true, maxCapacity);
+    }
+
+    /**
+     * @return true if the url was not added before, or if it is not in the set and the set is full
+     */
+    public synchronized boolean add(CharSequence url) {
+        long fingerprint = Fingerprint.of(url);
+        if (set.isFull()) {
+            if (!full) {
+                full = true;
+                logger.warning(() -> "The url filter is full with " + set.size() + " urls, new urls are no longer recorded");
+            }
+            return !set.contains(fingerprint);
+        }
+        if (!set.add(fingerprint))
+            return false;
+        if (set.size() > bloomKeys)
+            growBloom();
+        else
+            bloom.put(fingerprint);
+        return true;
+    }
+
+    private void growBloom() {
+        bloomKeys *= 2;
+        BloomFilter bigger = new BloomFilter(bloomKeys);
+        set.forEach(bigger::put);
+        bloom = bigger;
+    }
+
+    public synchronized boolean contains(CharSequence url) {
+        long fingerprint = Fingerprint.of(url);
+        return bloom.mightContain(fingerprint) && set.contains(fingerprint);
+    }
+
+    /**
+     * @return the answer of the Bloom filter alone, false if the url was never added
+     */
+    synchronized boolean mightContain(CharSequence url) {
+        return bloom.mightContain(Fingerprint.of(url));
+    }
+
+    public synchronized int size() {
+        return set.size();
+    }
+
+    /**
+     * @return the number of bytes used by the filter, on and off the heap
+     */
+    public synchronized long bytes() {
+        return bloom.bytes() + set.bytes();
+    }
+}
@@ -0,0 +1,221 @@
+package net.picocloud.tumblr;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The validators of the server (ETag and Last-Modified) for the downloads into one directory, so a later run can
+ * ask with a conditional GET whether a file changed instead of downloading it again.
+ * <p>
+ * Every download or revalidation appends a line {@code checked TAB etag TAB last-modified TAB url} to
+ * {@code .validators}, "-" stands for a missing validator. The latest line of a url counts. The file is rewritten
+ * without the older lines when it is opened and holds more than twice as many lines as urls. A line cut off by a
+ * crash is dropped when the file is opened.
+ */
+public class ValidatorCache implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(ValidatorCache.class.getName());
+
+    static final String FILE = ".validators";
+    private static final String NONE = "-";
+
+    /**
+     * the validators of one url
+     */
+    public static class Validator {
+        private final String url;
+        private final String etag;
+        private final String lastModified;
+        private final long checked;
+
+        Validator(String url, String etag, String lastModified, long checked) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.checked = checked;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return the ETag or null
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        /**
+         * @return the Last-Modified date or null
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return the time the content was last downloaded or confirmed in milliseconds since the epoch
+         */
+        public long getChecked() {
+            return checked;
+        }
+
+        /**
+         * @param maxAge the time in milliseconds a check is valid
+         * @return true if the content was checked longer than maxAge ago
+         */
+        public boolean isStale(long maxAge) {
+            return System.currentTimeMillis() - checked >= maxAge;
+        }
+
+        String toLine() {
+            return checked + "\t" + (etag != null ? etag : NONE) + "\t" + (lastModified != null ? lastModified : NONE)
+                    + "\t" + url + "\n";
+        }
+    }
+
+    private final Path file;
+    private final Map<Long, Validator> validators = new HashMap<>();
+    private BufferedWriter writer;
+
+    /**
+     * reads the validators of a directory
+     *
+     * @param dir the download directory
+     * @return the cache, empty if the directory has none
+     * @throws IOException if the file cannot be read or opened for appending
+     */
+    public static ValidatorCache open(Path dir) throws IOException {
+        ValidatorCache cache = new ValidatorCache(dir.resolve(FILE));
+        cache.load();
+        return cache;
+    }
+
+    private ValidatorCache(Path file) {
+        this.file = file;
+    }
+
+    private void load() throws IOException {
+        long lines = 0;
+        if (Files.exists(file)) {
+            PageArchive.dropPartialLine(file);
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 4);
+                    if (fields.length < 4)
+                        continue; // damaged
+                    try {
+                        Validator validator = new Validator(fields[3], value(fields[1]), value(fields[2]), Long.parseLong(fields[0]));
+                        if (validator.etag == null && validator.lastModified == null)
+                            validators.remove(Fingerprint.of(validator.url));
+                        else
+                            validators.put(Fingerprint.of(validator.url), validator);
+                        lines++;
+                    } catch (NumberFormatException e) {
+                        logger.fine(() -> "Skipping a damaged line of " + file);
+                    }
+                }
+            }
+        }
+        if (lines > 2L * validators.size())
+            compact();
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private static String value(String field) {
+        return NONE.equals(field) || field.isEmpty() ? null : field;
+    }
+
+    private void compact() throws IOException {
+        Path tmp = file.resolveSibling(FILE + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Validator validator : validators.values())
+                out.write(validator.toLine());
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        logger.fine(() -> "Compacted " + file + " to " + validators.size() + " urls");
+    }
+
+    /**
+     * @return the validators of the url or null if none are known
+     */
+    public synchronized Validator get(String url) {
+        Validator validator = validators.get(Fingerprint.of(url));
+        return validator != null && validator.url.equals(url) ? validator : null;
+    }
+
+    /**
+     * stores the validators of a downloaded url, a url without validators is forgotten
+     *
+     * @param etag         the ETag of the response or null
+     * @param lastModified the Last-Modified date of the response or null
+     * @throws IOException if the line cannot be written
+     */
+    public synchronized void record(String url, String etag, String lastModified) throws IOException {
+        Validator validator = new Validator(url, etag, lastModified, System.currentTimeMillis());
+        if (etag == null && lastModified == null) {
+            if (validators.remove(Fingerprint.of(url)) == null)
+                return;
+        } else
+            validators.put(Fingerprint.of(url), validator);
+        writer.write(validator.toLine());
+    }
+
+    /**
+     * marks the content of the url as confirmed by the server now, keeping its validators
+     *
+     * @throws IOException if the line cannot be written
+     */
+    public synchronized void confirm(String url) throws IOException {
+        Validator old = get(url);
+        if (old != null)
+            record(url, old.etag, old.lastModified);
+    }
+
+    /**
+     * @param maxAge the time in milliseconds a check is valid
+     * @return the urls checked longer than maxAge ago
+     */
+    public synchronized List<String> stale(long maxAge) {
+        List<String> urls = new ArrayList<>();
+        for (Validator validator : validators.values()) {
+            if (validator.isStale(maxAge))
+                urls.add(validator.url);
+        }
+        return urls;
+    }
+
+    public synchronized int size() {
+        return validators.size();
+    }
+
+    /**
+     * writes the buffered lines
+     */
+    public synchronized void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
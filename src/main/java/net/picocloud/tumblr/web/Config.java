@@ -1,5 +1,7 @@
 package net.picocloud.tumblr.web;
 
+import net.picocloud.tumblr.Bandwidth;
+import net.picocloud.tumblr.MediaCatalog;
 import org.openqa.selenium.WebDriver;
 import org.openqa.selenium.chrome.ChromeDriver;
 import org.openqa.selenium.chrome.ChromeOptions;
@@ -10,6 +12,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 
@@ -48,6 +51,31 @@ public class Config {
 
     WebDriver driver = null;
 
+    /**
+     * creates the headless browser sessions of a parallel crawl
+     */
+    Supplier<WebDriver> driverFactory = null;
+
+    /**
+     * number of browser sessions crawling the like pages at the same time
+     */
+    int parallelism = 1;
+
+    /**
+     * shall the like pages be fetched over http with the cookies of the browser instead of loaded in the browser?
+     */
+    boolean httpCrawl = false;
+
+    /**
+     * shall the pages be stored compressed in one archive instead of one file per page?
+     */
+    boolean archive = false;
+
+    /**
+     * format of the catalog with one record per media item, null for none
+     */
+    MediaCatalog.Format catalog = null;
+
     /**
      * is the configuration valid?
      */
@@ -75,6 +103,31 @@ public class Config {
 
     boolean downloadMedia = true;
 
+    /**
+     * shall downloaded media be stored once per content with hard links for the file names?
+     */
+    boolean dedup = false;
+
+    /**
+     * shall the crawl stop at the likes of the last run and add only new urls to the lists?
+     */
+    boolean incremental = false;
+
+    /**
+     * hours after which downloaded media are revalidated with a conditional GET, -1 to skip them
+     */
+    int revalidateHours = -1;
+
+    /**
+     * byte rate limits and priorities of the downloads, null for the defaults of the download service
+     */
+    Bandwidth bandwidth = null;
+
+    /**
+     * port of the http endpoint with the metrics in Prometheus format, 0 for none
+     */
+    int metricsPort = 0;
+
 
     public static void printUsage() {
         System.err.println("Usage:\n" +
@@ -85,8 +138,19 @@ public class Config {
                 "-posts     : do not create posts.txt\n" +
                 "-pics      : do not create pics.txt\n" +
                 "-firefox   : use Firefox (excludes: -chrome)\n" +
-                "-chrome    : use Chrome (default, excludes: -firefox)" +
-                "-d | -dest : target directory to store files (default: current directory)" +
+                "-chrome    : use Chrome (default, excludes: -firefox)\n" +
+                "-d | -dest : target directory to store files (default: current directory)\n" +
+                "-dedup     : store each downloaded content only once in .blobs and hard link the file names\n" +
+                "-incremental : stop at the likes of the last run and append only new urls to the lists\n" +
+                "-parallel <n> : crawl the like pages with n headless browser sessions, or n requests with -http\n" +
+                "-archive   : store the pages compressed in pages.archive instead of one file per page\n" +
+                "-catalog <ndjson|binary> : write one record per media item to media.ndjson or media.bin\n" +
+                "-http      : log in with the browser, then fetch and parse the like pages without it\n" +
+                "-revalidate <hours> : ask the server if media downloaded more than <hours> ago changed, instead of skipping them\n" +
+                "-rate <rates> : limit the downloads in bytes per second, in total and per class, e.g. 2M,vids=1M,large=256k\n" +
+                "-priority <classes> : start the downloads in this order of the classes, e.g. vids,pics (default: pics,vids).\n" +
+                "            With large, e.g. pics,vids,large, videos over 32 MB start last, their size is asked with a HEAD request\n" +
+                "-metrics <port> : serve metrics in Prometheus format at http://localhost:<port>/metrics\n" +
                 "Downloads all likes from the tumblr blog <blogname> with the given <username> and <password>.\n" +
                 "If no options are given, the following files are created:\n" +
                 "- directory pages containing all pages with the likes as html files,\n" +
@@ -110,6 +174,8 @@ public class Config {
         this.username = args[0];
         this.password = args[1];
         this.blogname = args[2];
+        String rates = null;
+        String priorities = null;
         try {
             for (int i = 3; i < args.length && valid; i++) {
                 switch (args[i]) {
@@ -137,12 +203,75 @@ public class Config {
                     case "-no-download":
                         downloadMedia = false;
                         break;
+                    case "-dedup":
+                        dedup = true;
+                        break;
+                    case "-incremental":
+                        incremental = true;
+                        break;
+                    case "-archive":
+                        archive = true;
+                        break;
+                    case "-http":
+                        httpCrawl = true;
+                        break;
+                    case "-catalog":
+                        if (i + 1 >= args.length)
+                            valid = false;
+                        else if ("ndjson".equals(args[i + 1]))
+                            catalog = MediaCatalog.Format.NDJSON;
+                        else if ("binary".equals(args[i + 1]))
+                            catalog = MediaCatalog.Format.BINARY;
+                        else
+                            valid = false;
+                        i++;
+                        break;
+                    case "-parallel":
+                        if (i + 1 >= args.length)
+                            valid = false;
+                        else
+                            parallelism = Integer.parseInt(args[i + 1]);
+                        i++;
+                        if (parallelism < 1)
+                            valid = false;
+                        break;
+                    case "-revalidate":
+                        if (i + 1 >= args.length)
+                            valid = false;
+                        else
+                            revalidateHours = Integer.parseInt(args[i + 1]);
+                        i++;
+                        if (revalidateHours < 0)
+                            valid = false;
+                        break;
+                    case "-rate":
+                        if (i + 1 >= args.length)
+                            valid = false;
+                        else
+                            rates = args[i + 1];
+                        i++;
+                        break;
+                    case "-priority":
+                        if (i + 1 >= args.length)
+                            valid = false;
+                        else
+                            priorities = args[i + 1];
+                        i++;
+                        break;
+                    case "-metrics":
+                        if (i + 1 >= args.length)
+                            valid = false;
+                        else
+                            metricsPort = Integer.parseInt(args[i + 1]);
+                        i++;
+                        break;
                     case "-firefox":
                         if (driver != null) {
                             valid = false;
                             break;
                         }
                         driver = new FirefoxDriver();
+                        driverFactory = Config::headlessFirefox;
                         break;
                     case "-chrome":
                         if (driver != null) {
@@ -150,13 +279,18 @@ public class Config {
                             break;
                         }
                         driver = new ChromeDriver();
+                        driverFactory = Config::headlessChrome;
                         break;
                     default:
                         valid = false;
                 }
             }
-            if (driver == null) // set default driver
+            if (rates != null || priorities != null)
+                bandwidth = Bandwidth.parse(rates, priorities);
+            if (driver == null) { // set default driver
                 driver = new ChromeDriver();
+                driverFactory = Config::headlessChrome;
+            }
             if (!pages && !vids && !pics && !posts) { // save nothing
                 valid = false;
             }
@@ -166,6 +300,12 @@ public class Config {
 
             destPath = trimPath(destPath) + File.separator;
 
+        } catch (NumberFormatException nfe) {
+            logger.severe("The arguments of -metrics, -parallel and -revalidate must be numbers.");
+            valid = false;
+        } catch (IllegalArgumentException iae) {
+            logger.severe(iae.getMessage());
+            valid = false;
         } catch (IllegalStateException ise) {
             logger.severe("Please install the correct webdriver, either geckodriver for Firefox or chromedriver for chrome. See the README file.");
             valid = false;
@@ -173,6 +313,18 @@ public class Config {
     }
 
 
+    static WebDriver headlessChrome() {
+        ChromeOptions options = new ChromeOptions();
+        options.addArguments("headless");
+        return new ChromeDriver(options);
+    }
+
+    static WebDriver headlessFirefox() {
+        FirefoxOptions options = new FirefoxOptions();
+        options.addArguments("-headless");
+        return new FirefoxDriver(options);
+    }
+
     static String trimPath(String path) {
         while (path.endsWith("."))
             path = path.substring(0,path.length()-1);
@@ -1,11 +1,15 @@
 package net.picocloud.tumblr.web;
 
+import net.picocloud.tumblr.Bandwidth;
+import net.picocloud.tumblr.MediaCatalog;
+import org.openqa.selenium.WebDriver;
 import org.openqa.selenium.chrome.ChromeDriver;
 import org.openqa.selenium.chrome.ChromeOptions;
 import org.openqa.selenium.firefox.FirefoxDriver;
 import org.openqa.selenium.firefox.FirefoxOptions;
 
 import java.io.File;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 public class ConfigBuilder {
@@ -26,6 +30,10 @@ public class ConfigBuilder {
             config.valid = false;
             logger.warning("nothing to extract");
         }
+        if (config.parallelism < 1 || config.parallelism > 1 && !config.httpCrawl && config.driverFactory == null) {
+            config.valid = false;
+            logger.warning("a parallel crawl needs at least one browser session and a driver factory");
+        }
         if (config.driver == null) {
             config.valid = false;
             logger.warning("no web driver for selenium chosen");
@@ -43,6 +51,80 @@ public class ConfigBuilder {
         return this;
     }
 
+    public ConfigBuilder dedup() {
+        config.dedup = true;
+        return this;
+    }
+
+    public ConfigBuilder incremental() {
+        config.incremental = true;
+        return this;
+    }
+
+    /**
+     * @param parallelism the number of headless browser sessions crawling the like pages at the same time
+     */
+    public ConfigBuilder parallelism(int parallelism) {
+        config.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @param hours ask the server with a conditional GET if media downloaded more than hours ago changed
+     */
+    public ConfigBuilder revalidate(int hours) {
+        config.revalidateHours = hours;
+        return this;
+    }
+
+    /**
+     * @param bandwidth the byte rate limits and priorities of the downloads
+     */
+    public ConfigBuilder bandwidth(Bandwidth bandwidth) {
+        config.bandwidth = bandwidth;
+        return this;
+    }
+
+    /**
+     * store the pages compressed in one archive instead of one file per page
+     */
+    public ConfigBuilder archive() {
+        config.archive = true;
+        return this;
+    }
+
+    /**
+     * @param format the format of the catalog with one record per media item
+     */
+    public ConfigBuilder catalog(MediaCatalog.Format format) {
+        config.catalog = format;
+        return this;
+    }
+
+    /**
+     * fetch and parse the like pages over http with the cookies of the logged in browser
+     */
+    public ConfigBuilder httpCrawl() {
+        config.httpCrawl = true;
+        return this;
+    }
+
+    /**
+     * @param driverFactory creates the browser sessions of a parallel crawl, set by {@link #chrome()} and {@link #firefox()}
+     */
+    public ConfigBuilder driverFactory(Supplier<WebDriver> driverFactory) {
+        config.driverFactory = driverFactory;
+        return this;
+    }
+
+    /**
+     * @param port the port of the http endpoint with the metrics in Prometheus format
+     */
+    public ConfigBuilder metrics(int port) {
+        config.metricsPort = port;
+        return this;
+    }
+
     public ConfigBuilder noPics() {
         config.pics = false;
         return this;
@@ -74,6 +156,7 @@ public class ConfigBuilder {
             options.addArguments("headless");
 
         config.driver = new FirefoxDriver();
+        config.driverFactory = Config::headlessFirefox;
         return this;
     }
 
@@ -89,6 +172,7 @@ public class ConfigBuilder {
             options.addArguments("headless");
 
         config.driver = new ChromeDriver(options);
+        config.driverFactory = Config::headlessChrome;
         return this;
     }
 
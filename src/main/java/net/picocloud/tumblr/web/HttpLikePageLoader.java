@@ -0,0 +1,167 @@
+package net.picocloud.tumblr.web;
+
+import net.picocloud.tumblr.RetryPolicy;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.cookie.BasicCookieStore;
+import org.apache.hc.client5.http.cookie.Cookie;
+import org.apache.hc.client5.http.cookie.CookieStore;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.cookie.BasicClientCookie;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.Timeout;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Loads the like pages over http with the session of a logged in browser and parses them with Jsoup.
+ * <p>
+ * The cookies and the user agent of the browser are copied once into an own async http client, the browser is
+ * not used for the pages. The client is not the one of the {@link net.picocloud.tumblr.DownloadService}, so the
+ * session cookies are not sent along with the media downloads. Failed requests are repeated as far as a
+ * {@link RetryPolicy} allows.
+ */
+class HttpLikePageLoader implements ParallelLikeCrawler.PageLoader, Closeable {
+
+    private static final Logger logger = Logger.getLogger(HttpLikePageLoader.class.getName());
+
+    static final Timeout RESPONSE_TIMEOUT = Timeout.ofSeconds(30);
+
+    private final CloseableHttpAsyncClient client;
+    private final String base;
+    private final boolean keepPageSource;
+    private final RetryPolicy retryPolicy = new RetryPolicy();
+
+    /**
+     * @param driver         the logged in browser session
+     * @param connections    the max number of pages fetched at the same time
+     * @param keepPageSource shall the source of the pages be kept?
+     */
+    HttpLikePageLoader(WebDriver driver, int connections, boolean keepPageSource) {
+        this(TumblrBrowserCalls.TUMBLR, cookieStore(driver.manage().getCookies()),
+                (String) ((JavascriptExecutor) driver).executeScript("return navigator.userAgent"), connections, keepPageSource);
+    }
+
+    /**
+     * @param base      the scheme and host of the site
+     * @param cookies   the cookies of the session
+     * @param userAgent the user agent sent, null for the default of the client
+     */
+    HttpLikePageLoader(String base, CookieStore cookies, String userAgent, int connections, boolean keepPageSource) {
+        this.base = base;
+        this.keepPageSource = keepPageSource;
+        client = HttpAsyncClients.custom()
+                .setDefaultCookieStore(cookies)
+                .setUserAgent(userAgent)
+                .setDefaultRequestConfig(RequestConfig.custom().setResponseTimeout(RESPONSE_TIMEOUT).build())
+                .setConnectionManager(PoolingAsyncClientConnectionManagerBuilder.create()
+                        .setMaxConnPerRoute(Math.max(1, connections))
+                        .setMaxConnTotal(Math.max(1, connections))
+                        .build())
+                .build();
+        client.start();
+        logger.info(() -> "Fetching like pages with " + cookies.getCookies().size() + " session cookies");
+    }
+
+    /**
+     * copies the cookies of a browser session
+     *
+     * @param cookies the cookies of the browser
+     * @return a cookie store with the same cookies
+     */
+    static CookieStore cookieStore(Collection<org.openqa.selenium.Cookie> cookies) {
+        BasicCookieStore store = new BasicCookieStore();
+        for (org.openqa.selenium.Cookie c : cookies) {
+            BasicClientCookie cookie = new BasicClientCookie(c.getName(), c.getValue());
+            String domain = c.getDomain();
+            if (domain != null) {
+                // a leading dot marks a cookie for the subdomains as well
+                if (domain.startsWith(".")) {
+                    cookie.setAttribute(Cookie.DOMAIN_ATTR, domain);
+                    domain = domain.substring(1);
+                }
+                cookie.setDomain(domain);
+            }
+            String path = c.getPath() != null ? c.getPath() : "/";
+            cookie.setPath(path);
+            cookie.setAttribute(Cookie.PATH_ATTR, path);
+            cookie.setExpiryDate(c.getExpiry());
+            cookie.setSecure(c.isSecure());
+            store.addCookie(cookie);
+        }
+        return store;
+    }
+
+    @Override
+    public TumblrBrowserCalls.LikePage load(String blogname, int page) throws InterruptedException {
+        String url = TumblrBrowserCalls.likePageUrl(base, blogname, page);
+        String host = base.substring(base.indexOf("//") + 2);
+        for (int attempt = 1; ; attempt++) {
+            long start = System.nanoTime();
+            retryPolicy.onRequest(host);
+            RetryPolicy.Kind kind;
+            long retryAfterMillis = 0;
+            String reason;
+            try {
+                SimpleHttpResponse response = client.execute(SimpleRequestBuilder.get(url).build(), null).get();
+                int code = response.getCode();
+                if (code == HttpStatus.SC_OK)
+                    return analyse(url, response, start);
+                kind = RetryPolicy.classify(code);
+                retryAfterMillis = RetryPolicy.retryAfterMillis(response);
+                reason = "http status " + code;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                kind = cause instanceof Exception ? RetryPolicy.classify((Exception) cause) : RetryPolicy.Kind.OTHER;
+                reason = String.valueOf(cause);
+            } catch (IOException e) {
+                kind = RetryPolicy.Kind.IO;
+                reason = e.toString();
+            }
+            if (!retryPolicy.shouldRetry(kind, attempt, host))
+                throw new IllegalStateException("Could not load " + url + " : " + reason);
+            long delay = retryPolicy.backoffMillis(attempt, retryAfterMillis);
+            String message = kind + " (" + reason + "), attempt " + attempt + ", retrying in " + delay + " msec : " + url;
+            logger.info(message);
+            Thread.sleep(delay);
+        }
+    }
+
+    private TumblrBrowserCalls.LikePage analyse(String url, SimpleHttpResponse response, long start) throws IOException {
+        byte[] body = response.getBodyBytes();
+        Document document = Jsoup.parse(new ByteArrayInputStream(body != null ? body : new byte[0]), null, url);
+        PageReindexer.PageContent content = PageReindexer.extract(document);
+        TumblrBrowserCalls.LikePage lp = new TumblrBrowserCalls.LikePage();
+        lp.posts = content.posts;
+        lp.allPosts = Set.copyOf(lp.posts);
+        lp.pics = content.pics;
+        lp.vids = content.vids;
+        lp.mediaPosts = content.mediaPosts;
+        Element next = document.getElementById("next_page_link");
+        lp.nextPage = next != null && !next.absUrl("href").isEmpty() ? next.absUrl("href") : null;
+        lp.body = keepPageSource ? document.outerHtml() : null;
+        lp.bodyFileName = TumblrBrowserCalls.pageFileName(url);
+        TumblrBrowserCalls.analysed(lp, start);
+        return lp;
+    }
+
+    @Override
+    public void close() {
+        client.close(CloseMode.GRACEFUL);
+    }
+}
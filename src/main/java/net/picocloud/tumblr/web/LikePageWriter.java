@@ -0,0 +1,184 @@
+package net.picocloud.tumblr.web;
+
+import net.picocloud.tumblr.DownloadService;
+import net.picocloud.tumblr.MediaCatalog;
+import net.picocloud.tumblr.MediaLoader;
+import net.picocloud.tumblr.MediaVariants;
+import net.picocloud.tumblr.PageArchive;
+import net.picocloud.tumblr.UrlFilter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * The stage of the like crawl behind the browser: writes the pages and the url lists and passes the media to
+ * the {@link DownloadService}.
+ * <p>
+ * The url lists stay open for the whole run and are flushed after every page. Urls already listed, by an earlier
+ * page or by the last incremental run, are dropped before they are written. The downloads go through
+ * {@link DownloadService#submitOnce(String, String)}, which drops media submitted before by any path of the run.
+ * Of the photos only the largest variant of every image is downloaded, see {@link MediaVariants}.
+ * The pages are written to files in {@code pages}, or appended to a {@link PageArchive} in {@code pages.archive}.
+ * With a catalog format every new media item is also recorded in the {@link MediaCatalog}.
+ */
+class LikePageWriter implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(LikePageWriter.class.getName());
+
+    private final Config config;
+    private final DownloadService downloads;
+
+    private final UrlFilter knownPics;
+    private final UrlFilter knownVids;
+    private final UrlFilter knownPosts;
+    private final BufferedWriter pics;
+    private final BufferedWriter vids;
+    private final BufferedWriter posts;
+    private final PageArchive archive;
+    private final MediaVariants variants;
+    private final MediaCatalog catalog;
+    private final UrlFilter cataloged;
+
+    private int pages = 0;
+
+    /**
+     * creates the target directories and opens the lists of the config
+     *
+     * @param config    what to write where
+     * @param downloads the service for the media, null if nothing is downloaded
+     * @throws IOException if a directory or a list cannot be created
+     */
+    LikePageWriter(Config config, DownloadService downloads) throws IOException {
+        this.config = config;
+        this.downloads = downloads;
+        this.variants = downloads != null ? new MediaVariants(downloads) : null;
+        if (config.pages && !config.archive)
+            Config.createTargetDir(config.destPath + File.separatorChar + TumblrBrowserCalls.PAGES);
+        if (downloads != null) {
+            if (config.pics)
+                Config.createTargetDir(config.destPath + File.separatorChar + TumblrBrowserCalls.PICS);
+            if (config.vids)
+                Config.createTargetDir(config.destPath + File.separatorChar + TumblrBrowserCalls.VIDS);
+        }
+        // the lists are started over, unless new urls are added to them
+        knownPics = config.pics ? openList(TumblrBrowserCalls.PICS_TXT) : null;
+        knownVids = config.vids ? openList(TumblrBrowserCalls.VIDS_TXT) : null;
+        knownPosts = config.posts ? openList(TumblrBrowserCalls.POSTS_TXT) : null;
+        pics = config.pics ? append(TumblrBrowserCalls.PICS_TXT) : null;
+        vids = config.vids ? append(TumblrBrowserCalls.VIDS_TXT) : null;
+        posts = config.posts ? append(TumblrBrowserCalls.POSTS_TXT) : null;
+        archive = config.pages && config.archive ? PageArchive.open(Path.of(config.destPath, PageArchive.DIR)) : null;
+        catalog = config.catalog != null ? MediaCatalog.open(Path.of(config.destPath, config.catalog.getFileName()), config.catalog) : null;
+        cataloged = catalog != null ? new UrlFilter(1000) : null;
+    }
+
+    /**
+     * writes a page and its new urls and submits the new media, blocks while the download queue is full
+     *
+     * @param lp the analysed page, its url sets lose the urls already known
+     * @throws IOException if the page or a list cannot be written
+     */
+    void write(TumblrBrowserCalls.LikePage lp) throws IOException {
+        if (archive != null && lp.body != null)
+            archive.append(lp.bodyFileName, lp.body);
+        else if (config.pages && lp.body != null)
+            Files.writeString(Path.of(config.destPath + TumblrBrowserCalls.PAGES + File.separator + lp.bodyFileName),
+                    lp.body, StandardCharsets.UTF_8);
+        if (pics != null)
+            write(pics, lp.pics, knownPics);
+        if (vids != null)
+            write(vids, lp.vids, knownVids);
+        if (posts != null)
+            write(posts, lp.posts, knownPosts);
+        if (catalog != null) {
+            catalog(lp, lp.pics, MediaCatalog.Type.PHOTO);
+            catalog(lp, lp.vids, MediaCatalog.Type.VIDEO);
+        }
+
+        if (downloads != null) {
+            if (config.pics)
+                variants.resolveNew(lp.pics).forEach(url -> downloads.submitOnce(url, config.destPath + TumblrBrowserCalls.PICS));
+            if (config.vids)
+                lp.vids.forEach(url -> downloads.submitOnce(url, config.destPath + TumblrBrowserCalls.VIDS));
+        }
+        pages++;
+    }
+
+    /**
+     * @return the number of pages written
+     */
+    int getPages() {
+        return pages;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Closeable writer : new Closeable[]{pics, vids, posts, archive, catalog}) {
+            if (writer == null)
+                continue;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    private void catalog(TumblrBrowserCalls.LikePage lp, Set<String> urls, MediaCatalog.Type type) throws IOException {
+        int page = lp.pageNumber();
+        for (String url : urls) {
+            if (cataloged.add(url))
+                catalog.add(new MediaCatalog.Entry(lp.mediaPosts.get(url), url, type, page, lp.crawledAt));
+        }
+    }
+
+    private static void write(BufferedWriter writer, Set<String> urls, UrlFilter known) throws IOException {
+        urls.removeIf(url -> !known.add(url));
+        for (String url : urls) {
+            writer.write(url);
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    private BufferedWriter append(String filename) throws IOException {
+        return Files.newBufferedWriter(Path.of(config.destPath + filename), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * prepares a list for the urls of this run. Without incremental sync the list is emptied, otherwise
+     * the urls already in it are read into the returned filter, so only new urls get appended.
+     *
+     * @return the filter of the urls in the list
+     */
+    private UrlFilter openList(String filename) throws IOException {
+        Path file = Path.of(config.destPath + filename);
+        if (!config.incremental || !Files.exists(file)) {
+            Files.deleteIfExists(file);
+            return new UrlFilter(1000);
+        }
+        UrlFilter known = new UrlFilter(Files.size(file) / MediaLoader.AVG_URL_LENGTH);
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank())
+                    known.add(line.trim());
+            }
+        }
+        logger.info(() -> known.size() + " urls already in " + filename);
+        return known;
+    }
+}
@@ -0,0 +1,289 @@
+package net.picocloud.tumblr.web;
+
+import net.picocloud.tumblr.PageArchive;
+import net.picocloud.tumblr.TumblrApiCalls;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Offline re-analysis of saved like pages without a browser.
+ * <p>
+ * All html files of a pages directory are parsed with Jsoup in parallel on a {@link ForkJoinPool}. Every file is
+ * parsed once and yields the posts, pictures, videos and followable blog names the browser would have found on the
+ * page. The lists are merged in the order of the file names and written as {@code posts.txt}, {@code pics.txt},
+ * {@code videos.txt} and {@code blogs.txt}. The pages can also be read from a {@link PageArchive}.
+ */
+public class PageReindexer {
+
+    private static final Logger logger = Logger.getLogger(PageReindexer.class.getName());
+
+    static final String BLOGS_TXT = "blogs.txt";
+
+    /**
+     * max number of files parsed by one task without splitting it
+     */
+    private static final int THRESHOLD = 8;
+
+    /**
+     * page2.html before page10.html
+     */
+    private static final Comparator<String> NAME_ORDER = Comparator
+            .comparingInt(String::length)
+            .thenComparing(Comparator.naturalOrder());
+    private static final Comparator<Path> PAGE_ORDER = Comparator.comparing(p -> p.getFileName().toString(), NAME_ORDER);
+
+    private final ForkJoinPool pool;
+
+    public static void main(String[] args) throws IOException {
+        InputStream stream = TumblrApiCalls.class.getClassLoader().
+                getResourceAsStream("logging.properties");
+        try {
+            LogManager.getLogManager().readConfiguration(stream);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage:\n" +
+                    "java -cp tulido.jar " + PageReindexer.class.getName() + " <pages directory> [<target directory>]\n" +
+                    "Parses the saved like pages, or the pages.archive directory, and writes posts.txt, pics.txt,\n" +
+                    "videos.txt and blogs.txt\n" +
+                    "to the target directory (default: the parent of the pages directory).");
+            return;
+        }
+        Path pages = Path.of(args[0]).toAbsolutePath();
+        Path target = args.length > 1 ? Path.of(args[1]) : pages.getParent();
+        new PageReindexer(Runtime.getRuntime().availableProcessors()).reindex(pages, target);
+    }
+
+    /**
+     * @param parallelism the number of pages parsed at the same time
+     */
+    public PageReindexer(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * parses all pages of a directory and writes the lists to the target directory
+     *
+     * @param pagesDir  the directory with the saved html pages
+     * @param targetDir the directory for the lists, existing lists are replaced
+     * @return the merged content of all pages
+     * @throws IOException if the directory cannot be read or a list cannot be written
+     */
+    public PageContent reindex(Path pagesDir, Path targetDir) throws IOException {
+        PageContent content = analyse(pagesDir);
+        Files.createDirectories(targetDir);
+        write(targetDir.resolve(TumblrBrowserCalls.POSTS_TXT), content.posts);
+        write(targetDir.resolve(TumblrBrowserCalls.PICS_TXT), content.pics);
+        write(targetDir.resolve(TumblrBrowserCalls.VIDS_TXT), content.vids);
+        write(targetDir.resolve(BLOGS_TXT), content.blogs);
+        logger.info(() -> "Written to " + targetDir + " : " + content);
+        return content;
+    }
+
+    /**
+     * parses all pages of a directory or of a {@link PageArchive} in parallel
+     *
+     * @param pagesDir the directory with the saved html pages or of the archive
+     * @return the merged content of all pages
+     * @throws IOException if the directory cannot be read
+     */
+    public PageContent analyse(Path pagesDir) throws IOException {
+        if (PageArchive.isArchive(pagesDir)) {
+            try (PageArchive archive = PageArchive.open(pagesDir)) {
+                return analyse(archive.names().stream()
+                        .sorted(NAME_ORDER)
+                        .map(name -> new PageSource(name, () -> Jsoup.parse(archive.read(name))))
+                        .collect(Collectors.toList()));
+            }
+        }
+        try (Stream<Path> list = Files.list(pagesDir)) {
+            return analyse(list.filter(Files::isRegularFile)
+                    .filter(f -> !f.getFileName().toString().startsWith("."))
+                    .sorted(PAGE_ORDER)
+                    .map(f -> new PageSource(f.toString(), () -> Jsoup.parse(f.toFile(), null)))
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    private PageContent analyse(List<PageSource> pages) throws IOException {
+        long start = System.currentTimeMillis();
+        AtomicInteger done = new AtomicInteger();
+        PageContent content;
+        try {
+            content = pool.invoke(new ParseTask(pages, done));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        long time = System.currentTimeMillis() - start;
+        logger.info(() -> "Parsed " + pages.size() + " pages in " + time + " msec with " + pool.getParallelism() + " threads");
+        return content;
+    }
+
+    /**
+     * extracts the content of one saved like page with the selectors of {@link TumblrBrowserCalls}
+     *
+     * @param document the parsed page
+     * @return the content of the page
+     */
+    static PageContent extract(Document document) {
+        PageContent content = new PageContent();
+        for (Element e : document.getElementsByClass("post_permalink"))
+            add(content.posts, e.attr("href"));
+        for (Element e : document.getElementsByClass("post_media_photo"))
+            add(content.pics, e.attr("src"));
+        for (Element e : document.select("video > source[src], video[src]"))
+            add(content.vids, e.attr("src"));
+        for (Element e : document.getElementsByClass("reblog_follow_button"))
+            add(content.blogs, e.attr("data-tumblelog-name"));
+        for (Element post : document.getElementsByClass("post")) {
+            Element permalink = post.getElementsByClass("post_permalink").first();
+            if (permalink == null || permalink.attr("href").isBlank())
+                continue;
+            for (Element e : post.select(".post_media_photo, video > source[src], video[src]"))
+                if (!e.attr("src").isBlank())
+                    content.mediaPosts.putIfAbsent(e.attr("src"), permalink.attr("href"));
+        }
+        return content;
+    }
+
+    private static void add(Set<String> set, String value) {
+        if (!value.isBlank())
+            set.add(value);
+    }
+
+    private static void write(Path file, Set<String> lines) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+    }
+
+    private interface Parser {
+        Document parse() throws IOException;
+    }
+
+    /**
+     * a saved page, from a file or an archive
+     */
+    private static class PageSource {
+        final String name;
+        final Parser parser;
+
+        PageSource(String name, Parser parser) {
+            this.name = name;
+            this.parser = parser;
+        }
+    }
+
+    /**
+     * parses a range of pages, splitting it while it is larger than {@link #THRESHOLD}
+     */
+    private static class ParseTask extends RecursiveTask<PageContent> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<PageSource> pages;
+        private final AtomicInteger done;
+
+        ParseTask(List<PageSource> pages, AtomicInteger done) {
+            this.pages = pages;
+            this.done = done;
+        }
+
+        @Override
+        protected PageContent compute() {
+            if (pages.size() > THRESHOLD) {
+                int middle = pages.size() / 2;
+                ParseTask right = new ParseTask(pages.subList(middle, pages.size()), done);
+                right.fork();
+                PageContent content = new ParseTask(pages.subList(0, middle), done).compute();
+                return content.merge(right.join());
+            }
+            PageContent content = new PageContent();
+            for (PageSource page : pages) {
+                try {
+                    content.merge(extract(page.parser.parse()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not parse " + page.name, e);
+                }
+                int count = done.incrementAndGet();
+                if (count % 1000 == 0)
+                    logger.info(() -> count + " pages parsed");
+            }
+            return content;
+        }
+    }
+
+    /**
+     * the urls and blog names found on one or more pages, in the order of their first appearance
+     */
+    public static class PageContent {
+        final Set<String> posts = new LinkedHashSet<>();
+        final Set<String> pics = new LinkedHashSet<>();
+        final Set<String> vids = new LinkedHashSet<>();
+        final Set<String> blogs = new LinkedHashSet<>();
+        /**
+         * the post of every media url found inside a post
+         */
+        final Map<String, String> mediaPosts = new HashMap<>();
+
+        public Set<String> getPosts() {
+            return posts;
+        }
+
+        public Set<String> getPics() {
+            return pics;
+        }
+
+        public Set<String> getVids() {
+            return vids;
+        }
+
+        public Set<String> getBlogs() {
+            return blogs;
+        }
+
+        /**
+         * adds the content of the following pages
+         *
+         * @return this
+         */
+        PageContent merge(PageContent other) {
+            posts.addAll(other.posts);
+            pics.addAll(other.pics);
+            vids.addAll(other.vids);
+            blogs.addAll(other.blogs);
+            other.mediaPosts.forEach(mediaPosts::putIfAbsent);
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return posts.size() + " posts, " + pics.size() + " pics, " + vids.size() + " videos, " + blogs.size() + " blogs";
+        }
+    }
+}
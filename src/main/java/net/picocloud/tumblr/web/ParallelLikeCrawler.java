@@ -0,0 +1,269 @@
+package net.picocloud.tumblr.web;
+
+import org.openqa.selenium.WebDriver;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Crawls the like pages with several page loads at once, by browser sessions of a {@link WebDriverPool} or
+ * over http by a {@link HttpLikePageLoader}.
+ * <p>
+ * The pages are addressed by their number and handed out to the workers in ascending order, at most
+ * two pages per session ahead of the page the consumer waits for. The calling thread passes the analysed pages
+ * to the consumer in page order. The first page without posts, without a link to a next page or with a post of the
+ * last run ends the crawl. A page failing even with a new session aborts it. Either way the pages behind it are
+ * dropped.
+ */
+class ParallelLikeCrawler {
+
+    private static final Logger logger = Logger.getLogger(ParallelLikeCrawler.class.getName());
+
+    /**
+     * attempts with a new session after a page failed
+     */
+    static final int RETRIES = 2;
+
+    /**
+     * a page without posts is loaded again this often before it counts as the end, like in the sequential crawl
+     */
+    static final int EMPTY_RETRIES = 3;
+    static final long EMPTY_WAIT_MILLIS = 7000;
+
+    private final PageLoader loader;
+    private final int parallelism;
+    private final long emptyWaitMillis;
+
+    /**
+     * loads and analyses a like page, called by several threads at once
+     */
+    interface PageLoader {
+        /**
+         * @param page the number of the like page, starting with 1
+         * @throws RuntimeException if the page cannot be loaded, this ends the crawl
+         */
+        TumblrBrowserCalls.LikePage load(String blogname, int page) throws InterruptedException;
+    }
+
+    /**
+     * @param loader      loads the pages
+     * @param parallelism the number of pages loaded at the same time
+     */
+    ParallelLikeCrawler(PageLoader loader, int parallelism) {
+        this(loader, parallelism, EMPTY_WAIT_MILLIS);
+    }
+
+    ParallelLikeCrawler(PageLoader loader, int parallelism, long emptyWaitMillis) {
+        this.loader = loader;
+        this.parallelism = parallelism;
+        this.emptyWaitMillis = emptyWaitMillis;
+    }
+
+    /**
+     * @param pool           the browser sessions, should hold parallelism sessions
+     * @param keepPageSource shall the source of the pages be kept?
+     * @return a loader analysing the pages in the browser, a page failing is loaded again with a new session
+     */
+    static PageLoader browserLoader(WebDriverPool pool, boolean keepPageSource) {
+        return (blogname, page) -> {
+            for (int attempt = 0; ; attempt++) {
+                WebDriver driver = pool.take();
+                try {
+                    driver.get(TumblrBrowserCalls.likePageUrl(blogname, page));
+                    TumblrBrowserCalls.LikePage lp = TumblrBrowserCalls.analysePage(driver, keepPageSource);
+                    pool.release(driver);
+                    return lp;
+                } catch (RuntimeException e) {
+                    pool.discard(driver);
+                    if (attempt >= RETRIES)
+                        throw e;
+                    logger.log(Level.WARNING, "Page " + page + " failed, retrying with a new session", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * analyses the like pages from the newest on until the end or the first page with a known post
+     *
+     * @param blogname   the blog the likes belong to
+     * @param knownPosts the post urls seen by the last run
+     * @param consumer   receives the analysed pages in page order
+     * @return true if the crawl reached the end or a known post, false if a page failed before
+     */
+    boolean crawl(String blogname, Set<String> knownPosts, TumblrBrowserCalls.PageConsumer consumer)
+            throws InterruptedException, ExecutionException {
+        logger.info(() -> "analyzing pages with " + parallelism + " page loads at once ...");
+        Crawl crawl = new Crawl(2 * parallelism);
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "crawl-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        crawl.running = parallelism;
+        for (int i = 0; i < parallelism; i++)
+            workers.execute(() -> work(crawl, blogname, knownPosts));
+        workers.shutdown();
+        try {
+            TumblrBrowserCalls.LikePage lp;
+            while ((lp = crawl.next()) != null)
+                consumer.accept(lp);
+        } finally {
+            crawl.stop();
+            if (!workers.awaitTermination(1, TimeUnit.MINUTES))
+                workers.shutdownNow();
+        }
+        boolean complete = crawl.isComplete();
+        logger.info(complete ? "done analyzing pages" : "analyzing pages aborted");
+        return complete;
+    }
+
+    private void work(Crawl crawl, String blogname, Set<String> knownPosts) {
+        int page = 0;
+        try {
+            while ((page = crawl.claim()) > 0) {
+                TumblrBrowserCalls.LikePage lp = load(crawl, blogname, page);
+                crawl.done(page, lp, !Collections.disjoint(lp.posts, knownPosts));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Could not analyse page " + page + " : " + e.getMessage(), e);
+            crawl.abort(page);
+        } finally {
+            crawl.exit();
+        }
+    }
+
+    private TumblrBrowserCalls.LikePage load(Crawl crawl, String blogname, int page) throws InterruptedException {
+        TumblrBrowserCalls.LikePage lp = loader.load(blogname, page);
+        for (int i = 0; i < EMPTY_RETRIES && lp.allPosts.isEmpty() && !crawl.isBehindEnd(page); i++) {
+            int attempt = i + 1;
+            logger.info(() -> "No posts on page " + page + ", waiting (" + attempt + "/" + EMPTY_RETRIES + ")");
+            Thread.sleep(emptyWaitMillis);
+            lp = loader.load(blogname, page);
+        }
+        return lp;
+    }
+
+    /**
+     * the state of one crawl, shared by the workers and the consumer
+     */
+    private static class Crawl {
+        private final int window;
+        private final TreeMap<Integer, TumblrBrowserCalls.LikePage> ready = new TreeMap<>();
+        private int nextPage = 1;
+        private int emitted = 0;
+        private int lastPage = Integer.MAX_VALUE;
+        /**
+         * the last page of the likes or of the new likes, as far as known
+         */
+        private int endPage = Integer.MAX_VALUE;
+        /**
+         * the first page that failed
+         */
+        private int failedPage = Integer.MAX_VALUE;
+        private int running = 0;
+        private boolean stopped = false;
+
+        Crawl(int window) {
+            this.window = window;
+        }
+
+        /**
+         * @return the next page to load, 0 if there is none
+         */
+        synchronized int claim() throws InterruptedException {
+            while (!stopped && nextPage <= lastPage && nextPage > emitted + window)
+                wait();
+            if (stopped || nextPage > lastPage)
+                return 0;
+            return nextPage++;
+        }
+
+        synchronized void done(int page, TumblrBrowserCalls.LikePage lp, boolean known) {
+            if (lp.allPosts.isEmpty()) {
+                finish(page - 1);
+                return;
+            }
+            if (page <= lastPage)
+                ready.put(page, lp);
+            if (known) {
+                logger.info(() -> "Reached the likes of the last run on page " + page);
+                finish(page);
+            } else if (lp.nextPage == null)
+                finish(page);
+            notifyAll();
+        }
+
+        /**
+         * ends the crawl at the last page of the likes
+         */
+        private void finish(int page) {
+            endPage = Math.min(endPage, page);
+            end(page);
+        }
+
+        /**
+         * ends the crawl in front of a page that failed
+         */
+        synchronized void abort(int page) {
+            failedPage = Math.min(failedPage, page);
+            end(page - 1);
+        }
+
+        /**
+         * @return true if the end was reached and no page in front of it failed
+         */
+        synchronized boolean isComplete() {
+            return endPage < failedPage;
+        }
+
+        synchronized void end(int page) {
+            if (page < lastPage) {
+                lastPage = page;
+                ready.tailMap(page, false).clear();
+            }
+            notifyAll();
+        }
+
+        synchronized boolean isBehindEnd(int page) {
+            return stopped || page > lastPage;
+        }
+
+        synchronized void exit() {
+            running--;
+            notifyAll();
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            notifyAll();
+        }
+
+        /**
+         * @return the next page in page order, null after the last one
+         */
+        synchronized TumblrBrowserCalls.LikePage next() throws InterruptedException {
+            while (emitted < lastPage) {
+                TumblrBrowserCalls.LikePage lp = ready.remove(emitted + 1);
+                if (lp != null) {
+                    emitted++;
+                    notifyAll();
+                    return lp;
+                }
+                if (running == 0)
+                    break;
+                wait();
+            }
+            return null;
+        }
+    }
+}
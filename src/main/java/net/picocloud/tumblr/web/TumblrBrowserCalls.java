@@ -1,6 +1,10 @@
 package net.picocloud.tumblr.web;
 
-import net.picocloud.tumblr.MediaLoader;
+import net.picocloud.tumblr.BlobStore;
+import net.picocloud.tumblr.DownloadService;
+import net.picocloud.tumblr.Metrics;
+import net.picocloud.tumblr.MetricsServer;
+import net.picocloud.tumblr.SyncCheckpoint;
 import net.picocloud.tumblr.TumblrApiCalls;
 import org.openqa.selenium.*;
 import org.openqa.selenium.NoSuchElementException;
@@ -11,25 +15,63 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 public class TumblrBrowserCalls {
 
     private static final Logger logger = Logger.getLogger(TumblrBrowserCalls.class.getName());
 
-    private static final String PAGES = "pages";
-    private static final String POSTS_TXT = "posts.txt";
-    private static final String PICS_TXT = "pics.txt";
-    private static final String VIDS_TXT = "videos.txt";
+    static final String TUMBLR = "https://www.tumblr.com";
+    static final String PAGES = "pages";
+
+    /**
+     * max number of analysed pages waiting for the writer
+     */
+    static final int PAGE_QUEUE = 4;
+
+    /**
+     * marks the end of the pages for the writer
+     */
+    private static final LikePage END = new LikePage();
+    static final String POSTS_TXT = "posts.txt";
+    static final String PICS_TXT = "pics.txt";
+    static final String VIDS_TXT = "videos.txt";
     public static final String VIDS = "videos";
     public static final String PICS = "pics";
+    public static final String BLOBS = ".blobs";
+
+    private static final Metrics.Counter PAGES_ANALYSED = Metrics.shared()
+            .counter("tulido_pages_analysed_total", "Like pages analysed in the browser");
+    private static final Metrics.Counter MEDIA_FOUND = Metrics.shared()
+            .counter("tulido_page_media_found_total", "Picture and video urls found on like pages");
+    private static final Metrics.Histogram PAGE_LATENCY = Metrics.shared()
+            .histogram("tulido_page_analyse_seconds", "Duration of the analysis of a like page", Metrics.LATENCY_BUCKETS);
+
+    /**
+     * the script run once per like page, returns the urls, the next page link and optionally the page source
+     */
+    static final String ANALYSE_SCRIPT = readScript("analyse-page.js");
 
     private WebDriver driver;
 
+    /**
+     * shall the analysis keep the source of the pages?
+     */
+    private boolean keepPageSource = true;
+
     public static void main(String[] args) throws IOException {
 
         InputStream stream = TumblrApiCalls.class.getClassLoader().
@@ -46,10 +88,14 @@ public class TumblrBrowserCalls {
             return;
         }
 
+        MetricsServer metricsServer = config.metricsPort > 0 ? new MetricsServer(config.metricsPort, Metrics.shared()) : null;
         TumblrBrowserCalls tbc = new TumblrBrowserCalls();
         tbc.setupAndLogin(config);
         tbc.loadLikes(config);
         tbc.tearDown();
+        DownloadService.shared().close();
+        if (metricsServer != null)
+            metricsServer.close();
     }
 
 
@@ -60,6 +106,13 @@ public class TumblrBrowserCalls {
 
     public void setupAndLogin(Config config) {
         this.driver = config.driver;
+        login(driver, config);
+    }
+
+    /**
+     * logs the browser session in and opens the likes
+     */
+    static void login(WebDriver driver, Config config) {
         driver.get("https://www.tumblr.com");
         var count = driver.findElements(By.xpath("//*[@href=\"/login\"]")).size();
 
@@ -82,114 +135,280 @@ public class TumblrBrowserCalls {
         driver.findElement(By.xpath("//*[@href=\"/likes\"]")).click();
     }
 
+    /**
+     * crawls the likes of the blog and writes the pages, lists and media while the crawl goes on.
+     * <p>
+     * The browser thread analyses the pages and hands them through a queue of {@link #PAGE_QUEUE} pages to a
+     * {@link LikePageWriter} thread, which passes the media to the bounded queue of the {@link DownloadService}.
+     * A full queue stops the stage in front of it, so the memory used does not grow with the number of pages.
+     * With a parallelism above 1 the pages are loaded by a pool of headless browser sessions. In the http crawl
+     * mode the pages are fetched with the cookies of the logged in browser and parsed without it.
+     */
     public void loadLikes(Config config) throws IOException {
 
-        List<LikePage> pageList = getLikePages(config.blogname);
-
         Config.createTargetDir(config.destPath);
-        logger.info("writing files ...");
-        // open files
-        try (
-                FileWriter postFile = config.posts ? new FileWriter(config.destPath + POSTS_TXT) : null;
-                FileWriter picFile = config.pics ? new FileWriter(config.destPath + PICS_TXT) : null;
-                FileWriter vidFile = config.vids ? new FileWriter(config.destPath + VIDS_TXT) : null;
-        ) {
-            if (config.pages)
-                Config.createTargetDir(config.destPath + File.separatorChar + PAGES);
-            if (config.downloadMedia) {
-                if (config.pics)
-                    Config.createTargetDir(config.destPath + File.separatorChar + PICS);
-                if (config.vids)
-                    Config.createTargetDir(config.destPath + File.separatorChar + VIDS);
+        keepPageSource = config.pages;
+        SyncCheckpoint checkpoint = config.incremental ? SyncCheckpoint.open(Path.of(config.destPath)) : null;
+
+        DownloadService downloads = config.downloadMedia ? DownloadService.shared() : null;
+        if (downloads != null && config.dedup)
+            downloads.setBlobStore(new BlobStore(Path.of(config.destPath, BLOBS)));
+        if (downloads != null && config.revalidateHours >= 0)
+            downloads.setRevalidateAfter(TimeUnit.HOURS.toMillis(config.revalidateHours));
+        if (downloads != null && config.bandwidth != null)
+            downloads.setBandwidth(config.bandwidth);
+
+        BlockingQueue<LikePage> queue = new ArrayBlockingQueue<>(PAGE_QUEUE);
+        ExecutorService writerThread = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "like-page-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Future<Integer> written = writerThread.submit(() -> {
+            try (LikePageWriter writer = new LikePageWriter(config, downloads)) {
+                LikePage lp;
+                while ((lp = queue.take()) != END)
+                    writer.write(lp);
+                return writer.getPages();
             }
-
-            for (var lp : pageList) {
-                if (config.pages)
-                    try (var fw = new FileWriter(config.destPath + PAGES + File.separator + lp.bodyFileName)) {
-                        fw.write(lp.body);
-                    }
-                if (config.pics)
-                    saveUrls(PICS_TXT, lp.pics, config.destPath);
-                if (config.vids)
-                    saveUrls(VIDS_TXT, lp.vids, config.destPath);
-                if (config.posts)
-                    saveUrls(POSTS_TXT, lp.posts, config.destPath);
-
-
-                if (config.downloadMedia) {
-                    new Thread(() -> MediaLoader.getMedia(config.destPath + PICS, lp.pics)).start(); // create downloads in own thread
-                    new Thread(() -> MediaLoader.getMedia(config.destPath + VIDS, lp.vids)).start(); // create downloads in own thread
+        });
+        writerThread.shutdown();
+
+        Set<String> knownPosts = checkpoint != null ? checkpoint.getLikes(config.blogname) : Set.of();
+        Set<String> newestPosts = new HashSet<>();
+        PageConsumer toWriter = lp -> {
+            if (newestPosts.isEmpty())
+                newestPosts.addAll(lp.allPosts);
+            hand(queue, lp, written);
+        };
+        boolean complete;
+        try {
+            if (config.httpCrawl) {
+                try (HttpLikePageLoader loader = new HttpLikePageLoader(driver, config.parallelism, keepPageSource)) {
+                    complete = new ParallelLikeCrawler(loader, config.parallelism).crawl(config.blogname, knownPosts, toWriter);
                 }
+            } else if (config.parallelism > 1) {
+                try (WebDriverPool pool = new WebDriverPool(config.parallelism, config.driverFactory, d -> login(d, config))) {
+                    complete = new ParallelLikeCrawler(ParallelLikeCrawler.browserLoader(pool, keepPageSource), config.parallelism)
+                            .crawl(config.blogname, knownPosts, toWriter);
+                }
+            } else
+                complete = crawlLikePages(config.blogname, knownPosts, toWriter);
+            hand(queue, END, written);
+            int pages = written.get();
+            logger.info(() -> "done writing " + pages + " pages");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IllegalStateException("Writing the like pages failed", e.getCause());
+        } finally {
+            // stops a writer still waiting for pages after a failed crawl, it closes the lists and the catalog
+            written.cancel(true);
+        }
+
+        if (checkpoint != null)
+            updateCheckpoint(checkpoint, config.blogname, newestPosts, complete);
+        if (downloads != null) {
+            logger.info(() -> "waiting for " + downloads.getPending() + " downloads ...");
+            try {
+                downloads.awaitQuiescence();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            logger.info("done downloading");
+        }
+    }
+
+    /**
+     * saves the posts of the newest like page as the checkpoint of the blog, unless the crawl was aborted.
+     * After an abort the old checkpoint stays, so the next run crawls the pages behind the failed one again
+     * instead of stopping at the newest page of this run.
+     *
+     * @param newestPosts the posts of the newest like page of this run
+     * @param complete    did the crawl reach the end or a known post?
+     * @throws IOException if the checkpoint cannot be saved
+     */
+    static void updateCheckpoint(SyncCheckpoint checkpoint, String blogname, Set<String> newestPosts, boolean complete)
+            throws IOException {
+        if (!complete) {
+            logger.warning("The crawl of the likes was aborted, keeping the checkpoint of the last complete run");
+            return;
+        }
+        if (!newestPosts.isEmpty()) {
+            checkpoint.setLikes(blogname, newestPosts);
+            checkpoint.save();
+        }
+    }
+
+    /**
+     * puts a page into the queue of the writer, waits while the queue is full
+     *
+     * @throws ExecutionException if the writer stopped
+     */
+    private static void hand(BlockingQueue<LikePage> queue, LikePage lp, Future<Integer> writer)
+            throws InterruptedException, ExecutionException {
+        while (!queue.offer(lp, 1, TimeUnit.SECONDS)) {
+            if (writer.isDone()) {
+                writer.get();
+                throw new IllegalStateException("The like page writer stopped");
             }
         }
-        logger.info("done writing files");
     }
 
     public List<LikePage> getLikePages(String blogname) throws IOException {
+        return getLikePages(blogname, Set.of());
+    }
+
+    /**
+     * analyses the like pages from the newest on until the end or the first page with a known post.
+     * All pages are kept in memory, {@link #loadLikes(Config)} handles them one by one instead.
+     *
+     * @param blogname   the blog the likes belong to
+     * @param knownPosts the post urls seen by the last run
+     * @return the analysed pages
+     */
+    public List<LikePage> getLikePages(String blogname, Set<String> knownPosts) throws IOException {
+        List<LikePage> pageList = new ArrayList<>();
+        try {
+            crawlLikePages(blogname, knownPosts, pageList::add);
+        } catch (InterruptedException | ExecutionException e) {
+            // not thrown by adding to a list
+            throw new IllegalStateException(e);
+        }
+        return pageList;
+    }
+
+    /**
+     * analyses the like pages from the newest on until the end or the first page with a known post
+     * and hands every page to the consumer before the next one is loaded
+     *
+     * @param blogname   the blog the likes belong to
+     * @param knownPosts the post urls seen by the last run
+     * @param consumer   receives the analysed pages
+     * @return true if the crawl reached the end or a known post, false if a page failed before
+     */
+    private boolean crawlLikePages(String blogname, Set<String> knownPosts, PageConsumer consumer)
+            throws InterruptedException, ExecutionException {
         // open page likes
-        driver.get("https://www.tumblr.com/liked/by/" + blogname);
+        driver.get(likePageUrl(blogname, 1));
 
         logger.info("analyzing pages ...");
-        List<LikePage> pageList = new ArrayList<>();
         try {
+            LikePage lp;
             do {
-                pageList.add(analysePage());
-            } while (isPagesAvailable());
+                lp = analysePage();
+                boolean known = !Collections.disjoint(lp.posts, knownPosts);
+                consumer.accept(lp);
+                if (known) {
+                    logger.info(() -> "Reached the likes of the last run");
+                    break;
+                }
+            } while (isPagesAvailable(lp.nextPage));
         } catch (RuntimeException ex) {
             logger.log(Level.SEVERE, ex.getMessage(), ex);
+            logger.info("analyzing pages aborted");
+            return false;
         }
         logger.info("done analyzing pages");
-        return pageList;
+        return true;
     }
 
-    private void saveUrls(String filename, Set<String> urls, String destPath) throws IOException {
-        try (var fw = new FileWriter(destPath + filename, true)) {
-            urls.stream().forEach(x -> {
-                try {
-                    fw.write(x + "\n");
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            });
-        }
+    interface PageConsumer {
+        void accept(LikePage lp) throws InterruptedException, ExecutionException;
     }
 
+    /**
+     * @param page the number of the like page, starting with 1
+     * @return the url of the like page
+     */
+    static String likePageUrl(String blogname, int page) {
+        return likePageUrl(TUMBLR, blogname, page);
+    }
 
-    private LikePage analysePage()  {
-        LikePage lp = new LikePage();
-        // Get posts
-        var posts = driver.findElements(By.className("post_permalink"));
-        lp.posts = getUrls(posts, "href");
+    /**
+     * @param base the scheme and host of the site
+     */
+    static String likePageUrl(String base, String blogname, int page) {
+        String url = base + "/liked/by/" + blogname;
+        return page > 1 ? url + "/page/" + page : url;
+    }
 
-        // Get Pictures
-        var pics = driver.findElements(By.className("post_media_photo"));
-        lp.pics = getUrls(pics, "src");
+    /**
+     * @return the file name of a like page: page1.html, page2.html, ...
+     */
+    static String pageFileName(String url) {
+        var pathElements = url.split("/");
+        for (int i = pathElements.length - 2; i >= 0; i--)
+            if ("page".equals(pathElements[i]))
+                return "page" + pathElements[i + 1] + ".html";
+        return "page1.html";
+    }
 
-        // Get Videos
-        var vids = driver.findElements(By.xpath("//video/source"));
-        lp.vids = getUrls(vids, "src");
+    /**
+     * analyses the current page with a single script call instead of a WebDriver request per element
+     */
+    private LikePage analysePage()  {
+        return analysePage(driver, keepPageSource);
+    }
 
-        lp.body = driver.getPageSource();
+    /**
+     * analyses the page loaded in the browser session
+     *
+     * @param keepPageSource shall the source of the page be kept?
+     */
+    static LikePage analysePage(WebDriver driver, boolean keepPageSource) {
+        long start = System.nanoTime();
+        Object result = ((JavascriptExecutor) driver).executeScript(ANALYSE_SCRIPT, keepPageSource);
+        if (!(result instanceof Map))
+            throw new IllegalStateException("Unexpected result of the page analysis: " + result);
+        Map<?, ?> page = (Map<?, ?>) result;
+        LikePage lp = new LikePage();
+        lp.posts = toSet(page.get("posts"));
+        lp.allPosts = Set.copyOf(lp.posts);
+        lp.pics = toSet(page.get("pics"));
+        lp.vids = toSet(page.get("vids"));
+        if (page.get("items") instanceof List) {
+            for (Object item : (List<?>) page.get("items")) {
+                Map<?, ?> post = (Map<?, ?>) item;
+                String postUrl = (String) post.get("post");
+                toSet(post.get("pics")).forEach(url -> lp.mediaPosts.putIfAbsent(url, postUrl));
+                toSet(post.get("vids")).forEach(url -> lp.mediaPosts.putIfAbsent(url, postUrl));
+            }
+        }
+        lp.nextPage = (String) page.get("next");
+        lp.body = keepPageSource ? (String) page.get("body") : null;
 
-        var pathElements = driver.getCurrentUrl().split("/");
-        var name = pathElements[pathElements.length - 3] + pathElements[pathElements.length - 2] + ".html";
-        if ("likedby.html".equals(name))
-            name = "page1.html";
-        lp.bodyFileName = name;
+        lp.bodyFileName = pageFileName((String) page.get("url"));
+        analysed(lp, start);
+        return lp;
+    }
 
+    /**
+     * counts an analysed page in the metrics
+     *
+     * @param start the start of the analysis in nanos
+     */
+    static void analysed(LikePage lp, long start) {
+        PAGE_LATENCY.observeSince(start);
+        PAGES_ANALYSED.inc();
+        MEDIA_FOUND.add(lp.pics.size() + lp.vids.size());
         logger.info(() -> "Analyzed : " + lp.bodyFileName);
-
-        return lp;
     }
 
-    private boolean isPagesAvailable() {
+    /**
+     * @param nextPage the link to the next page found by the analysis, null if there was none
+     */
+    private boolean isPagesAvailable(String nextPage) {
         boolean pagesAvailable;
-        if (!loadNextPage() || hasElement(driver, By.className("no_posts_found"))) { // retry
+        if (!loadNextPage(nextPage) || hasElement(driver, By.className("no_posts_found"))) { // retry
             for (int i = 0; i < 3 && hasElement(driver, By.className("no_posts_found")); i++) {
                 logger.log(Level.INFO, "Waiting for 7 seconds ({0}/3)", i);
                 sleep(7);
             }
-            if (!loadNextPage())
+            if (!loadNextPage(null))
                 pagesAvailable = false;
             else
                 pagesAvailable = true;
@@ -199,13 +418,18 @@ public class TumblrBrowserCalls {
     }
 
 
-    private boolean loadNextPage() {
-        if (!driver.findElements(By.id("next_page_link")).isEmpty()) { // next page exists
-            driver.get(driver.findElement(By.id("next_page_link")).getAttribute("href"));
-
-            return true;
+    /**
+     * @param href the link to the next page, null to look for it in the current page
+     */
+    private boolean loadNextPage(String href) {
+        if (href == null) {
+            var links = driver.findElements(By.id("next_page_link"));
+            if (links.isEmpty())
+                return false;
+            href = links.get(0).getAttribute("href");
         }
-        return false;
+        driver.get(href);
+        return true;
     }
 
     protected String getDurationString(long time) {
@@ -246,15 +470,53 @@ public class TumblrBrowserCalls {
         return list;
     }
 
-    protected Set<String> getUrls(List<WebElement> elements, String attr)  {
-        return elements.stream().map(we -> we.getAttribute(attr)).collect(Collectors.toSet());
+    private static Set<String> toSet(Object list) {
+        Set<String> urls = new LinkedHashSet<>();
+        if (list instanceof Collection)
+            for (Object url : (Collection<?>) list)
+                if (url != null)
+                    urls.add(url.toString());
+        return urls;
     }
 
-    class LikePage {
+    static String readScript(String name) {
+        try (InputStream in = TumblrBrowserCalls.class.getClassLoader().getResourceAsStream(name)) {
+            if (in == null)
+                throw new IllegalStateException("Missing resource " + name);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static class LikePage {
         Set<String> posts;
+        /**
+         * the posts of the page, even those already listed by an earlier run
+         */
+        Set<String> allPosts;
         Set<String> pics;
         Set<String> vids;
+        /**
+         * the link to the next page, null on the last page
+         */
+        String nextPage;
         String bodyFileName;
         String body;
+        /**
+         * the post of every media url, as far as it is known
+         */
+        Map<String, String> mediaPosts = new HashMap<>();
+        long crawledAt = System.currentTimeMillis();
+
+        /**
+         * @return the number of the page taken from its file name, 0 if unknown
+         */
+        int pageNumber() {
+            if (bodyFileName == null)
+                return 0;
+            String digits = bodyFileName.replaceAll("\\D", "");
+            return digits.isEmpty() ? 0 : Integer.parseInt(digits);
+        }
     }
 }
@@ -0,0 +1,165 @@
+package net.picocloud.tumblr.web;
+
+import net.picocloud.tumblr.Metrics;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A fixed number of logged in browser sessions for the parallel crawl.
+ * <p>
+ * The sessions are created and logged in on first use. A session is checked before it is handed out, a session
+ * that does not answer, or is given back as broken, is quit and replaced by a new one.
+ */
+class WebDriverPool implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(WebDriverPool.class.getName());
+
+    private static final Metrics.Counter RESTARTS = Metrics.shared()
+            .counter("tulido_browser_restarts_total", "Browser sessions replaced after a failure");
+
+    private final int size;
+    private final Supplier<WebDriver> factory;
+    private final Consumer<WebDriver> login;
+    private final BlockingQueue<WebDriver> idle = new LinkedBlockingQueue<>();
+    private final List<WebDriver> sessions = new ArrayList<>();
+    /**
+     * sessions created or being created
+     */
+    private int open = 0;
+    private boolean closed = false;
+
+    /**
+     * @param size    the number of sessions
+     * @param factory creates a new browser session
+     * @param login   logs a new session in
+     */
+    WebDriverPool(int size, Supplier<WebDriver> factory, Consumer<WebDriver> login) {
+        if (size < 1)
+            throw new IllegalArgumentException("size must be at least 1 : " + size);
+        this.size = size;
+        this.factory = factory;
+        this.login = login;
+    }
+
+    /**
+     * @return a healthy session, created if less than size sessions exist, otherwise waits for a session
+     * @throws InterruptedException if interrupted while waiting
+     */
+    WebDriver take() throws InterruptedException {
+        WebDriver driver = idle.poll();
+        if (driver == null) {
+            boolean create;
+            synchronized (this) {
+                if (closed)
+                    throw new IllegalStateException("pool is closed");
+                create = open < size;
+                if (create)
+                    open++;
+            }
+            if (create)
+                return create();
+            driver = idle.take();
+        }
+        return isHealthy(driver) ? driver : restart(driver);
+    }
+
+    /**
+     * gives a session back for the next task
+     */
+    void release(WebDriver driver) {
+        idle.add(driver);
+    }
+
+    /**
+     * replaces a broken session by a new one and gives that back
+     */
+    void discard(WebDriver driver) {
+        idle.add(restart(driver));
+    }
+
+    /**
+     * @return the number of sessions created and not quit
+     */
+    synchronized int getSessions() {
+        return sessions.size();
+    }
+
+    private WebDriver restart(WebDriver driver) {
+        RESTARTS.inc();
+        logger.warning("Restarting a browser session");
+        quit(driver);
+        synchronized (this) {
+            sessions.remove(driver);
+        }
+        return create();
+    }
+
+    /**
+     * creates and logs in a session for a slot counted in open, frees the slot if that fails
+     */
+    private WebDriver create() {
+        WebDriver driver = null;
+        try {
+            driver = factory.get();
+            synchronized (this) {
+                sessions.add(driver);
+            }
+            login.accept(driver);
+            return driver;
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                open--;
+                if (driver != null)
+                    sessions.remove(driver);
+            }
+            if (driver != null)
+                quit(driver);
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the session still answers
+     */
+    static boolean isHealthy(WebDriver driver) {
+        try {
+            driver.getWindowHandle();
+            return true;
+        } catch (WebDriverException e) {
+            return false;
+        }
+    }
+
+    private static void quit(WebDriver driver) {
+        try {
+            driver.quit();
+        } catch (WebDriverException e) {
+            logger.log(Level.FINE, "Could not quit the browser session", e);
+        }
+    }
+
+    /**
+     * quits all sessions
+     */
+    @Override
+    public void close() {
+        List<WebDriver> all;
+        synchronized (this) {
+            closed = true;
+            all = new ArrayList<>(sessions);
+            sessions.clear();
+        }
+        idle.clear();
+        all.forEach(WebDriverPool::quit);
+    }
+}
@@ -0,0 +1,44 @@
+// Collects everything TumblrBrowserCalls needs from a like page in one WebDriver round trip.
+// arguments[0]: true if the serialized page shall be returned as well
+var withBody = arguments[0];
+
+function urls(root, selector, property) {
+    var result = [];
+    var seen = {};
+    var elements = root.querySelectorAll(selector);
+    for (var i = 0; i < elements.length; i++) {
+        var url = elements[i][property];
+        if (url && !seen[url]) {
+            seen[url] = true;
+            result.push(url);
+        }
+    }
+    return result;
+}
+
+// the media of every post, for the catalog
+function items() {
+    var result = [];
+    var posts = document.querySelectorAll('.post');
+    for (var i = 0; i < posts.length; i++) {
+        var permalink = urls(posts[i], '.post_permalink', 'href');
+        if (permalink.length > 0)
+            result.push({
+                post: permalink[0],
+                pics: urls(posts[i], '.post_media_photo', 'src'),
+                vids: urls(posts[i], 'video > source', 'src')
+            });
+    }
+    return result;
+}
+
+var next = document.getElementById('next_page_link');
+return {
+    url: location.href,
+    posts: urls(document, '.post_permalink', 'href'),
+    pics: urls(document, '.post_media_photo', 'src'),
+    vids: urls(document, 'video > source', 'src'),
+    items: items(),
+    next: next && next.href ? next.href : null,
+    body: withBody ? document.documentElement.outerHTML : null
+};
@@ -0,0 +1,119 @@
+package net.picocloud.tumblr;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveLimiterTest {
+
+    @Test
+    public void growsWhileUsed() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("64.media.tumblr.com");
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < limiter.getLimit(); j++)
+                limiter.acquire();
+            while (limiter.getInFlight() > 0)
+                limiter.onSuccess();
+        }
+        assertTrue(limiter.getLimit() > AdaptiveLimiter.INITIAL_LIMIT);
+        assertTrue(limiter.getLimit() <= AdaptiveLimiter.MAX_LIMIT);
+    }
+
+    @Test
+    public void halvesOncePerCongestion() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("va.media.tumblr.com");
+        limiter.acquire();
+        limiter.acquire();
+        limiter.onDropped();
+        limiter.onDropped();
+        assertEquals(AdaptiveLimiter.INITIAL_LIMIT / 2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void limitsPerHost() {
+        HostLimiters limiters = new HostLimiters();
+        assertSame(limiters.forUrl("https://64.media.tumblr.com/a/b.jpg"), limiters.forUrl("https://64.media.tumblr.com/c.jpg"));
+        assertNotSame(limiters.forUrl("https://64.media.tumblr.com/a/b.jpg"), limiters.forUrl("https://va.media.tumblr.com/c.mp4"));
+        assertEquals(2, limiters.getLimits().size());
+    }
+
+    @Test
+    public void parkedWaitersGetTheReleasedRequests() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("64.media.tumblr.com");
+        for (int i = 0; i < limiter.getLimit(); i++)
+            limiter.acquire();
+        AtomicInteger handedOver = new AtomicInteger();
+        assertFalse(limiter.acquireOrPark(handedOver::incrementAndGet));
+        assertFalse(limiter.acquireOrPark(handedOver::incrementAndGet));
+        assertEquals(2, limiter.getParked());
+        limiter.onIgnored();
+        assertEquals(1, handedOver.get());
+        assertEquals(1, limiter.getParked());
+        assertEquals(limiter.getLimit(), limiter.getInFlight());
+    }
+
+    @Test
+    public void aHostAtItsLimitDoesNotHoldBackOthers() throws Exception {
+        CountDownLatch slow = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        ExecutorService handlers = Executors.newCachedThreadPool();
+        server.setExecutor(handlers);
+        server.createContext("/", exchange -> respond(exchange, slow));
+        server.start();
+        Path dir = Files.createTempDirectory("limits");
+        int port = server.getAddress().getPort();
+        try (DownloadService service = new DownloadService(100)) {
+            List<CompletableFuture<DownloadResult>> blocked = new ArrayList<>();
+            try {
+                for (int i = 0; i < AdaptiveLimiter.INITIAL_LIMIT + 2; i++)
+                    blocked.add(service.submit("http://localhost:" + port + "/slow/" + i + ".jpg", dir.toString()));
+                DownloadResult fast = service.submit("http://127.0.0.1:" + port + "/fast/a.jpg", dir.toString())
+                        .get(10, TimeUnit.SECONDS);
+                assertEquals(DownloadResult.Status.DOWNLOADED, fast.getStatus());
+                assertTrue(blocked.stream().noneMatch(CompletableFuture::isDone));
+            } finally {
+                slow.countDown(); // close() waits for the blocked downloads
+            }
+            for (CompletableFuture<DownloadResult> future : blocked)
+                assertEquals(DownloadResult.Status.DOWNLOADED, future.get(10, TimeUnit.SECONDS).getStatus());
+        } finally {
+            server.stop(0);
+            handlers.shutdownNow();
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, CountDownLatch slow) throws IOException {
+        try {
+            if (exchange.getRequestURI().getPath().startsWith("/slow"))
+                slow.await();
+            exchange.sendResponseHeaders(200, 2);
+            exchange.getResponseBody().write(new byte[]{1, 2});
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package net.picocloud.tumblr;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ApiRateLimiterTest {
+
+    private final AtomicLong now = new AtomicLong(0);
+
+    @Test
+    public void burstsThenKeepsTheRate() {
+        ApiRateLimiter limiter = new ApiRateLimiter(1000, 100_000, now::get);
+        for (int i = 0; i < 100; i++)
+            assertEquals(0, limiter.reserve());
+        // 900 requests per hour after the burst: one every 4 seconds
+        assertEquals(TimeUnit.SECONDS.toNanos(4), limiter.reserve(), 1e6);
+        assertEquals(TimeUnit.SECONDS.toNanos(8), limiter.reserve(), 1e6);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(8));
+        assertEquals(TimeUnit.SECONDS.toNanos(4), limiter.reserve(), 1e6);
+    }
+
+    @Test
+    public void dailyQuotaLimits() {
+        ApiRateLimiter limiter = new ApiRateLimiter(1_000_000, 10, now::get);
+        for (int i = 0; i < 9; i++)
+            assertEquals(0, limiter.reserve());
+        assertTrue(limiter.reserve() > TimeUnit.HOURS.toNanos(2));
+    }
+
+    @Test
+    public void pausesAndSlowsDownAfter429() {
+        ApiRateLimiter limiter = new ApiRateLimiter(1000, 100_000, now::get);
+        limiter.onRateLimited();
+        limiter.onRateLimited(); // answer to a request sent before the pause
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(ApiRateLimiter.PAUSE_MILLIS), limiter.reserve(), 1e9);
+        assertEquals(675, limiter.getHourlyRate(), 1e-6);
+        for (int i = 0; i < 100; i++)
+            limiter.onSuccess();
+        assertEquals(900, limiter.getHourlyRate(), 1e-6);
+    }
+}
@@ -0,0 +1,145 @@
+package net.picocloud.tumblr;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class BandwidthTest {
+
+    private static final int SIZE = 512 * 1024;
+
+    private static final String VIDEO = "https://va.media.tumblr.com/tumblr_abc.mp4";
+    private static final String PHOTO = "https://64.media.tumblr.com/abc/s2048x3072/def.jpg";
+
+    private Path dir;
+    private HttpServer server;
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("bandwidth");
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/media", this::handle);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath());
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().add("Content-Length", String.valueOf(SIZE));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, SIZE);
+            exchange.getResponseBody().write(new byte[SIZE]);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Test
+    public void parsesRatesAndPriorities() {
+        Bandwidth bandwidth = Bandwidth.parse("2M,vids=1M,large=256k", "vids");
+        assertEquals(List.of(Bandwidth.TrafficClass.VIDS, Bandwidth.TrafficClass.PICS), bandwidth.getPriorities());
+        assertArrayEquals(new long[]{1024 * 1024, 2 * 1024 * 1024}, rates(bandwidth.limiters(VIDEO, 1000)));
+        assertArrayEquals(new long[]{1024 * 1024, 256 * 1024, 2 * 1024 * 1024},
+                rates(bandwidth.limiters(VIDEO, Bandwidth.LARGE_BYTES + 1)));
+        assertArrayEquals(new long[]{2 * 1024 * 1024}, rates(bandwidth.limiters(PHOTO, -1)));
+
+        assertEquals(0, Bandwidth.parse(null, null).limiters(PHOTO, -1).length);
+        assertThrows(IllegalArgumentException.class, () -> Bandwidth.parse("gifs=1M", null));
+        assertThrows(IllegalArgumentException.class, () -> Bandwidth.parse("0", null));
+        assertThrows(IllegalArgumentException.class, () -> Bandwidth.parse(null, "pics,audio"));
+    }
+
+    private static long[] rates(ByteRateLimiter[] limiters) {
+        return Arrays.stream(limiters).mapToLong(ByteRateLimiter::getRate).toArray();
+    }
+
+    @Test
+    public void largeBodiesAreAlsoChargedToTheirClass() {
+        Bandwidth bandwidth = Bandwidth.parse("vids=1M", null);
+        assertArrayEquals(new long[]{1024 * 1024}, rates(bandwidth.limiters(VIDEO, 500L << 20)));
+        assertEquals(0, bandwidth.limiters(PHOTO, 500L << 20).length);
+    }
+
+    @Test
+    public void classifiesByUrlAndLength() {
+        assertEquals(Bandwidth.TrafficClass.VIDS, Bandwidth.classify(VIDEO));
+        assertEquals(Bandwidth.TrafficClass.VIDS, Bandwidth.classify("https://example.com/clip.webm?x=1"));
+        assertEquals(Bandwidth.TrafficClass.PICS, Bandwidth.classify(PHOTO));
+        assertTrue(Bandwidth.isLarge(Bandwidth.LARGE_BYTES + 1));
+        assertFalse(Bandwidth.isLarge(-1));
+
+        assertTrue(Bandwidth.DEFAULT.priority(PHOTO) < Bandwidth.DEFAULT.priority(VIDEO));
+        assertFalse(Bandwidth.DEFAULT.needsSize(VIDEO));
+        Bandwidth vidsFirst = Bandwidth.parse(null, "vids");
+        assertTrue(vidsFirst.priority(VIDEO) < vidsFirst.priority(PHOTO));
+    }
+
+    @Test
+    public void smallBeforeLarge() {
+        Bandwidth bandwidth = Bandwidth.parse(null, "pics,vids,large");
+        assertTrue(bandwidth.needsSize(VIDEO));
+        assertFalse(bandwidth.needsSize(PHOTO));
+        assertEquals(1, bandwidth.priority(VIDEO, 10L << 20));
+        assertEquals(2, bandwidth.priority(VIDEO, 100L << 20));
+        assertEquals(1, bandwidth.priority(VIDEO, -1));
+    }
+
+    @Test
+    public void videosAreMeasuredBeforeTheDownload() throws Exception {
+        String url = "http://localhost:" + server.getAddress().getPort() + "/media/clip.mp4";
+        try (DownloadService service = new DownloadService(10)) {
+            service.setBandwidth(Bandwidth.parse(null, "pics,vids,large"));
+            assertEquals(DownloadResult.Status.DOWNLOADED, service.submit(url, dir.toString()).get().getStatus());
+        }
+        assertEquals(List.of("HEAD /media/clip.mp4", "GET /media/clip.mp4"), requests);
+        assertEquals(SIZE, Files.size(dir.resolve("clip.mp4")));
+    }
+
+    @Test
+    public void bucketGoesIntoDebt() {
+        ByteRateLimiter limiter = new ByteRateLimiter(FileEntityConsumer.BUFFER_SIZE);
+        assertEquals(0, limiter.reserve(FileEntityConsumer.BUFFER_SIZE));
+        long wait = limiter.reserve(FileEntityConsumer.BUFFER_SIZE);
+        assertTrue(wait > 500_000_000L && wait <= 1_000_000_000L);
+    }
+
+    @Test
+    public void throttlesTheDownloadToTheRate() throws Exception {
+        String url = "http://localhost:" + server.getAddress().getPort() + "/media/a.jpg";
+        try (DownloadService service = new DownloadService(10)) {
+            service.setBandwidth(Bandwidth.parse("256k", null));
+            long start = System.nanoTime();
+            assertEquals(DownloadResult.Status.DOWNLOADED, service.submit(url, dir.toString()).get().getStatus());
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            assertEquals(SIZE, Files.size(dir.resolve("a.jpg")));
+            // the burst covers the first 256 KB and nothing waits after the last chunk, the rest takes 0.75 s
+            assertTrue("took " + millis + " ms", millis >= 600);
+        }
+    }
+}
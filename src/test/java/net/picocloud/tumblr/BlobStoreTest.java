@@ -0,0 +1,95 @@
+package net.picocloud.tumblr;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class BlobStoreTest {
+
+    private static Path tmp;
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        tmp = Files.createTempDirectory("BlobStoreTest");
+    }
+
+    @Test
+    public void storesContentOnce() throws IOException {
+        BlobStore store = new BlobStore(tmp.resolve(".blobs"));
+        byte[] content = "same image".getBytes(StandardCharsets.UTF_8);
+        byte[] digest = BlobStore.newDigest().digest(content);
+
+        Path a = Files.write(tmp.resolve("a.jpg.part"), content);
+        Path b = Files.write(tmp.resolve("b.jpg.part"), content);
+        Path blobA = store.store(a, digest, tmp.resolve("a.jpg"), "https://64.media.tumblr.com/x/s540x810/a.jpg");
+        Path blobB = store.store(b, digest, tmp.resolve("b.jpg"), "https://64.media.tumblr.com/x/s1280x1920/b.jpg");
+
+        assertEquals(blobA, blobB);
+        assertEquals(1, store.getDuplicates());
+        assertEquals(content.length, store.getSavedBytes());
+        assertFalse(Files.exists(a));
+        assertFalse(Files.exists(b));
+        assertArrayEquals(content, Files.readAllBytes(tmp.resolve("a.jpg")));
+        assertArrayEquals(content, Files.readAllBytes(tmp.resolve("b.jpg")));
+        assertEquals(2, Files.readAllLines(store.getRoot().resolve(BlobStore.INDEX)).size());
+    }
+
+    @Test
+    public void aFailedLinkDoesNotTurnOffLinks() throws IOException {
+        Path dir = Files.createDirectories(tmp.resolve("links"));
+        BlobStore store = new BlobStore(dir.resolve(".blobs"));
+        byte[] content = "linked image".getBytes(StandardCharsets.UTF_8);
+        byte[] digest = BlobStore.newDigest().digest(content);
+
+        Path blob = store.store(Files.write(dir.resolve("a.jpg.part"), content), digest, dir.resolve("a.jpg"), "a");
+        assertTrue(Files.isSameFile(blob, dir.resolve("a.jpg")));
+        Path missing = dir.resolve("missing").resolve("b.jpg");
+        assertThrows(IOException.class, () -> store.store(Files.write(dir.resolve("b.jpg.part"), content), digest, missing, "b"));
+        store.store(Files.write(dir.resolve("c.jpg.part"), content), digest, dir.resolve("c.jpg"), "c");
+        assertTrue(Files.isSameFile(blob, dir.resolve("c.jpg")));
+    }
+
+    @Test
+    public void replacesAFileOfTheSameName() throws IOException {
+        Path dir = Files.createDirectories(tmp.resolve("replace"));
+        BlobStore store = new BlobStore(dir.resolve(".blobs"));
+        byte[] first = "first image".getBytes(StandardCharsets.UTF_8);
+        byte[] second = "second image".getBytes(StandardCharsets.UTF_8);
+        Path target = dir.resolve("image.jpg");
+
+        store.store(Files.write(dir.resolve("1.part"), first), BlobStore.newDigest().digest(first), target, "https://a.tumblr.com/image.jpg");
+        Path blob = store.store(Files.write(dir.resolve("2.part"), second), BlobStore.newDigest().digest(second), target, "https://b.tumblr.com/image.jpg");
+        assertArrayEquals(second, Files.readAllBytes(target));
+        assertTrue(Files.isSameFile(blob, target));
+
+        store.store(Files.write(dir.resolve("3.part"), second), BlobStore.newDigest().digest(second), target, "https://b.tumblr.com/image.jpg");
+        assertTrue(Files.isSameFile(blob, target));
+        try (var files = Files.list(dir)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        delete(tmp.toFile());
+    }
+
+    private static void delete(File file) {
+        if (file == null)
+            return;
+        if (file.isDirectory()) {
+            for (var f : file.listFiles()) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+}
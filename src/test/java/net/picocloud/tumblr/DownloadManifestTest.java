@@ -0,0 +1,84 @@
+package net.picocloud.tumblr;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+public class DownloadManifestTest {
+
+    private Path tmp;
+
+    @Before
+    public void setup() throws IOException {
+        tmp = Files.createTempDirectory("DownloadManifestTest");
+    }
+
+    @Test
+    public void recordsAndReopens() throws IOException {
+        try (DownloadManifest manifest = DownloadManifest.open(tmp)) {
+            for (int i = 0; i < 5000; i++)
+                manifest.record("https://64.media.tumblr.com/" + i + ".jpg", DownloadManifest.Status.COMPLETE, i, null);
+            manifest.record("https://va.media.tumblr.com/x.mp4", DownloadManifest.Status.FAILED, 503, null);
+        }
+        try (DownloadManifest manifest = DownloadManifest.open(tmp)) {
+            assertEquals(5001, manifest.size());
+            assertTrue(manifest.isComplete("https://64.media.tumblr.com/4711.jpg", "4711.jpg"));
+            assertFalse(manifest.isComplete("https://va.media.tumblr.com/x.mp4", "x.mp4"));
+            assertFalse(manifest.isComplete("https://64.media.tumblr.com/5000.jpg", "5000.jpg"));
+            DownloadManifest.Entry entry = manifest.get("https://64.media.tumblr.com/4711.jpg");
+            assertEquals(4711, entry.getSize());
+            assertEquals(DownloadManifest.Status.FAILED, manifest.get("https://va.media.tumblr.com/x.mp4").getStatus());
+        }
+    }
+
+    @Test
+    public void replaysLogWithoutIndex() throws IOException {
+        try (DownloadManifest manifest = DownloadManifest.open(tmp)) {
+            manifest.record("https://64.media.tumblr.com/a.jpg", DownloadManifest.Status.COMPLETE, 1, "ab");
+        }
+        Files.delete(tmp.resolve(DownloadManifest.INDEX));
+        // a line cut off by a killed run
+        Files.writeString(tmp.resolve(DownloadManifest.LOG), "COMPLETE\t2\t-", StandardOpenOption.APPEND);
+        try (DownloadManifest manifest = DownloadManifest.open(tmp)) {
+            assertTrue(manifest.isComplete("https://64.media.tumblr.com/a.jpg", "a.jpg"));
+            manifest.record("https://64.media.tumblr.com/b.jpg", DownloadManifest.Status.COMPLETE, 3, null);
+            assertEquals(3, manifest.get("https://64.media.tumblr.com/b.jpg").getSize());
+        }
+    }
+
+    @Test
+    public void rebuildsFromDirectory() throws IOException {
+        Files.writeString(tmp.resolve("c57abfc65e972de8e0fca1e42b732335150ecaa9.jpg"), "image");
+        Files.writeString(tmp.resolve("video.mp4.part"), "half");
+        try (DownloadManifest manifest = DownloadManifest.open(tmp)) {
+            assertEquals(1, manifest.size());
+            assertTrue(manifest.isComplete("https://64.media.tumblr.com/58589dd9647ae0ad64726ef0badd2ddb/2cd780c18824a716-5f/s540x810/c57abfc65e972de8e0fca1e42b732335150ecaa9.jpg",
+                    "c57abfc65e972de8e0fca1e42b732335150ecaa9.jpg"));
+            assertFalse(manifest.isComplete("https://va.media.tumblr.com/video.mp4", "video.mp4"));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        delete(tmp.toFile());
+    }
+
+    private static void delete(File file) {
+        if (file == null)
+            return;
+        if (file.isDirectory()) {
+            for (var f : file.listFiles()) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+}
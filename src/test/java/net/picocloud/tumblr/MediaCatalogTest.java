@@ -0,0 +1,149 @@
+package net.picocloud.tumblr;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class MediaCatalogTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("catalog");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void ndjsonLinesAreJsonObjects() throws IOException {
+        Path file = dir.resolve(MediaCatalog.NDJSON_FILE);
+        try (MediaCatalog catalog = MediaCatalog.open(file, MediaCatalog.Format.NDJSON)) {
+            catalog.add(new MediaCatalog.Entry("https://a.tumblr.com/post/1/\"quoted\"", "https://64.media.tumblr.com/1.jpg",
+                    MediaCatalog.Type.PHOTO, 3, 1234L));
+            catalog.add(new MediaCatalog.Entry(null, "https://va.media.tumblr.com/2.mp4", MediaCatalog.Type.VIDEO, 4, 5678L));
+        }
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        JsonObject first = new JsonParser().parse(lines.get(0)).getAsJsonObject();
+        assertEquals("https://a.tumblr.com/post/1/\"quoted\"", first.get("post").getAsString());
+        assertEquals("https://64.media.tumblr.com/1.jpg", first.get("media").getAsString());
+        assertEquals("photo", first.get("type").getAsString());
+        assertEquals(3, first.get("page").getAsInt());
+        assertEquals(1234L, first.get("crawledAt").getAsLong());
+        JsonObject second = new JsonParser().parse(lines.get(1)).getAsJsonObject();
+        assertTrue(second.get("post").isJsonNull());
+        assertEquals("video", second.get("type").getAsString());
+    }
+
+    @Test
+    public void binaryRecordsAreReadBackAfterAppending() throws IOException {
+        Path file = dir.resolve(MediaCatalog.BINARY_FILE);
+        try (MediaCatalog catalog = MediaCatalog.open(file, MediaCatalog.Format.BINARY)) {
+            catalog.add(new MediaCatalog.Entry("https://a.tumblr.com/post/1", "https://64.media.tumblr.com/1.jpg",
+                    MediaCatalog.Type.PHOTO, 1, 10L));
+            catalog.add(new MediaCatalog.Entry("https://a.tumblr.com/post/1", "https://64.media.tumblr.com/2.jpg",
+                    MediaCatalog.Type.PHOTO, 1, 10L));
+            catalog.add(new MediaCatalog.Entry(null, "https://va.media.tumblr.com/3.mp4", MediaCatalog.Type.VIDEO, 2, 20L));
+        }
+        try (MediaCatalog catalog = MediaCatalog.open(file, MediaCatalog.Format.BINARY)) {
+            catalog.add(new MediaCatalog.Entry("https://b.tumblr.com/post/ü", "https://64.media.tumblr.com/4.jpg",
+                    MediaCatalog.Type.PHOTO, 300, 30L));
+        }
+        List<MediaCatalog.Entry> entries = new ArrayList<>();
+        MediaCatalog.readBinary(file, entries::add);
+        assertEquals(4, entries.size());
+        assertEquals("https://a.tumblr.com/post/1", entries.get(1).getPost());
+        assertEquals("https://64.media.tumblr.com/2.jpg", entries.get(1).getMedia());
+        assertNull(entries.get(2).getPost());
+        assertEquals(MediaCatalog.Type.VIDEO, entries.get(2).getType());
+        assertEquals(20L, entries.get(2).getCrawledAt());
+        assertEquals("https://b.tumblr.com/post/ü", entries.get(3).getPost());
+        assertEquals(300, entries.get(3).getPage());
+    }
+
+    @Test
+    public void recordCutOffByACrashIsDropped() throws IOException {
+        Path file = dir.resolve(MediaCatalog.BINARY_FILE);
+        try (MediaCatalog catalog = MediaCatalog.open(file, MediaCatalog.Format.BINARY)) {
+            catalog.add(new MediaCatalog.Entry("https://a.tumblr.com/post/1", "https://64.media.tumblr.com/1.jpg",
+                    MediaCatalog.Type.PHOTO, 1, 10L));
+            catalog.add(new MediaCatalog.Entry("https://a.tumblr.com/post/2", "https://64.media.tumblr.com/2.jpg",
+                    MediaCatalog.Type.PHOTO, 1, 10L));
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+        List<MediaCatalog.Entry> entries = new ArrayList<>();
+        assertThrows(EOFException.class, () -> MediaCatalog.readBinary(file, entries::add));
+        assertEquals(1, entries.size());
+
+        try (MediaCatalog catalog = MediaCatalog.open(file, MediaCatalog.Format.BINARY)) {
+            catalog.add(new MediaCatalog.Entry("https://a.tumblr.com/post/3", "https://64.media.tumblr.com/3.jpg",
+                    MediaCatalog.Type.PHOTO, 2, 20L));
+        }
+        entries.clear();
+        MediaCatalog.readBinary(file, entries::add);
+        assertEquals(2, entries.size());
+        assertEquals("https://64.media.tumblr.com/3.jpg", entries.get(1).getMedia());
+    }
+
+    @Test
+    public void lineCutOffByACrashIsDropped() throws IOException {
+        Path file = dir.resolve(MediaCatalog.NDJSON_FILE);
+        Files.writeString(file, "{\"post\":null,\"media\":\"https://64.media.tumblr.com/1.jpg\"}\n{\"post\":nu");
+        try (MediaCatalog catalog = MediaCatalog.open(file, MediaCatalog.Format.NDJSON)) {
+            catalog.add(new MediaCatalog.Entry(null, "https://64.media.tumblr.com/2.jpg", MediaCatalog.Type.PHOTO, 1, 10L));
+        }
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(2, lines.size());
+        for (String line : lines)
+            assertTrue(new JsonParser().parse(line).isJsonObject());
+    }
+
+    @Test
+    public void recordsAreWrittenInGroups() throws IOException {
+        Path file = dir.resolve(MediaCatalog.NDJSON_FILE);
+        try (MediaCatalog catalog = MediaCatalog.open(file, MediaCatalog.Format.NDJSON)) {
+            catalog.add(new MediaCatalog.Entry("https://a.tumblr.com/post/1", "https://64.media.tumblr.com/1.jpg",
+                    MediaCatalog.Type.PHOTO, 1, 10L));
+            assertEquals(0, Files.size(file));
+            for (int i = 0; Files.size(file) == 0; i++)
+                catalog.add(new MediaCatalog.Entry("https://a.tumblr.com/post/1", "https://64.media.tumblr.com/" + i + ".jpg",
+                        MediaCatalog.Type.PHOTO, 1, 10L));
+            assertEquals(catalog.getRecords(), Files.readAllLines(file).size());
+        }
+    }
+
+    @Test
+    public void bufferedRecordsAreCommittedWithoutFurtherAdds() throws Exception {
+        Path file = dir.resolve(MediaCatalog.NDJSON_FILE);
+        try (MediaCatalog catalog = MediaCatalog.open(file, MediaCatalog.Format.NDJSON)) {
+            catalog.add(new MediaCatalog.Entry("https://a.tumblr.com/post/1", "https://64.media.tumblr.com/1.jpg",
+                    MediaCatalog.Type.PHOTO, 1, 10L));
+            long end = System.currentTimeMillis() + 5 * MediaCatalog.GROUP_MILLIS;
+            while (Files.size(file) == 0 && System.currentTimeMillis() < end)
+                Thread.sleep(50);
+            assertEquals(1, Files.readAllLines(file).size());
+        }
+    }
+}
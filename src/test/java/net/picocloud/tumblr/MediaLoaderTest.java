@@ -35,6 +35,7 @@ public class MediaLoaderTest {
 
     @AfterClass
     public static void tearDown()  {
+        DownloadService.shared().close();
         delete(tmp.toFile());
     }
 
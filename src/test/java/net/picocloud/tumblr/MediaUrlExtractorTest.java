@@ -0,0 +1,55 @@
+package net.picocloud.tumblr;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MediaUrlExtractorTest {
+
+    private static List<String> extract(String html) {
+        List<String> urls = new ArrayList<>();
+        MediaUrlExtractor.extract(html, urls::add);
+        return urls;
+    }
+
+    @Test
+    public void findsAllAttributeForms() {
+        assertEquals(List.of("https://a/1.jpg", "https://a/2.jpg", "https://a/3.jpg", "https://a/4.jpg"),
+                extract("<p>text</p><img src=\"https://a/1.jpg\"><img data-src='https://a/2.jpg'>" +
+                        "<IMG SRC = https://a/3.jpg alt=x><video poster=\"https://a/4.jpg\"></video>"));
+    }
+
+    @Test
+    public void findsVideoSources() {
+        assertEquals(List.of("https://v/1.jpg", "https://v/1.mp4"),
+                extract("<video controls poster='https://v/1.jpg'>\n  <source src=\"https://v/1.mp4\" type=\"video/mp4\">\n</video>"));
+    }
+
+    @Test
+    public void splitsSrcset() {
+        assertEquals(List.of("https://a/500.jpg", "https://a/1280.jpg", "https://a/x.jpg"),
+                extract("<img srcset=\"https://a/500.jpg 500w, https://a/1280.jpg 1280w\"><img srcset='https://a/x.jpg'>"));
+    }
+
+    @Test
+    public void ignoresTextAndOtherAttributes() {
+        assertEquals(List.of("https://a/1.jpg"),
+                extract("src=\"https://text/no.jpg\" <a href=\"https://a/\" title='src=\"no\"'>" +
+                        "<img alt=\"a > b\" src=\"https://a/1.jpg\"><img src=\"data:image/png;base64,AAAA\">"));
+    }
+
+    @Test
+    public void decodesAmpersands() {
+        assertEquals(List.of("https://a/v.mp4?a=1&b=2"), extract("<source src=\"https://a/v.mp4?a=1&amp;b=2\">"));
+    }
+
+    @Test
+    public void acceptsNullAndCutOffText() {
+        assertTrue(extract(null).isEmpty());
+        assertEquals(List.of("https://a/1.jpg"), extract("<img src=\"https://a/1.jpg"));
+        assertTrue(extract("<img src=").isEmpty());
+    }
+}
@@ -0,0 +1,62 @@
+package net.picocloud.tumblr;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class MediaVariantsTest {
+
+    private static final String NEW = "https://64.media.tumblr.com/0a1b/2c3d-e4/%s/f5a6.jpg";
+    private static final String OLD = "https://64.media.tumblr.com/0a1b/tumblr_p1q2r3_%s.png";
+
+    @Test
+    public void variantsHaveTheSameKey() {
+        assertEquals(MediaVariants.key(String.format(NEW, "s540x810")), MediaVariants.key(String.format(NEW, "s1280x1920")));
+        assertEquals("https://64.media.tumblr.com/0a1b/2c3d-e4/*/f5a6.jpg", MediaVariants.key(String.format(NEW, "s75x75")));
+        assertEquals("https://64.media.tumblr.com/0a1b/tumblr_p1q2r3_*.png", MediaVariants.key(String.format(OLD, "75sq")));
+        assertEquals(MediaVariants.key(String.format(OLD, "500")), MediaVariants.key(String.format(OLD, "1280")));
+        assertEquals("https://example.com/s540x810/a.jpg", MediaVariants.key("https://example.com/s540x810/a.jpg"));
+        assertEquals(540, MediaVariants.width(String.format(NEW, "s540x810")));
+        assertEquals(500, MediaVariants.width(String.format(OLD, "500")));
+    }
+
+    @Test
+    public void largerVariantsComeLargestFirst() {
+        assertEquals(List.of(String.format(NEW, "s2048x3072"), String.format(NEW, "s1280x1920")),
+                MediaVariants.larger(String.format(NEW, "s540x810")));
+        assertEquals(List.of(String.format(NEW, "s2048x3072")), MediaVariants.larger(String.format(NEW, "s1280x1920")));
+        assertEquals(List.of(String.format(OLD, "1280")), MediaVariants.larger(String.format(OLD, "400")));
+        assertTrue(MediaVariants.larger(String.format(OLD, "1280")).isEmpty());
+        assertTrue(MediaVariants.larger("https://va.media.tumblr.com/tumblr_v1.mp4").isEmpty());
+    }
+
+    @Test
+    public void largestKeepsOneUrlPerImage() {
+        assertEquals(List.of(String.format(NEW, "s640x960"), String.format(OLD, "500")),
+                new ArrayList<>(MediaVariants.largest(List.of(String.format(NEW, "s250x400"), String.format(OLD, "500"),
+                        String.format(NEW, "s640x960"), String.format(NEW, "s400x600")))));
+    }
+
+    @Test
+    public void resolvesEachImageOnceToTheLargestVariant() {
+        Set<String> available = Set.of(String.format(NEW, "s1280x1920"), String.format(OLD, "1280"));
+        List<String> probed = new ArrayList<>();
+        MediaVariants variants = new MediaVariants(url -> {
+            probed.add(url);
+            return CompletableFuture.completedFuture(available.contains(url) ? 200 : 404);
+        });
+        assertEquals(List.of(String.format(NEW, "s1280x1920"), String.format(OLD, "1280"), "https://a.com/b.jpg"),
+                variants.resolveNew(List.of(String.format(NEW, "s540x810"), String.format(OLD, "500"),
+                        String.format(NEW, "s400x600"), "https://a.com/b.jpg")));
+        assertEquals(List.of(String.format(NEW, "s2048x3072"), String.format(OLD, "1280"), String.format(NEW, "s1280x1920")),
+                probed);
+
+        assertTrue(variants.resolveNew(List.of(String.format(NEW, "s75x75"), String.format(OLD, "1280"))).isEmpty());
+        assertEquals(3, probed.size());
+    }
+}
@@ -0,0 +1,61 @@
+package net.picocloud.tumblr;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test
+    public void estimatesQuantiles() {
+        Metrics.Histogram histogram = new Metrics().histogram("test_seconds", "test", 1, 2, 4);
+        for (int i = 0; i < 90; i++)
+            histogram.observe(0.5);
+        for (int i = 0; i < 10; i++)
+            histogram.observe(3);
+        assertEquals(100, histogram.getCount());
+        assertEquals(75, histogram.getSum(), 1e-9);
+        assertTrue(histogram.quantile(0.5) <= 1);
+        assertTrue(histogram.quantile(0.99) > 2 && histogram.quantile(0.99) <= 4);
+    }
+
+    @Test
+    public void writesPrometheusText() throws IOException {
+        Metrics metrics = new Metrics();
+        metrics.counter("test_total", "a counter").add(3);
+        metrics.gauge("test_gauge", "a gauge", () -> 7);
+        metrics.histogram("test_bytes", "a histogram", 10).observe(20);
+        StringBuilder text = new StringBuilder();
+        metrics.writePrometheus(text);
+        assertTrue(text.toString().contains("# TYPE test_total counter\ntest_total 3\n"));
+        assertTrue(text.toString().contains("test_gauge 7\n"));
+        assertTrue(text.toString().contains("test_bytes_bucket{le=\"10.0\"} 0\ntest_bytes_bucket{le=\"+Inf\"} 1\n"));
+        assertEquals(3L, metrics.snapshot().get("test_total"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTypeClash() {
+        Metrics metrics = new Metrics();
+        metrics.counter("test", "a counter");
+        metrics.histogram("test", "a histogram", 1);
+    }
+
+    @Test
+    public void servesSharedMetrics() throws Exception {
+        Metrics.shared().counter("test_served_total", "a counter").inc();
+        try (MetricsServer server = new MetricsServer(0, Metrics.shared());
+             InputStream in = new URL("http://localhost:" + server.getPort() + MetricsServer.PATH).openStream()) {
+            assertTrue(new String(in.readAllBytes(), StandardCharsets.UTF_8).contains("test_served_total 1"));
+        }
+        Object value = ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(new ObjectName(Metrics.OBJECT_NAME), "test_served_total");
+        assertEquals(1L, value);
+    }
+}
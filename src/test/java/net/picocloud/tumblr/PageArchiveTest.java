@@ -0,0 +1,117 @@
+package net.picocloud.tumblr;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class PageArchiveTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("archive");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static String page(int i) {
+        return "<html><body>" + "<p>Grüße aus Seite " + i + "</p>".repeat(200) + "</body></html>";
+    }
+
+    @Test
+    public void pagesAreReadBackAcrossSegments() throws IOException {
+        try (PageArchive archive = PageArchive.open(dir, 1024)) {
+            for (int i = 1; i <= 20; i++)
+                archive.append("page" + i + ".html", page(i));
+            archive.append("page3.html", "replaced");
+            assertEquals(20, archive.size());
+            assertEquals(page(7), archive.read("page7.html"));
+            assertEquals("replaced", archive.read("page3.html"));
+            assertNull(archive.read("page21.html"));
+        }
+        assertTrue(Files.exists(dir.resolve("pages-00001.seg")));
+        assertTrue(PageArchive.isArchive(dir));
+
+        try (PageArchive archive = PageArchive.open(dir, 1024)) {
+            List<String> names = new ArrayList<>();
+            for (PageArchive.Page page : archive) {
+                names.add(page.getName());
+                if (page.getName().equals("page20.html"))
+                    assertEquals(page(20), page.getBody());
+            }
+            assertEquals(20, names.size());
+            assertEquals("page1.html", names.get(0));
+            assertEquals("replaced", archive.read("page3.html"));
+        }
+    }
+
+    @Test
+    public void recordsMissingInTheIndexAreRecovered() throws IOException {
+        try (PageArchive archive = PageArchive.open(dir)) {
+            archive.append("page1.html", page(1));
+            archive.flush();
+            archive.append("page2.html", page(2));
+            archive.append("page3.html", page(3));
+        }
+        // lose the last index line and cut the last record as a crash would
+        Path index = dir.resolve(PageArchive.INDEX);
+        List<String> lines = Files.readAllLines(index);
+        Files.write(index, lines.subList(0, 2));
+        try (FileChannel segment = FileChannel.open(dir.resolve("pages-00000.seg"), StandardOpenOption.WRITE)) {
+            segment.truncate(segment.size() - 10);
+        }
+
+        try (PageArchive archive = PageArchive.open(dir)) {
+            assertEquals(2, archive.size());
+            assertEquals(page(2), archive.read("page2.html"));
+            archive.append("page3.html", page(3));
+        }
+        try (PageArchive archive = PageArchive.open(dir)) {
+            assertEquals(page(3), archive.read("page3.html"));
+        }
+    }
+
+    @Test
+    public void unindexedRecordsAreAddedToTheIndex() throws IOException {
+        try (PageArchive archive = PageArchive.open(dir)) {
+            archive.append("page1.html", page(1));
+            archive.append("page2.html", page(2));
+            archive.append("page3.html", page(3));
+        }
+        // the last two index lines were not flushed, the second one only in part
+        Path index = dir.resolve(PageArchive.INDEX);
+        List<String> lines = Files.readAllLines(index);
+        Files.writeString(index, lines.get(0) + "\n" + lines.get(1).substring(0, lines.get(1).length() - 6));
+
+        try (PageArchive archive = PageArchive.open(dir)) {
+            assertEquals(List.of("page1.html", "page2.html", "page3.html"), new ArrayList<>(archive.names()));
+            assertEquals(page(2), archive.read("page2.html"));
+            assertEquals(page(3), archive.read("page3.html"));
+            archive.append("page4.html", page(4));
+        }
+        try (PageArchive archive = PageArchive.open(dir)) {
+            assertEquals(List.of("page1.html", "page2.html", "page3.html", "page4.html"), new ArrayList<>(archive.names()));
+            assertEquals(page(4), archive.read("page4.html"));
+        }
+        for (String line : Files.readAllLines(index))
+            assertTrue(line, line.matches("\\d+\t\\d+\tpage\\d\\.html"));
+    }
+}
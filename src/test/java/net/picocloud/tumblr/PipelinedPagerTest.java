@@ -0,0 +1,91 @@
+package net.picocloud.tumblr;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class PipelinedPagerTest {
+
+    /**
+     * pages of the numbers 0 until total with random latency
+     */
+    private static Function<Map<String, ?>, List<Integer>> numbers(int total, AtomicInteger maxInFlight) {
+        AtomicInteger inFlight = new AtomicInteger();
+        return options -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextInt(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Object offsetOption = options.get(PipelinedPager.OFFSET);
+            int offset = offsetOption == null ? 0 : (Integer) offsetOption;
+            List<Integer> page = new ArrayList<>();
+            for (int i = offset; i < Math.min(total, offset + PipelinedPager.PAGE_SIZE); i++)
+                page.add(i);
+            inFlight.decrementAndGet();
+            return page;
+        };
+    }
+
+    @Test
+    public void consumesPagesInOrder() {
+        AtomicInteger maxInFlight = new AtomicInteger();
+        List<Integer> all = new ArrayList<>();
+        int pages = new PipelinedPager<>(numbers(1010, maxInFlight), 8, () -> {
+        }).forEachPage(all::addAll);
+        assertEquals(51, pages);
+        assertEquals(1010, all.size());
+        for (int i = 0; i < all.size(); i++)
+            assertEquals(i, (int) all.get(i));
+        assertTrue(maxInFlight.get() > 1);
+        assertTrue(maxInFlight.get() <= 8);
+    }
+
+    @Test
+    public void stopsAtFirstError() {
+        List<Integer> all = new ArrayList<>();
+        var numbers = numbers(1000, new AtomicInteger());
+        int pages = new PipelinedPager<Integer>(options -> {
+            if (Integer.valueOf(100).equals(options.get(PipelinedPager.OFFSET)))
+                throw new IllegalStateException("broken page");
+            return numbers.apply(options);
+        }, 4, () -> {
+        }).forEachPage(all::addAll);
+        assertEquals(5, pages);
+        assertEquals(100, all.size());
+    }
+
+    @Test
+    public void reportsAnAbortedRun() {
+        var numbers = numbers(1000, new AtomicInteger());
+        assertTrue(new PipelinedPager<>(numbers, 4, () -> {
+        }).forEachPageWhile(page -> true));
+        assertFalse(new PipelinedPager<Integer>(options -> {
+            if (Integer.valueOf(100).equals(options.get(PipelinedPager.OFFSET)))
+                throw new IllegalStateException("broken page");
+            return numbers.apply(options);
+        }, 4, () -> {
+        }).forEachPageWhile(page -> true));
+    }
+
+    @Test
+    public void startsWithASingleRequest() {
+        AtomicInteger requests = new AtomicInteger();
+        var numbers = numbers(1000, new AtomicInteger());
+        var pager = new PipelinedPager<Integer>(options -> {
+            requests.incrementAndGet();
+            return numbers.apply(options);
+        }, 8, () -> {
+        });
+        assertTrue(pager.forEachPageWhile(page -> false));
+        assertEquals(1, requests.get());
+    }
+}
@@ -0,0 +1,146 @@
+package net.picocloud.tumblr;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class ResumableDownloadTest {
+
+    private static final int SIZE = 100_000;
+    private static final String ETAG = "\"v1\"";
+
+    private final byte[] content = new byte[SIZE];
+    private Path dir;
+    private HttpServer server;
+    private String url;
+    private volatile String range;
+    private volatile String ifRange;
+    private volatile int code;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < SIZE; i++)
+            content[i] = (byte) (i * 31);
+        dir = Files.createTempDirectory("resume");
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/media", this::handle);
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/media/a.jpg";
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /**
+     * serves the content with an ETag and honors Range requests whose If-Range matches it
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            range = exchange.getRequestHeaders().getFirst("Range");
+            ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            exchange.getResponseHeaders().add("ETag", ETAG);
+            if (range != null && (ifRange == null || ifRange.equals(ETAG))) {
+                int start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                if (start >= SIZE) {
+                    code = 416;
+                    exchange.getResponseHeaders().add("Content-Range", "bytes */" + SIZE);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                code = 206;
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (SIZE - 1) + "/" + SIZE);
+                exchange.sendResponseHeaders(206, SIZE - start);
+                exchange.getResponseBody().write(content, start, SIZE - start);
+                return;
+            }
+            code = 200;
+            exchange.sendResponseHeaders(200, SIZE);
+            exchange.getResponseBody().write(content);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void writePart(byte[] bytes, String partUrl, String etag) throws IOException {
+        Files.write(dir.resolve("a.jpg" + ResumableDownload.PART_SUFFIX), bytes);
+        Properties properties = new Properties();
+        properties.setProperty("url", partUrl);
+        properties.setProperty("etag", etag);
+        try (OutputStream out = Files.newOutputStream(dir.resolve("a.jpg" + ResumableDownload.META_SUFFIX))) {
+            properties.store(out, null);
+        }
+    }
+
+    private DownloadResult download() throws Exception {
+        try (DownloadService service = new DownloadService(10)) {
+            return service.submit(url, dir.toString()).get();
+        }
+    }
+
+    private void assertComplete(DownloadResult result) throws IOException {
+        assertEquals(DownloadResult.Status.DOWNLOADED, result.getStatus());
+        assertArrayEquals(content, Files.readAllBytes(dir.resolve("a.jpg")));
+        assertFalse(Files.exists(dir.resolve("a.jpg" + ResumableDownload.PART_SUFFIX)));
+        assertFalse(Files.exists(dir.resolve("a.jpg" + ResumableDownload.META_SUFFIX)));
+    }
+
+    @Test
+    public void partialContentContinuesThePartFile() throws Exception {
+        writePart(Arrays.copyOf(content, 40_000), url, ETAG);
+        DownloadResult result = download();
+        assertEquals("bytes=40000-", range);
+        assertEquals(ETAG, ifRange);
+        assertEquals(206, code);
+        assertComplete(result);
+    }
+
+    @Test
+    public void changedContentRestartsThePartFile() throws Exception {
+        byte[] old = new byte[60_000];
+        Arrays.fill(old, (byte) 7);
+        writePart(old, url, "\"v0\"");
+        DownloadResult result = download();
+        assertEquals("bytes=60000-", range);
+        assertEquals("\"v0\"", ifRange);
+        assertEquals(200, code);
+        assertComplete(result);
+    }
+
+    @Test
+    public void unsatisfiableRangeCompletesAFullPartFile() throws Exception {
+        writePart(content, url, ETAG);
+        DownloadResult result = download();
+        assertEquals("bytes=" + SIZE + "-", range);
+        assertEquals(416, code);
+        assertComplete(result);
+    }
+
+    @Test
+    public void partFileOfAnotherUrlIsDownloadedAgain() throws Exception {
+        writePart(Arrays.copyOf(content, 40_000), url + "?other", ETAG);
+        DownloadResult result = download();
+        assertNull(range);
+        assertNull(ifRange);
+        assertEquals(200, code);
+        assertComplete(result);
+    }
+}
@@ -0,0 +1,79 @@
+package net.picocloud.tumblr;
+
+import org.apache.hc.core5.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void classifiesFailures() {
+        assertEquals(RetryPolicy.Kind.RATE_LIMITED, RetryPolicy.classify(429));
+        assertEquals(RetryPolicy.Kind.SERVER_ERROR, RetryPolicy.classify(503));
+        assertEquals(RetryPolicy.Kind.CLIENT_ERROR, RetryPolicy.classify(404));
+        assertEquals(RetryPolicy.Kind.CONNECT, RetryPolicy.classify(new ConnectException()));
+        assertEquals(RetryPolicy.Kind.TIMEOUT, RetryPolicy.classify(new SocketTimeoutException()));
+        assertFalse(RetryPolicy.Kind.CLIENT_ERROR.isRetryable());
+    }
+
+    @Test
+    public void limitsAttemptsAndBudget() {
+        RetryPolicy policy = new RetryPolicy();
+        assertTrue(policy.shouldRetry(RetryPolicy.Kind.SERVER_ERROR, 1, "a"));
+        assertFalse(policy.shouldRetry(RetryPolicy.Kind.SERVER_ERROR, RetryPolicy.MAX_ATTEMPTS, "a"));
+        assertFalse(policy.shouldRetry(RetryPolicy.Kind.CLIENT_ERROR, 1, "a"));
+        int retries = 1;
+        while (policy.shouldRetry(RetryPolicy.Kind.IO, 1, "a"))
+            retries++;
+        assertEquals((int) RetryPolicy.INITIAL_BUDGET, retries);
+        assertTrue(policy.shouldRetry(RetryPolicy.Kind.IO, 1, "b"));
+    }
+
+    @Test
+    public void honoursRetryAfter() {
+        RetryPolicy policy = new RetryPolicy();
+        BasicHttpResponse response = new BasicHttpResponse(503);
+        response.addHeader("Retry-After", "30");
+        long retryAfter = RetryPolicy.retryAfterMillis(response);
+        assertEquals(30_000, retryAfter);
+        assertTrue(policy.backoffMillis(1, retryAfter) >= 30_000);
+        assertTrue(policy.backoffMillis(30, 0) <= RetryPolicy.MAX_DELAY_MILLIS);
+    }
+
+    @Test
+    public void drainsJournal() throws IOException {
+        FailureJournal journal = new FailureJournal(dir);
+        journal.record("https://a/1.jpg", RetryPolicy.Kind.CLIENT_ERROR, 404, 1, "http status 404");
+        journal.record("https://a/2.jpg", RetryPolicy.Kind.TIMEOUT, 0, 5, "timeout");
+        journal.record("https://a/1.jpg", RetryPolicy.Kind.CLIENT_ERROR, 404, 1, "http status 404");
+        assertEquals(List.of("https://a/1.jpg", "https://a/2.jpg"), List.copyOf(journal.drain()));
+        assertFalse(Files.exists(journal.getFile()));
+        assertTrue(journal.drain().isEmpty());
+    }
+}
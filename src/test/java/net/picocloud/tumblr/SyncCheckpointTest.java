@@ -0,0 +1,91 @@
+package net.picocloud.tumblr;
+
+import com.tumblr.jumblr.types.Post;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class SyncCheckpointTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("checkpoint");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void emptyWithoutFile() throws IOException {
+        SyncCheckpoint checkpoint = SyncCheckpoint.open(dir);
+        assertTrue(checkpoint.getLikes("blog").isEmpty());
+        assertEquals(0, checkpoint.getNewestPostId("blog"));
+    }
+
+    @Test
+    public void savedCheckpointsAreReadAgain() throws IOException {
+        SyncCheckpoint checkpoint = SyncCheckpoint.open(dir);
+        checkpoint.setLikes("blog", List.of("https://a.tumblr.com/post/1", "https://b.tumblr.com/post/2"));
+        checkpoint.setNewestPostId("blog", 42);
+        checkpoint.setNewestPostId("blog", 17);
+        checkpoint.save();
+
+        SyncCheckpoint read = SyncCheckpoint.open(dir);
+        assertEquals(Set.of("https://a.tumblr.com/post/1", "https://b.tumblr.com/post/2"), read.getLikes("blog"));
+        assertEquals(42, read.getNewestPostId("blog"));
+        assertTrue(read.getLikes("other").isEmpty());
+        assertFalse(Files.exists(dir.resolve(SyncCheckpoint.FILE + ".tmp")));
+    }
+
+    /**
+     * pages of posts with the ids newest down to 1, the page at brokenOffset fails
+     */
+    private static PipelinedPager<Post> posts(long newest, int brokenOffset) {
+        Function<Map<String, ?>, List<Post>> function = options -> {
+            Object offsetOption = options.get(PipelinedPager.OFFSET);
+            int offset = offsetOption == null ? 0 : (Integer) offsetOption;
+            if (offset == brokenOffset)
+                throw new IllegalStateException("broken page");
+            List<Post> page = new ArrayList<>();
+            for (long id = newest - offset; id > Math.max(0, newest - offset - PipelinedPager.PAGE_SIZE); id--) {
+                Post post = new Post();
+                post.setId(id);
+                page.add(post);
+            }
+            return page;
+        };
+        return new PipelinedPager<>(function, 4, () -> {
+        });
+    }
+
+    @Test
+    public void failedPageKeepsTheNewestPostId() throws IOException {
+        SyncCheckpoint checkpoint = SyncCheckpoint.open(dir);
+        checkpoint.setNewestPostId("blog", 10);
+
+        assertEquals(40, TumblrApiCalls.getNewPosts(posts(100, 40), "blog", checkpoint).size());
+        assertEquals(10, checkpoint.getNewestPostId("blog"));
+
+        assertEquals(90, TumblrApiCalls.getNewPosts(posts(100, -1), "blog", checkpoint).size());
+        assertEquals(100, checkpoint.getNewestPostId("blog"));
+    }
+}
@@ -0,0 +1,107 @@
+package net.picocloud.tumblr;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class UrlFilterTest {
+
+    @Test
+    public void dropsDuplicates() {
+        UrlFilter filter = new UrlFilter(10);
+        for (int i = 0; i < 100_000; i++)
+            assertTrue(filter.add("https://64.media.tumblr.com/" + i + "/s540x810/image.jpg"));
+        for (int i = 0; i < 100_000; i++)
+            assertFalse(filter.add("https://64.media.tumblr.com/" + i + "/s540x810/image.jpg"));
+        assertEquals(100_000, filter.size());
+        assertTrue(filter.contains("https://64.media.tumblr.com/4711/s540x810/image.jpg"));
+        assertFalse(filter.contains("https://64.media.tumblr.com/4711/s1280x1920/image.jpg"));
+    }
+
+    @Test
+    public void bloomFilterGrowsWithTheSet() {
+        UrlFilter filter = new UrlFilter(1000);
+        long before = filter.bytes();
+        for (int i = 0; i < 100_000; i++)
+            filter.add("https://64.media.tumblr.com/" + i + "/s540x810/image.jpg");
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            assertTrue(filter.mightContain("https://64.media.tumblr.com/" + i + "/s540x810/image.jpg"));
+            if (filter.mightContain("https://64.media.tumblr.com/" + i + "/s1280x1920/image.jpg"))
+                falsePositives++;
+        }
+        assertTrue(falsePositives + " false positives", falsePositives < 2_000);
+        assertTrue(filter.bytes() > before);
+    }
+
+    @Test
+    public void fullFilterLetsNewUrlsThrough() {
+        UrlFilter filter = new UrlFilter(10, LongHashSet.MIN_CAPACITY);
+        int i = 0;
+        while (filter.size() < LongHashSet.MIN_CAPACITY / 2)
+            assertTrue(filter.add("https://64.media.tumblr.com/" + i++ + "/s540x810/image.jpg"));
+        assertFalse(filter.add("https://64.media.tumblr.com/0/s540x810/image.jpg"));
+        assertTrue(filter.add("https://64.media.tumblr.com/new/s540x810/image.jpg"));
+        assertTrue(filter.add("https://64.media.tumblr.com/new/s540x810/image.jpg"));
+        assertEquals(LongHashSet.MIN_CAPACITY / 2, filter.size());
+    }
+
+    @Test
+    public void longHashSetTableFitsInABuffer() {
+        assertTrue((long) LongHashSet.MAX_CAPACITY * Long.BYTES <= Integer.MAX_VALUE);
+        assertEquals(LongHashSet.MAX_CAPACITY, LongHashSet.capacityFor(Long.MAX_VALUE / 4));
+    }
+
+    @Test
+    public void longHashSetGrows() {
+        LongHashSet set = new LongHashSet(0, false);
+        for (long i = 1; i <= 10_000; i++)
+            assertTrue(set.add(i * 31));
+        for (long i = 1; i <= 10_000; i++)
+            assertTrue(set.contains(i * 31));
+        assertFalse(set.contains(17));
+        assertFalse(set.add(31));
+        assertEquals(10_000, set.size());
+    }
+
+    @Test
+    public void bloomFilterHasNoFalseNegatives() {
+        BloomFilter bloom = new BloomFilter(1000);
+        for (int i = 0; i < 1000; i++)
+            bloom.put(Fingerprint.of("url" + i));
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(bloom.mightContain(Fingerprint.of("url" + i)));
+            if (bloom.mightContain(Fingerprint.of("other" + i)))
+                falsePositives++;
+        }
+        assertTrue(falsePositives < 50);
+    }
+
+    @Test
+    public void downloadServiceSubmitsAUrlOncePerDirectory() throws Exception {
+        Path dir = Files.createTempDirectory("submitOnce");
+        try (DownloadService service = new DownloadService(10)) {
+            Files.writeString(dir.resolve("a.jpg"), "done");
+            String url = "https://64.media.tumblr.com/a.jpg";
+            assertEquals(DownloadResult.Status.SKIPPED, service.submitOnce(url, dir.toString()).get().getStatus());
+            assertEquals(DownloadResult.Status.DUPLICATE, service.submitOnce(url, dir + "/.").get().getStatus());
+            assertEquals(DownloadResult.Status.SKIPPED, service.submit(url, dir.toString()).get().getStatus());
+            assertTrue(service.submitted(dir.toString()).contains(url));
+        } finally {
+            deleteAll(dir);
+        }
+    }
+
+    private static void deleteAll(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
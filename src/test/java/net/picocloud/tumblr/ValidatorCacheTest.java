@@ -0,0 +1,116 @@
+package net.picocloud.tumblr;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class ValidatorCacheTest {
+
+    private Path dir;
+    private HttpServer server;
+    private volatile String content = "first";
+    private volatile int conditionalRequests = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("validators");
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/media", this::handle);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String etag = "\"" + content.hashCode() + "\"";
+            exchange.getResponseHeaders().add("ETag", etag);
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch != null) {
+                conditionalRequests++;
+                if (ifNoneMatch.equals(etag)) {
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+            }
+            byte[] body = content.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Test
+    public void latestValidatorsSurviveReopening() throws IOException {
+        try (ValidatorCache cache = ValidatorCache.open(dir)) {
+            for (int i = 0; i < 3; i++)
+                cache.record("https://a/1.jpg", "\"v" + i + "\"", null);
+            cache.record("https://a/2.jpg", null, "Wed, 21 Oct 2015 07:28:00 GMT");
+            cache.record("https://a/3.jpg", "\"x\"", null);
+            cache.record("https://a/3.jpg", null, null);
+        }
+        try (ValidatorCache cache = ValidatorCache.open(dir)) {
+            assertEquals(2, cache.size());
+            assertEquals("\"v2\"", cache.get("https://a/1.jpg").getEtag());
+            assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", cache.get("https://a/2.jpg").getLastModified());
+            assertNull(cache.get("https://a/3.jpg"));
+            assertTrue(cache.stale(60_000).isEmpty());
+            assertEquals(2, cache.stale(0).size());
+        }
+        // compacted on the second open
+        assertEquals(2, Files.readAllLines(dir.resolve(ValidatorCache.FILE)).size());
+    }
+
+    @Test
+    public void lineCutOffByACrashIsDropped() throws IOException {
+        Files.writeString(dir.resolve(ValidatorCache.FILE), "1\t\"a\"\t-\thttps://a/1.jpg\n1\t\"b\"\t-\thttps://a/");
+        try (ValidatorCache cache = ValidatorCache.open(dir)) {
+            assertEquals(1, cache.size());
+            cache.record("https://a/2.jpg", "\"c\"", null);
+        }
+        try (ValidatorCache cache = ValidatorCache.open(dir)) {
+            assertEquals(2, cache.size());
+            assertEquals("\"a\"", cache.get("https://a/1.jpg").getEtag());
+            assertEquals("\"c\"", cache.get("https://a/2.jpg").getEtag());
+        }
+    }
+
+    @Test
+    public void revalidationDownloadsOnlyChangedFiles() throws Exception {
+        String url = "http://localhost:" + server.getAddress().getPort() + "/media/a.jpg";
+        try (DownloadService service = new DownloadService(10)) {
+            assertEquals(DownloadResult.Status.DOWNLOADED, service.submit(url, dir.toString()).get().getStatus());
+            assertEquals(DownloadResult.Status.SKIPPED, service.submit(url, dir.toString()).get().getStatus());
+
+            service.setRevalidateAfter(0);
+            assertEquals(DownloadResult.Status.NOT_MODIFIED, service.submit(url, dir.toString()).get().getStatus());
+            assertEquals("first", Files.readString(dir.resolve("a.jpg")));
+
+            content = "second";
+            assertEquals(DownloadResult.Status.DOWNLOADED, service.submit(url, dir.toString()).get().getStatus());
+            assertEquals("second", Files.readString(dir.resolve("a.jpg")));
+            assertEquals(2, conditionalRequests);
+            assertEquals(List.of(url), service.validators(dir.toString()).stale(0));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package net.picocloud.tumblr.web;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openqa.selenium.Cookie;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpLikePageLoaderTest {
+
+    private static final int PAGES = 5;
+
+    private HttpServer server;
+    private String base;
+    private final AtomicInteger unavailable = new AtomicInteger(1);
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/liked/by/blog", this::handle);
+        server.start();
+        base = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            int page = path.contains("/page/") ? Integer.parseInt(path.substring(path.lastIndexOf('/') + 1)) : 1;
+            if (page == 2 && unavailable.getAndDecrement() > 0) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            boolean loggedIn = "session=secret".equals(exchange.getRequestHeaders().getFirst("Cookie"));
+            StringBuilder html = new StringBuilder("<html><body>");
+            if (loggedIn && page <= PAGES) {
+                html.append("<a class=\"post_permalink\" href=\"https://a.tumblr.com/post/").append(page).append("\"></a>")
+                        .append("<img class=\"post_media_photo\" src=\"https://64.media.tumblr.com/").append(page).append(".jpg\">");
+                if (page < PAGES)
+                    html.append("<a id=\"next_page_link\" href=\"/liked/by/blog/page/").append(page + 1).append("\">next</a>");
+            }
+            byte[] body = html.append("</body></html>").toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Test
+    void crawlsWithTheBrowserCookies() throws Exception {
+        var cookies = HttpLikePageLoader.cookieStore(Set.of(new Cookie("session", "secret", "localhost", "/", null)));
+        List<TumblrBrowserCalls.LikePage> pages = new ArrayList<>();
+        try (var loader = new HttpLikePageLoader(base, cookies, null, 2, true)) {
+            new ParallelLikeCrawler(loader, 2, 0).crawl("blog", Set.of(), pages::add);
+        }
+        assertEquals(PAGES, pages.size());
+        assertEquals("page1.html", pages.get(0).bodyFileName);
+        assertEquals("page5.html", pages.get(4).bodyFileName);
+        assertEquals(Set.of("https://64.media.tumblr.com/2.jpg"), pages.get(1).pics);
+        assertEquals(base + "/liked/by/blog/page/2", pages.get(0).nextPage);
+        assertTrue(pages.get(0).body.contains("post_permalink"));
+    }
+
+    @Test
+    void subdomainCookiesMatchTheSubdomains() {
+        var store = HttpLikePageLoader.cookieStore(List.of(
+                new Cookie("pfg", "1", ".tumblr.com", "/", null),
+                new Cookie("host", "2", "www.tumblr.com", "/", null)));
+        assertEquals(2, store.getCookies().size());
+        assertEquals("tumblr.com", store.getCookies().stream()
+                .filter(c -> c.getName().equals("pfg")).findFirst().orElseThrow().getDomain());
+    }
+}
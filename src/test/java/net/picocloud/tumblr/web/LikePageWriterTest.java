@@ -0,0 +1,91 @@
+package net.picocloud.tumblr.web;
+
+import net.picocloud.tumblr.MediaCatalog;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LikePageWriterTest {
+
+    private Path dir;
+    private Config config;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("LikePageWriterTest");
+        config = new Config("user", "password", "blog");
+        config.destPath = dir.toString() + File.separator;
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static TumblrBrowserCalls.LikePage page(int i, String... pics) {
+        var lp = new TumblrBrowserCalls.LikePage();
+        lp.posts = new LinkedHashSet<>(List.of("https://blog.tumblr.com/post/" + i));
+        lp.allPosts = Set.copyOf(lp.posts);
+        lp.pics = new LinkedHashSet<>(List.of(pics));
+        lp.vids = new LinkedHashSet<>();
+        lp.bodyFileName = "page" + i + ".html";
+        lp.body = "<html>" + i + "</html>";
+        return lp;
+    }
+
+    @Test
+    void writesPagesAndNewUrlsOnly() throws IOException {
+        try (var writer = new LikePageWriter(config, null)) {
+            writer.write(page(1, "https://64.media.tumblr.com/a.jpg", "https://64.media.tumblr.com/b.jpg"));
+            writer.write(page(2, "https://64.media.tumblr.com/b.jpg", "https://64.media.tumblr.com/c.jpg"));
+            assertEquals(2, writer.getPages());
+        }
+        assertEquals(List.of("https://64.media.tumblr.com/a.jpg", "https://64.media.tumblr.com/b.jpg",
+                "https://64.media.tumblr.com/c.jpg"), Files.readAllLines(dir.resolve(TumblrBrowserCalls.PICS_TXT)));
+        assertEquals(2, Files.readAllLines(dir.resolve(TumblrBrowserCalls.POSTS_TXT)).size());
+        assertEquals("<html>2</html>", Files.readString(dir.resolve(TumblrBrowserCalls.PAGES).resolve("page2.html")));
+    }
+
+    @Test
+    void catalogsTheNewMediaWithTheirPosts() throws IOException {
+        config.catalog = MediaCatalog.Format.BINARY;
+        try (var writer = new LikePageWriter(config, null)) {
+            var lp = page(2, "https://64.media.tumblr.com/a.jpg", "https://64.media.tumblr.com/b.jpg");
+            lp.mediaPosts.put("https://64.media.tumblr.com/a.jpg", "https://blog.tumblr.com/post/2");
+            writer.write(lp);
+            writer.write(page(3, "https://64.media.tumblr.com/a.jpg"));
+        }
+        List<MediaCatalog.Entry> entries = new ArrayList<>();
+        MediaCatalog.readBinary(dir.resolve(MediaCatalog.BINARY_FILE), entries::add);
+        assertEquals(2, entries.size());
+        assertEquals("https://blog.tumblr.com/post/2", entries.get(0).getPost());
+        assertEquals(2, entries.get(0).getPage());
+        assertEquals("https://64.media.tumblr.com/b.jpg", entries.get(1).getMedia());
+    }
+
+    @Test
+    void incrementalRunAppendsToTheLists() throws IOException {
+        Files.writeString(dir.resolve(TumblrBrowserCalls.PICS_TXT), "https://64.media.tumblr.com/a.jpg\n");
+        config.incremental = true;
+        try (var writer = new LikePageWriter(config, null)) {
+            writer.write(page(1, "https://64.media.tumblr.com/a.jpg", "https://64.media.tumblr.com/b.jpg"));
+        }
+        assertEquals(List.of("https://64.media.tumblr.com/a.jpg", "https://64.media.tumblr.com/b.jpg"),
+                Files.readAllLines(dir.resolve(TumblrBrowserCalls.PICS_TXT)));
+    }
+}
@@ -0,0 +1,69 @@
+package net.picocloud.tumblr.web;
+
+import net.picocloud.tumblr.PageArchive;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PageReindexerTest {
+
+    private Path dir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("PageReindexerTest");
+        Files.createDirectory(dir.resolve("pages"));
+        for (int i = 1; i <= 20; i++)
+            Files.writeString(dir.resolve("pages").resolve("page" + i + ".html"), page(i));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static String page(int i) {
+        return "<html><body><div class=\"post\">" +
+                "<button class=\"reblog_follow_button\" data-tumblelog-name=\"blog" + (i % 3) + "\">Follow</button>" +
+                "<img class=\"post_media_photo\" src=\"https://64.media.tumblr.com/" + i + ".jpg\">" +
+                "<video><source src=\"https://va.media.tumblr.com/" + i + ".mp4\" type=\"video/mp4\"></video>" +
+                "<a class=\"post_permalink\" href=\"https://blog.tumblr.com/post/" + i + "\"></a>" +
+                "</div></body></html>";
+    }
+
+    @Test
+    void writesListsInPageOrder() throws IOException {
+        var content = new PageReindexer(4).reindex(dir.resolve("pages"), dir);
+        assertEquals(20, content.getPosts().size());
+        assertEquals(3, content.getBlogs().size());
+        List<String> pics = Files.readAllLines(dir.resolve(TumblrBrowserCalls.PICS_TXT));
+        assertEquals(20, pics.size());
+        assertEquals("https://64.media.tumblr.com/1.jpg", pics.get(0));
+        assertEquals("https://64.media.tumblr.com/20.jpg", pics.get(19));
+        assertEquals("https://va.media.tumblr.com/2.mp4", Files.readAllLines(dir.resolve(TumblrBrowserCalls.VIDS_TXT)).get(1));
+        assertEquals(List.of("blog1", "blog2", "blog0"), Files.readAllLines(dir.resolve(PageReindexer.BLOGS_TXT)));
+    }
+
+    @Test
+    void readsPagesFromAnArchive() throws IOException {
+        Path archiveDir = dir.resolve(PageArchive.DIR);
+        try (PageArchive archive = PageArchive.open(archiveDir)) {
+            for (int i = 12; i >= 1; i--)
+                archive.append("page" + i + ".html", page(i));
+        }
+        var content = new PageReindexer(2).analyse(archiveDir);
+        assertEquals(12, content.getPics().size());
+        assertEquals("https://64.media.tumblr.com/1.jpg", content.getPics().iterator().next());
+    }
+}
@@ -0,0 +1,154 @@
+package net.picocloud.tumblr.web;
+
+import net.picocloud.tumblr.SyncCheckpoint;
+import org.junit.jupiter.api.Test;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParallelLikeCrawlerTest {
+
+    private static final String BLOG = "blog";
+
+    private static WebDriver driver(int pages, boolean broken) {
+        return driver(pages, broken, 0);
+    }
+
+    /**
+     * a browser session showing like pages 1 to pages, the first request of a broken session fails,
+     * every request of the failing page too
+     */
+    private static WebDriver driver(int pages, boolean broken, int failing) {
+        String[] url = {null};
+        AtomicInteger requests = new AtomicInteger();
+        return (WebDriver) Proxy.newProxyInstance(ParallelLikeCrawlerTest.class.getClassLoader(),
+                new Class<?>[]{WebDriver.class, JavascriptExecutor.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "get":
+                            if (broken && requests.getAndIncrement() == 0)
+                                throw new WebDriverException("session lost");
+                            if (TumblrBrowserCalls.pageFileName((String) args[0]).equals("page" + failing + ".html"))
+                                throw new WebDriverException("timeout");
+                            url[0] = (String) args[0];
+                            return null;
+                        case "executeScript":
+                            return page(url[0], pages);
+                        case "getWindowHandle":
+                            return "window";
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private static Map<String, Object> page(String url, int pages) {
+        int n = Integer.parseInt(TumblrBrowserCalls.pageFileName(url).replaceAll("\\D", ""));
+        Map<String, Object> result = new HashMap<>();
+        result.put("url", url);
+        result.put("posts", n <= pages ? List.of("https://a.tumblr.com/post/" + n) : List.of());
+        result.put("pics", n <= pages ? List.of("https://64.media.tumblr.com/" + n + ".jpg") : List.of());
+        result.put("vids", List.of());
+        result.put("next", n < pages ? TumblrBrowserCalls.likePageUrl(BLOG, n + 1) : null);
+        return result;
+    }
+
+    private static List<String> crawl(WebDriverPool pool, int parallelism, Set<String> known) throws Exception {
+        List<String> names = new ArrayList<>();
+        assertTrue(new ParallelLikeCrawler(ParallelLikeCrawler.browserLoader(pool, false), parallelism, 0)
+                .crawl(BLOG, known, lp -> names.add(lp.bodyFileName)));
+        return names;
+    }
+
+    private static List<String> names(int pages) {
+        List<String> names = new ArrayList<>();
+        for (int i = 1; i <= pages; i++)
+            names.add("page" + i + ".html");
+        return names;
+    }
+
+    @Test
+    void pagesArriveInOrder() throws Exception {
+        try (var pool = new WebDriverPool(4, () -> driver(25, false), d -> {})) {
+            assertEquals(names(25), crawl(pool, 4, Set.of()));
+            assertEquals(4, pool.getSessions());
+        }
+    }
+
+    @Test
+    void stopsAtKnownPost() throws Exception {
+        try (var pool = new WebDriverPool(3, () -> driver(25, false), d -> {})) {
+            assertEquals(names(7), crawl(pool, 3, Set.of("https://a.tumblr.com/post/7")));
+        }
+    }
+
+    @Test
+    void brokenSessionsAreReplaced() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        AtomicInteger logins = new AtomicInteger();
+        try (var pool = new WebDriverPool(2, () -> driver(10, created.getAndIncrement() == 0), d -> logins.incrementAndGet())) {
+            assertEquals(names(10), crawl(pool, 2, Set.of()));
+            assertEquals(3, created.get());
+            assertEquals(3, logins.get());
+        }
+    }
+
+    @Test
+    void failedPageKeepsTheCheckpoint() throws Exception {
+        Path dir = Files.createTempDirectory("checkpoint");
+        try (var pool = new WebDriverPool(3, () -> driver(25, false, 9), d -> {})) {
+            SyncCheckpoint checkpoint = SyncCheckpoint.open(dir);
+            checkpoint.setLikes(BLOG, Set.of("https://a.tumblr.com/post/old"));
+            checkpoint.save();
+            byte[] before = Files.readAllBytes(dir.resolve(".checkpoints.properties"));
+
+            List<String> names = new ArrayList<>();
+            Set<String> newestPosts = new HashSet<>();
+            boolean complete = new ParallelLikeCrawler(ParallelLikeCrawler.browserLoader(pool, false), 3, 0)
+                    .crawl(BLOG, checkpoint.getLikes(BLOG), lp -> {
+                        if (newestPosts.isEmpty())
+                            newestPosts.addAll(lp.allPosts);
+                        names.add(lp.bodyFileName);
+                    });
+            assertFalse(complete);
+            assertEquals(names(8), names);
+            TumblrBrowserCalls.updateCheckpoint(checkpoint, BLOG, newestPosts, complete);
+            assertArrayEquals(before, Files.readAllBytes(dir.resolve(".checkpoints.properties")));
+
+            TumblrBrowserCalls.updateCheckpoint(checkpoint, BLOG, newestPosts, true);
+            assertEquals(Set.of("https://a.tumblr.com/post/1"), SyncCheckpoint.open(dir).getLikes(BLOG));
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    void failureBehindTheEndDoesNotAbort() throws Exception {
+        try (var pool = new WebDriverPool(3, () -> driver(25, false, 9), d -> {})) {
+            assertEquals(names(7), crawl(pool, 3, Set.of("https://a.tumblr.com/post/7")));
+        }
+    }
+}